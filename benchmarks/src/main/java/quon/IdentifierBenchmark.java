@@ -0,0 +1,65 @@
+package quon;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JavaQuON
+ * 
+ * Measures reading identifiers from datagrams in the legacy and the compact layout, both as
+ * identifier objects and as keys only, and writing them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentifierBenchmark {
+	private final ByteBuffer legacy = ByteBuffer.allocate(Identifier.SIZE);
+	private final ByteBuffer compact = ByteBuffer.allocate(Identifier.COMPACT_SIZE);
+	private final Identifier identifier = new Identifier(0x0A000001, 4000, 0);
+	
+	@Setup
+	public void setUp() {
+		identifier.insertData(legacy, 0);
+		identifier.insertCompactData(compact, 0);
+	}
+	
+	@Benchmark
+	public Identifier parse() {
+		return new Identifier(legacy, 0);
+	}
+	
+	@Benchmark
+	public Identifier parseCompact() {
+		return new Identifier(compact, 0, true);
+	}
+	
+	@Benchmark
+	public long parseKey() {
+		return Identifier.key(legacy, 0, false);
+	}
+	
+	@Benchmark
+	public long parseCompactKey() {
+		return Identifier.key(compact, 0, true);
+	}
+	
+	@Benchmark
+	public ByteBuffer insertCompact() {
+		identifier.insertCompactData(compact, 0);
+		return compact;
+	}
+}
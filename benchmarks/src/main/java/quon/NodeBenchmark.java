@@ -0,0 +1,120 @@
+package quon;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JavaQuON
+ * 
+ * Measures the position updates a node sends on each tick and the whole tick, with 10, 100 or
+ * 1000 neighbors inside its area of interest. The local entity moves by one unit per invocation
+ * and the node sends into a transport that drops all datagrams. The node runs on a clock that
+ * stands still, so that the neighbors never time out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeBenchmark {
+	private static class NullTransport implements Transport {
+		private final BufferPool bufferPool = new BufferPool(Packet.MAXIMUM_SIZE, 4, false);
+		long datagrams;
+		
+		public void open(Identifier identifier) throws IOException {
+		}
+		
+		public void close() {
+		}
+		
+		public BufferPool getBufferPool() {
+			return bufferPool;
+		}
+		
+		public boolean receive(Packet packet) throws IOException {
+			return false;
+		}
+		
+		public void send(Packet packet, Identifier destination) throws IOException {
+			datagrams++;
+		}
+	}
+	
+	private static final long TIME = 1000000000000L;
+	
+	@Param({"10", "100", "1000"})
+	public int neighbors;
+	
+	private final NullTransport transport = new NullTransport();
+	private final Clock clock = new Clock() {
+		public long millis() {
+			return TIME;
+		}
+	};
+	private Entity entity;
+	private Node node;
+	private long step = 1;
+	
+	@Setup
+	public void setUp() {
+		Random random = new Random(0);
+		entity = new Entity(new Identifier(0x0A000001, 4000, 0));
+		entity.position.setTo(5000, 5000);
+		entity.aoiRadius = 100;
+		node = new Node(entity, transport);
+		node.setClock(clock);
+		node.open();
+		
+		/* introduces the neighbors by a MOVE datagram from each */
+		Packet packet = new Packet();
+		Entity neighbor = new Entity(new Identifier(0, 0, 0));
+		neighbor.aoiRadius = 100;
+		for (int i = 0; i < neighbors; i++) {
+			neighbor.position.setTo(4900 + random.nextInt(201), 4900 + random.nextInt(201));
+			packet.setVersion(Packet.VERSION);
+			packet.setMovePacket(neighbor, false);
+			packet.origin = new Identifier(0x0B000000 + i, 4000, 0);
+			node.handlePacket(packet);
+		}
+		node.tick(TIME);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		node.close();
+	}
+	
+	private void move() {
+		entity.position.setTo(entity.position.x + step, entity.position.y);
+		step = -step;
+	}
+	
+	@Benchmark
+	public long sendPositionUpdates() {
+		move();
+		node.sendPositionUpdates();
+		return transport.datagrams;
+	}
+	
+	@Benchmark
+	public long tick() {
+		move();
+		node.tick(TIME);
+		return transport.datagrams;
+	}
+}
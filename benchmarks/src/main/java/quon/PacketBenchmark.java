@@ -0,0 +1,124 @@
+package quon;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JavaQuON
+ * 
+ * Measures encoding and decoding datagrams: a legacy MOVE datagram, a batch of MOVE records with
+ * delta positions and velocities as sent to a direct neighbor, and a batch of NEIGHBOR records as
+ * sent to a binding neighbor. Each batch holds 32 records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+	private static final int RECORDS = 32;
+	
+	private final Packet packet = new Packet();
+	private final Packet legacyMove = new Packet();
+	private final Packet moveBatch = new Packet();
+	private final Packet neighborBatch = new Packet();
+	
+	private final Identifier origin = new Identifier(0x0A000001, 4000, 0);
+	private final Entity[] entities = new Entity[RECORDS];
+	private final RemoteEntity[] neighbors = new RemoteEntity[RECORDS];
+	private final Position keyframePosition = new Position();
+	private final Position velocity = new Position();
+	private final Position position = new Position();
+	
+	@Setup
+	public void setUp() {
+		Random random = new Random(0);
+		keyframePosition.setTo(5000, 5000);
+		velocity.setTo(20, -15);
+		for (int i = 0; i < RECORDS; i++) {
+			entities[i] = new Entity(new Identifier(origin, i + 1));
+			entities[i].position.setTo(5000 + random.nextInt(200) - 100, 5000 + random.nextInt(200) - 100);
+			entities[i].aoiRadius = 100;
+			neighbors[i] = new RemoteEntity(new Identifier(0x0A000100 + i, 4000, 0));
+			neighbors[i].position.setTo(entities[i].position);
+			neighbors[i].aoiRadius = 100;
+			neighbors[i].version = Packet.VERSION;
+		}
+		
+		legacyMove.setVersion(Packet.LEGACY);
+		legacyMove.setMovePacket(entities[0], false);
+		encodeMoves(moveBatch);
+		encodeNeighbors(neighborBatch);
+		legacyMove.origin = moveBatch.origin = neighborBatch.origin = origin;
+	}
+	
+	private int encodeMoves(Packet packet) {
+		packet.setVersion(Packet.VERSION);
+		packet.setBatchPacket();
+		for (Entity entity : entities)
+			packet.addMoveRecord(entity, false, 1, keyframePosition, velocity, Packet.MAXIMUM_SIZE);
+		return packet.data.limit();
+	}
+	
+	private int encodeNeighbors(Packet packet) {
+		packet.setVersion(Packet.VERSION);
+		packet.setBatchPacket();
+		for (RemoteEntity neighbor : neighbors)
+			packet.addNeighborRecord(neighbor, Packet.MAXIMUM_SIZE);
+		return packet.data.limit();
+	}
+	
+	private long decode(Packet packet) {
+		long sum = 0;
+		packet.rewind();
+		while (packet.nextRecord()) {
+			packet.getPosition(position, keyframePosition);
+			sum += packet.getIdentifierKey() + position.x + position.y + packet.getAoiRadius();
+		}
+		return sum;
+	}
+	
+	@Benchmark
+	public int encodeLegacyMove() {
+		packet.setVersion(Packet.LEGACY);
+		packet.setMovePacket(entities[0], false);
+		return packet.data.limit();
+	}
+	
+	@Benchmark
+	public long decodeLegacyMove() {
+		return decode(legacyMove);
+	}
+	
+	@Benchmark
+	public int encodeMoveBatch() {
+		return encodeMoves(packet);
+	}
+	
+	@Benchmark
+	public long decodeMoveBatch() {
+		return decode(moveBatch);
+	}
+	
+	@Benchmark
+	public int encodeNeighborBatch() {
+		return encodeNeighbors(packet);
+	}
+	
+	@Benchmark
+	public long decodeNeighborBatch() {
+		return decode(neighborBatch);
+	}
+}
@@ -0,0 +1,60 @@
+package quon;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JavaQuON
+ * 
+ * Measures the distance and quadrant computations the node runs for each neighbor on every tick,
+ * over 1024 positions scattered around a center.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PositionBenchmark {
+	private static final int POSITIONS = 1024;
+	
+	private final Position center = new Position();
+	private final Position[] positions = new Position[POSITIONS];
+	
+	@Setup
+	public void setUp() {
+		Random random = new Random(0);
+		center.setTo(5000, 5000);
+		for (int i = 0; i < POSITIONS; i++) {
+			positions[i] = new Position();
+			positions[i].setTo(random.nextInt(10000), random.nextInt(10000));
+		}
+	}
+	
+	@Benchmark
+	public long distanceTo() {
+		long sum = 0;
+		for (Position position : positions)
+			sum += center.distanceTo(position);
+		return sum;
+	}
+	
+	@Benchmark
+	public int classify() {
+		int sum = 0;
+		for (Position position : positions)
+			sum += center.classify(position);
+		return sum;
+	}
+}
@@ -0,0 +1,90 @@
+package quon;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * JavaQuON
+ * 
+ * A small benchmark comparing the platform thread mode with the virtual thread mode of the node
+ * class. For each mode N nodes are started on the local host, run for a number of seconds and
+ * then the heap usage, the number of live threads and the delay of the update ticks behind their
+ * schedule are reported. Runs for seconds rather than as a JMH benchmark, usage:
+ * java -cp benchmarks/target/benchmarks.jar quon.SchedulingBenchmark [nodes] [seconds]
+ */
+public class SchedulingBenchmark {
+	public static void main(String[] args) {
+		InetAddress localhost = null;
+		try {
+			localhost = InetAddress.getLocalHost();
+		} catch (UnknownHostException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		int N = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		
+		run("platform", localhost, 20000, N, seconds, false);
+		run("virtual ", localhost, 20000 + N, N, seconds, true);
+		System.exit(0);
+	}
+	
+	private static void run(String mode, InetAddress localhost, int port, int N, int seconds, boolean virtualThreads) {
+		int width  = 4000;
+		int height = 4000;
+		int aoiRadius = 100;
+		
+		Random random = new Random(0);
+		
+		long heapBefore = usedHeap();
+		
+		boolean fallback = false;
+		Node node[] = new Node[N];
+		for (int i = 0; i < N; i++) {
+			Entity entity = new Entity(new Identifier(localhost, port + i));
+			entity.position.x = random.nextInt(width);
+			entity.position.y = random.nextInt(height);
+			entity.aoiRadius = aoiRadius;
+			node[i] = new Node(entity);
+			if (node[i].setVirtualThreads(virtualThreads) != virtualThreads)
+				fallback = true;
+			node[i].join((i == 0) ? null : new Identifier(localhost, port + i - 1));
+		}
+		
+		try {
+			Thread.sleep(seconds * 1000L);
+		} catch (InterruptedException e) { e.printStackTrace(); }
+		
+		long heap = usedHeap() - heapBefore;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		
+		long ticks = 0;
+		long lateness = 0;
+		long maxLateness = 0;
+		for (int i = 0; i < N; i++) {
+			synchronized (node[i]) {
+				ticks += node[i].ticks;
+				lateness += node[i].tickLateness;
+				maxLateness = Math.max(maxLateness, node[i].maxTickLateness);
+			}
+		}
+		
+		for (int i = 0; i < N; i++)
+			node[i].close();
+		
+		if (fallback)
+			System.out.println("virtual threads not available, virtual mode uses pooled platform threads");
+		System.out.println(mode + ": nodes " + N + ", threads " + threads + ", heap " + (heap / 1024) + " KiB, " +
+						   "ticks " + ticks + ", mean tick delay " + ((ticks > 0) ? (double) lateness / ticks : 0) + " ms, " +
+						   "max tick delay " + maxLateness + " ms");
+	}
+	
+	private static long usedHeap() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
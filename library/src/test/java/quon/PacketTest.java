@@ -0,0 +1,366 @@
+package quon;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * JavaQuON
+ *
+ * Round trips of the records of all packet versions through a datagram, including the varint
+ * edge values and the size limit of batches.
+ */
+public class PacketTest {
+	private static final Identifier ORIGIN = new Identifier(0x7F000001, 4000);
+	private static final Identifier PEER   = new Identifier(0x0A000002, 65535);
+	
+	private static final long[] EDGE_VALUES = { 0, 1, -1, 63, -64, 64, -65, 8191, -8192, 8192, 1L << 62, -(1L << 62),
+												Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE - 1, Long.MIN_VALUE + 1 };
+	
+	private static Entity entity(Identifier identifier, long x, long y, long aoiRadius) {
+		Entity entity = new Entity(identifier);
+		entity.position.setTo(x, y);
+		entity.aoiRadius = aoiRadius;
+		return entity;
+	}
+	
+	private static RemoteEntity neighbor(Identifier identifier, long x, long y, long aoiRadius, int version) {
+		RemoteEntity entity = new RemoteEntity(identifier);
+		entity.position.setTo(x, y);
+		entity.aoiRadius = aoiRadius;
+		entity.version = version;
+		return entity;
+	}
+	
+	/* starts reading the datagram written into the packet as if it was received from the origin */
+	private static Packet received(Packet packet) {
+		packet.origin = ORIGIN;
+		packet.rewind();
+		return packet;
+	}
+	
+	@Test
+	public void legacyMove() {
+		Packet packet = new Packet();
+		packet.setVersion(Packet.LEGACY);
+		packet.setBatchPacket();
+		assertTrue(packet.addMoveRecord(entity(ORIGIN, -5, Long.MAX_VALUE, 100), true, -1, null, new Position(3, 4), Packet.MAXIMUM_SIZE));
+		assertFalse(packet.addMoveRecord(entity(ORIGIN, 1, 1, 1), false, Packet.MAXIMUM_SIZE));
+		assertEquals(Packet.SIZE_MOVE_PACKET, packet.data.limit());
+		
+		received(packet);
+		assertEquals(Packet.MOVE_BNR, packet.getType());
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.MOVE_BNR, packet.getRecordType());
+		assertEquals(-5, packet.getPosition().x);
+		assertEquals(Long.MAX_VALUE, packet.getPosition().y);
+		assertEquals(100, packet.getAoiRadius());
+		assertEquals(ORIGIN, packet.getIdentifier());
+		assertFalse(packet.hasVelocity());
+		assertEquals(-1, packet.getKeyframe());
+		assertFalse(packet.nextRecord());
+	}
+	
+	@Test
+	public void legacyNeighbor() {
+		Packet packet = new Packet();
+		packet.setVersion(Packet.LEGACY);
+		packet.setBatchPacket();
+		assertTrue(packet.addNeighborRecord(neighbor(PEER, Long.MIN_VALUE, 7, 250, 2), Packet.MAXIMUM_SIZE));
+		
+		received(packet);
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.NEIGHBOR, packet.getRecordType());
+		assertEquals(PEER, packet.getIdentifier());
+		assertEquals(PEER.key, packet.getIdentifierKey());
+		assertEquals(Long.MIN_VALUE, packet.getPosition().x);
+		assertEquals(7, packet.getPosition().y);
+		assertEquals(250, packet.getAoiRadius());
+		assertEquals(Packet.LEGACY, packet.getNeighborVersion());
+		assertFalse(packet.nextRecord());
+	}
+	
+	@Test
+	public void joinAndJoinAck() {
+		Packet packet = new Packet();
+		packet.setVersion(Packet.VERSION);
+		packet.setJoinPacket(entity(PEER, 10, -20, 30));
+		
+		received(packet);
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.JOIN, packet.getRecordType());
+		assertEquals(PEER, packet.getIdentifier());
+		assertEquals(-20, packet.getPosition().y);
+		assertEquals(Packet.VERSION, packet.getProtocolVersion());
+		assertEquals(0, packet.getHops());
+		for (int i = 0; i < 300; i++)
+			packet.addHop();
+		assertEquals(0xFF, packet.getHops());
+		assertTrue(packet.countsHops());
+		
+		packet.setVersion(Packet.SNAPSHOT_VERSION);
+		packet.setJoinAckPacket(300, 17, 1000);
+		received(packet);
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.JOIN_ACK, packet.getRecordType());
+		assertEquals(Packet.SNAPSHOT_VERSION, packet.getProtocolVersion());
+		assertEquals(0xFF, packet.getHops());
+		assertEquals(17, packet.getSnapshot());
+		assertEquals(1000, packet.getFragmentCount());
+	}
+	
+	@Test
+	public void varintEdgeValues() {
+		for (int version = 1; version <= Packet.VERSION; version++) {
+			for (long value : EDGE_VALUES) {
+				Packet packet = new Packet();
+				packet.setVersion(version);
+				packet.setBatchPacket();
+				Position velocity = new Position(value, -value);
+				assertTrue(packet.addMoveRecord(entity(ORIGIN, value, -value, value), false, -1, null, velocity, Packet.MAXIMUM_SIZE));
+				assertTrue(packet.addNeighborRecord(neighbor(PEER, -value, value, value, version), Packet.MAXIMUM_SIZE));
+				
+				received(packet);
+				assertEquals(Packet.BATCH, packet.getType());
+				assertTrue(packet.nextRecord());
+				assertEquals(Packet.MOVE, packet.getRecordType());
+				assertEquals(value, packet.getPosition().x);
+				assertEquals(-value, packet.getPosition().y);
+				assertEquals(value, packet.getAoiRadius());
+				Position decoded = new Position();
+				packet.getVelocity(decoded);
+				assertEquals(value, decoded.x);
+				assertEquals(-value, decoded.y);
+				
+				assertTrue(packet.nextRecord());
+				assertEquals(Packet.NEIGHBOR, packet.getRecordType());
+				assertEquals(PEER, packet.getIdentifier());
+				assertEquals(-value, packet.getPosition().x);
+				assertEquals(value, packet.getPosition().y);
+				assertEquals(version, packet.getNeighborVersion());
+				assertFalse(packet.nextRecord());
+			}
+		}
+	}
+	
+	@Test
+	public void keyframesAndDeltas() {
+		Position keyframePosition = new Position(Long.MAX_VALUE - 3, -1000);
+		Identifier hosted = new Identifier(ORIGIN, 42);
+		
+		Packet packet = new Packet();
+		packet.setVersion(1);
+		packet.setBatchPacket();
+		assertTrue(packet.addMoveRecord(entity(hosted, keyframePosition.x, keyframePosition.y, 50), false, 9, null, Packet.MAXIMUM_SIZE));
+		assertTrue(packet.addMoveRecord(entity(hosted, Long.MIN_VALUE + 2, -1001, 50), true, 9, keyframePosition, Packet.MAXIMUM_SIZE));
+		
+		received(packet);
+		Position position = new Position();
+		Position decodedKeyframe = new Position();
+		assertTrue(packet.nextRecord());
+		assertFalse(packet.isDelta());
+		assertEquals(9, packet.getKeyframe());
+		assertEquals(42, packet.getEntity());
+		assertEquals(hosted, packet.getIdentifier());
+		packet.getPosition(decodedKeyframe, null);
+		assertEquals(keyframePosition.x, decodedKeyframe.x);
+		
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.MOVE_BNR, packet.getRecordType());
+		assertTrue(packet.isDelta());
+		assertEquals(9, packet.getKeyframe());
+		packet.getPosition(position, decodedKeyframe);
+		assertEquals(Long.MIN_VALUE + 2, position.x);
+		assertEquals(-1001, position.y);
+		assertFalse(packet.nextRecord());
+	}
+	
+	@Test
+	public void leaveAndKeyframeRequests() {
+		Packet packet = new Packet();
+		packet.setVersion(1);
+		packet.setBatchPacket();
+		assertTrue(packet.addLeaveRecord(7, Packet.MAXIMUM_SIZE));
+		assertTrue(packet.addKeyframeRecord(0, Packet.MAXIMUM_SIZE));
+		assertTrue(packet.addKeyframeRecord(65535, Packet.MAXIMUM_SIZE));
+		
+		received(packet);
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.LEAVE, packet.getRecordType());
+		assertEquals(new Identifier(ORIGIN, 7).key, packet.getIdentifierKey());
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.KEYFRAME, packet.getRecordType());
+		assertEquals(ORIGIN.key, packet.getIdentifierKey());
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.KEYFRAME, packet.getRecordType());
+		assertEquals(65535, packet.getEntity());
+		assertFalse(packet.nextRecord());
+		
+		packet.setVersion(Packet.LEGACY);
+		packet.setBatchPacket();
+		assertFalse(packet.addKeyframeRecord(0, Packet.MAXIMUM_SIZE));
+		assertFalse(packet.addLeaveRecord(7, Packet.MAXIMUM_SIZE));
+	}
+	
+	@Test
+	public void snapshotAndNack() {
+		Packet packet = new Packet();
+		packet.setVersion(Packet.SNAPSHOT_VERSION);
+		packet.setBatchPacket();
+		assertTrue(packet.addSnapshotRecord(200, 65534, Packet.MAXIMUM_SIZE));
+		packet.setFragmentCount(65535);
+		assertTrue(packet.addNeighborRecord(neighbor(PEER, 1, 2, 3, 2), Packet.MAXIMUM_SIZE));
+		
+		received(packet);
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.SNAPSHOT, packet.getRecordType());
+		assertEquals(200, packet.getSnapshot());
+		assertEquals(65534, packet.getFragment());
+		assertEquals(65535, packet.getFragmentCount());
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.NEIGHBOR, packet.getRecordType());
+		assertFalse(packet.nextRecord());
+		
+		BitSet received = new BitSet();
+		received.set(0);
+		received.set(2);
+		packet.setBatchPacket();
+		assertTrue(packet.addNackRecord(5, received, 5, Packet.MAXIMUM_SIZE));
+		received(packet);
+		assertTrue(packet.nextRecord());
+		assertEquals(Packet.NACK, packet.getRecordType());
+		assertEquals(5, packet.getSnapshot());
+		assertEquals(3, packet.getFragmentCount());
+		assertEquals(1, packet.getMissingFragment(0));
+		assertEquals(3, packet.getMissingFragment(1));
+		assertEquals(4, packet.getMissingFragment(2));
+		
+		/* fragments beyond the snapshot do not count as received */
+		received.set(9);
+		received.set(10);
+		packet.setBatchPacket();
+		assertTrue(packet.addNackRecord(5, received, 3, Packet.MAXIMUM_SIZE));
+		received(packet);
+		assertTrue(packet.nextRecord());
+		assertEquals(1, packet.getFragmentCount());
+		assertEquals(1, packet.getMissingFragment(0));
+	}
+	
+	@Test
+	public void snapshotRecordsNeedVersion2() {
+		Packet packet = new Packet();
+		packet.setVersion(1);
+		packet.setBatchPacket();
+		assertFalse(packet.addSnapshotRecord(0, 0, Packet.MAXIMUM_SIZE));
+		assertFalse(packet.addNackRecord(0, new BitSet(), 1, Packet.MAXIMUM_SIZE));
+		
+		/* a SNAPSHOT record in a version 1 datagram is malformed */
+		packet.setVersion(Packet.SNAPSHOT_VERSION);
+		packet.setBatchPacket();
+		packet.addSnapshotRecord(0, 0, Packet.MAXIMUM_SIZE);
+		packet.data.put(Packet.TYPE, (byte) ((1 << 4) | Packet.BATCH));
+		received(packet);
+		assertFalse(packet.nextRecord());
+	}
+	
+	@Test
+	public void batchFillsUpToTheMtu() {
+		RemoteEntity entity = neighbor(PEER, 1000, -1000, 100, 1);
+		Packet packet = new Packet();
+		packet.setVersion(1);
+		packet.setBatchPacket();
+		packet.addNeighborRecord(entity, Packet.MAXIMUM_SIZE);
+		int recordSize = packet.data.limit() - 1;
+		
+		/* exactly ten records fit */
+		int mtu = 1 + 10 * recordSize;
+		packet.setBatchPacket();
+		for (int i = 0; i < 10; i++)
+			assertTrue(packet.addNeighborRecord(entity, mtu));
+		assertEquals(mtu, packet.data.limit());
+		assertFalse(packet.addNeighborRecord(entity, mtu));
+		assertFalse(packet.addMoveRecord(entity, false, mtu));
+		assertEquals(mtu, packet.data.limit());
+		assertEquals(10, packet.getRecordCount());
+		
+		received(packet);
+		int records = 0;
+		while (packet.nextRecord())
+			records++;
+		assertEquals(10, records);
+		
+		/* a batch of the minimum size holds any record */
+		packet.setBatchPacket();
+		assertTrue(packet.addMoveRecord(entity(new Identifier(ORIGIN, 1), Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE), false, 0,
+										null, new Position(Long.MIN_VALUE, Long.MIN_VALUE), Packet.MINIMUM_BATCH_SIZE));
+		packet.setBatchPacket();
+		assertTrue(packet.addNeighborRecord(neighbor(new Identifier(PEER, 1), Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE, 1),
+											Packet.MINIMUM_BATCH_SIZE));
+	}
+	
+	@Test
+	public void recordsAreCountedByType() {
+		Packet packet = new Packet();
+		packet.setVersion(Packet.SNAPSHOT_VERSION);
+		packet.setBatchPacket();
+		packet.addSnapshotRecord(1, 0, Packet.MAXIMUM_SIZE);
+		packet.addMoveRecord(entity(ORIGIN, 1, 2, 3), true, Packet.MAXIMUM_SIZE);
+		packet.addNeighborRecord(neighbor(PEER, 4, 5, 6, 2), Packet.MAXIMUM_SIZE);
+		packet.addNeighborRecord(neighbor(PEER, 7, 8, 9, 2), Packet.MAXIMUM_SIZE);
+		
+		long[] records = new long[Packet.NAMES.length];
+		long[] bytes = new long[Packet.NAMES.length];
+		packet.countRecords(records, bytes);
+		assertEquals(1, records[Packet.SNAPSHOT]);
+		assertEquals(1, records[Packet.MOVE_BNR]);
+		assertEquals(2, records[Packet.NEIGHBOR]);
+		assertEquals(0, records[Packet.BATCH]);
+		assertEquals(packet.data.limit(), bytes[Packet.SNAPSHOT] + bytes[Packet.MOVE_BNR] + bytes[Packet.NEIGHBOR]);
+		
+		/* decoding counts the same and so does a copied datagram */
+		long[] decodedRecords = new long[Packet.NAMES.length];
+		long[] decodedBytes = new long[Packet.NAMES.length];
+		received(packet);
+		while (packet.nextRecord())
+			Node.count(packet, decodedRecords, decodedBytes);
+		assertArrayEquals(records, decodedRecords);
+		assertArrayEquals(bytes, decodedBytes);
+		
+		Packet copy = new Packet();
+		copy.setDatagram(packet.getDatagram());
+		Arrays.fill(decodedRecords, 0);
+		Arrays.fill(decodedBytes, 0);
+		copy.countRecords(decodedRecords, decodedBytes);
+		assertArrayEquals(records, decodedRecords);
+		assertArrayEquals(bytes, decodedBytes);
+		
+		packet.setVersion(Packet.LEGACY);
+		packet.setJoinPacket(entity(PEER, 1, 2, 3));
+		Arrays.fill(records, 0);
+		Arrays.fill(bytes, 0);
+		packet.countRecords(records, bytes);
+		assertEquals(1, records[Packet.JOIN]);
+		assertEquals(Packet.SIZE_JOIN_PACKET, bytes[Packet.JOIN]);
+	}
+	
+	@Test
+	public void truncatedRecordsAreMalformed() {
+		Packet packet = new Packet();
+		packet.setVersion(1);
+		packet.setBatchPacket();
+		packet.addMoveRecord(entity(ORIGIN, 1L << 40, 5, 100), false, -1, null, new Position(1, 2), Packet.MAXIMUM_SIZE);
+		int size = packet.data.limit();
+		
+		for (int limit = 2; limit < size; limit++) {
+			packet.data.limit(limit);
+			received(packet);
+			assertFalse(packet.nextRecord(), "truncated to " + limit);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package quon;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * JavaQuON
+ *
+ * Expiry of the timing wheel advanced in steps of the update interval, in particular of deadlines
+ * inside the slot of the current tick, which have to expire within a step of passing.
+ */
+public class TimingWheelTest {
+	private static final int RESOLUTION = 167;
+	private static final int TIMEOUT    = 10000;
+	
+	private static RemoteEntity entity(int address) {
+		return new RemoteEntity(new Identifier(address, 4000));
+	}
+	
+	/* advances the wheel from the given time in steps of the resolution, returns the time the entity expired at */
+	private static long expiry(TimingWheel wheel, RemoteEntity entity, long start, long end) {
+		ArrayList<RemoteEntity> expired = new ArrayList<RemoteEntity>();
+		for (long time = start; time <= end; time += RESOLUTION) {
+			wheel.advance(time, expired);
+			if (expired.contains(entity))
+				return time;
+		}
+		return -1;
+	}
+	
+	@Test
+	public void deadlineLaterInTheCurrentSlot() {
+		TimingWheel wheel = new TimingWheel(RESOLUTION, TIMEOUT);
+		RemoteEntity entity = entity(1);
+		wheel.advance(30, new ArrayList<RemoteEntity>());
+		wheel.schedule(entity, 10100);
+		
+		long time = expiry(wheel, entity, 30 + RESOLUTION, 3 * TIMEOUT);
+		assertTrue((time >= 10100) && (time < 10100 + RESOLUTION), "expired at " + time);
+		assertEquals(0, wheel.size());
+	}
+	
+	@Test
+	public void deadlinesExpireWithinOneStep() {
+		Random random = new Random(1);
+		for (int i = 0; i < 1000; i++) {
+			TimingWheel wheel = new TimingWheel(RESOLUTION, TIMEOUT);
+			RemoteEntity entity = entity(i);
+			long start = random.nextInt(RESOLUTION);
+			long deadline = start + 1 + random.nextInt(TIMEOUT);
+			wheel.advance(start, new ArrayList<RemoteEntity>());
+			wheel.schedule(entity, deadline);
+			
+			long time = expiry(wheel, entity, start + RESOLUTION, 3 * TIMEOUT);
+			assertTrue((time >= deadline) && (time < deadline + RESOLUTION), "deadline " + deadline + " expired at " + time);
+		}
+	}
+	
+	@Test
+	public void cancelledEntitiesDoNotExpire() {
+		TimingWheel wheel = new TimingWheel(RESOLUTION, TIMEOUT);
+		RemoteEntity kept = entity(1);
+		RemoteEntity cancelled = entity(2);
+		wheel.advance(0, new ArrayList<RemoteEntity>());
+		wheel.schedule(kept, 1000);
+		wheel.schedule(cancelled, 1000);
+		wheel.cancel(cancelled);
+		assertEquals(1, wheel.size());
+		
+		ArrayList<RemoteEntity> expired = new ArrayList<RemoteEntity>();
+		wheel.advance(2000, expired);
+		assertEquals(1, expired.size());
+		assertTrue(expired.contains(kept));
+	}
+	
+	@Test
+	public void deadlinesBeyondARoundWaitForIt() {
+		TimingWheel wheel = new TimingWheel(RESOLUTION, TIMEOUT);
+		RemoteEntity entity = entity(1);
+		wheel.advance(0, new ArrayList<RemoteEntity>());
+		wheel.schedule(entity, 5 * TIMEOUT);
+		
+		long time = expiry(wheel, entity, RESOLUTION, 10 * TIMEOUT);
+		assertTrue((time >= 5 * TIMEOUT) && (time < 5 * TIMEOUT + RESOLUTION), "expired at " + time);
+	}
+	
+	@Test
+	public void gapsLongerThanARoundExpireAllPassedDeadlines() {
+		TimingWheel wheel = new TimingWheel(RESOLUTION, TIMEOUT);
+		wheel.advance(0, new ArrayList<RemoteEntity>());
+		for (int i = 0; i < 100; i++)
+			wheel.schedule(entity(i), 100 + i * 97);
+		
+		ArrayList<RemoteEntity> expired = new ArrayList<RemoteEntity>();
+		wheel.advance(3 * TIMEOUT, expired);
+		assertEquals(100, expired.size());
+		assertEquals(0, wheel.size());
+	}
+}
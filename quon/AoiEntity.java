@@ -0,0 +1,44 @@
+package quon;
+
+/**
+ * JavaQuON
+ * 
+ * Read-only copy of an entity inside the area of interest of a node, as handed out by its
+ * snapshots and listeners. A copy is shared by all snapshots published until the entity moves or
+ * changes its area of interest.
+ */
+public final class AoiEntity {
+	public final Identifier identifier;
+	public final long x;
+	public final long y;
+	public final long aoiRadius;
+	
+	AoiEntity(Entity entity) {
+		this.identifier = entity.identifier;
+		this.x = entity.position.x;
+		this.y = entity.position.y;
+		this.aoiRadius = entity.aoiRadius;
+	}
+	
+	/**
+	 * Returns a new position, as the copy itself cannot be changed.
+	 */
+	public Position getPosition() {
+		return new Position(x, y);
+	}
+	
+	/* whether the copy still describes the entity */
+	boolean matches(Entity entity) {
+		return (x == entity.position.x) && (y == entity.position.y) && (aoiRadius == entity.aoiRadius);
+	}
+	
+	@Override
+	public int hashCode() {
+		return identifier.hashCode();
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		return (obj instanceof AoiEntity) && ((AoiEntity) obj).identifier.equals(identifier);
+	}
+}
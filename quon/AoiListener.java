@@ -0,0 +1,15 @@
+package quon;
+
+/**
+ * JavaQuON
+ * 
+ * Listener notified about entities entering, moving inside and leaving the area of interest of
+ * a node. The entities passed are read-only copies taken when the events are delivered.
+ */
+public interface AoiListener {
+	public void onEnter(AoiEntity entity);
+	
+	public void onMove(AoiEntity entity);
+	
+	public void onLeave(AoiEntity entity);
+}
@@ -0,0 +1,56 @@
+package quon;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JavaQuON
+ * 
+ * Immutable snapshot of the entities inside the area of interest of a node. The entities are
+ * read-only copies, the version increases with every snapshot a node publishes.
+ */
+public class AoiSnapshot {
+	public static final AoiSnapshot EMPTY = new AoiSnapshot(0, new AoiEntity[0]);
+	
+	public final long version;
+	private final AoiEntity[] entities;
+	private final List<AoiEntity> list;
+	
+	AoiSnapshot(long version, AoiEntity[] entities) {
+		this.version = version;
+		this.entities = entities;
+		this.list = Collections.unmodifiableList(Arrays.asList(entities));
+	}
+	
+	/* returns the copy of the entity published last, or a new one if it changed since */
+	static AoiEntity copyOf(RemoteEntity entity) {
+		AoiEntity copy = entity.aoiCopy;
+		if ((copy == null) || !copy.matches(entity)) {
+			copy = new AoiEntity(entity);
+			entity.aoiCopy = copy;
+		}
+		return copy;
+	}
+	
+	public int size() {
+		return entities.length;
+	}
+	
+	public AoiEntity get(int index) {
+		return entities[index];
+	}
+	
+	public List<AoiEntity> getEntities() {
+		return list;
+	}
+	
+	/**
+	 * Copies as many entities as fit into the given array and returns the number of entities of
+	 * the snapshot.
+	 */
+	public int copyTo(AoiEntity[] buffer) {
+		System.arraycopy(entities, 0, buffer, 0, Math.min(entities.length, buffer.length));
+		return entities.length;
+	}
+}
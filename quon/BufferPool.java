@@ -0,0 +1,38 @@
+package quon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * JavaQuON
+ * 
+ * Pool of reusable datagram buffers. Buffers are allocated on demand and kept for reuse once
+ * they are released, up to the capacity of the pool.
+ */
+public class BufferPool {
+	private final int bufferSize;
+	private final boolean direct;
+	
+	private final ByteBuffer[] buffers;
+	private int count;
+	
+	public BufferPool(int bufferSize, int capacity, boolean direct) {
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.buffers = new ByteBuffer[capacity];
+	}
+	
+	public synchronized ByteBuffer acquire() {
+		if (count == 0)
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		
+		ByteBuffer buffer = buffers[--count];
+		buffers[count] = null;
+		buffer.clear();
+		return buffer;
+	}
+	
+	public synchronized void release(ByteBuffer buffer) {
+		if ((buffer.capacity() == bufferSize) && (buffer.isDirect() == direct) && (count < buffers.length))
+			buffers[count++] = buffer;
+	}
+}
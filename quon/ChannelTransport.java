@@ -0,0 +1,80 @@
+package quon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * JavaQuON
+ * 
+ * Transport based on a java.nio DatagramChannel. Datagrams are received into and sent from
+ * pooled direct buffers and the identifiers of remote peers are cached by their packed key,
+ * so receiving and sending does not allocate once all peers have been seen.
+ */
+public class ChannelTransport implements SelectableTransport {
+	private static final int POOL_CAPACITY = 64;
+	private static final int MAXIMUM_ORIGINS = 4096;
+	
+	private final BufferPool bufferPool = new BufferPool(Packet.MAXIMUM_SIZE, POOL_CAPACITY, true);
+	private final LongMap<Identifier> origins = new LongMap<Identifier>();
+	
+	private DatagramChannel channel;
+	
+	public void open(Identifier identifier) throws IOException {
+		channel = DatagramChannel.open();
+		channel.bind(identifier.getSocketAddress());
+	}
+	
+	public void close() {
+		if (channel == null)
+			return;
+		
+		try {
+			channel.close();
+		} catch (IOException e) { e.printStackTrace(); }
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+	
+	public boolean receive(Packet packet) throws IOException {
+		ByteBuffer buffer = packet.data;
+		buffer.clear();
+		SocketAddress address = channel.receive(buffer);
+		buffer.flip();
+		
+		if (address == null)
+			return false;
+		
+		packet.origin = getOrigin(address);
+		return true;
+	}
+	
+	public void send(Packet packet, Identifier destination) throws IOException {
+		ByteBuffer buffer = packet.data;
+		buffer.rewind();
+		channel.send(buffer, destination.getSocketAddress());
+	}
+	
+	private Identifier getOrigin(SocketAddress address) {
+		InetSocketAddress socketAddress = (InetSocketAddress) address;
+		long key = Identifier.key(socketAddress);
+		
+		Identifier origin = origins.get(key);
+		if (origin == null) {
+			if (origins.size() >= MAXIMUM_ORIGINS)
+				origins.clear();
+			
+			origin = new Identifier(socketAddress.getAddress(), socketAddress.getPort());
+			origins.put(key, origin);
+		}
+		return origin;
+	}
+}
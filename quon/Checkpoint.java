@@ -0,0 +1,145 @@
+package quon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * JavaQuON
+ *
+ * Snapshot of the local entity and the neighbor table of a node kept in a local file, from which
+ * a restarted node rejoins by contacting its former neighbors directly instead of routing a JOIN.
+ * The file is written to a temporary file first and moved over the previous one, so that a crash
+ * while writing leaves the previous checkpoint intact. Nodes encode their checkpoints while they
+ * are locked and leave the writing to a single background thread shared by all nodes, which
+ * writes the checkpoints in the order they were taken.
+ *
+ * File:      | MAGIC | VERSION | TIME(8) | KEY(8) | X(8) | Y(8) | AOI(8) | COUNT(4) | NEIGHBOR ... |
+ * Neighbor:  | KEY(8) | X(8) | Y(8) | AOI(8) | VERSION(1) | QUADRANT(1) | FLAGS(1) |
+ * The time is in milliseconds of the clock of the node, the quadrant is the one the neighbor is
+ * binding neighbor of or -1.
+ */
+class Checkpoint {
+	static final int MAGIC   = 0x51434B50; /* "QCKP" */
+	static final int VERSION = 1;
+	static final int HEADER_SIZE   = Integer.BYTES + 1 + 5 * Long.BYTES + Integer.BYTES;
+	static final int NEIGHBOR_SIZE = 4 * Long.BYTES + 3;
+	static final int FLAG_DIRECT = 1;
+	
+	static final ExecutorService WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "JavaQuON Checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	static class Neighbor {
+		final Identifier identifier;
+		final Position position = new Position();
+		long aoiRadius;
+		int version;
+		int bindingQuadrant = -1;
+		boolean direct;
+		
+		Neighbor(Identifier identifier) {
+			this.identifier = identifier;
+		}
+	}
+	
+	final long time;  /* time (ms) the checkpoint was taken */
+	final Entity localEntity;
+	final ArrayList<Neighbor> neighbors = new ArrayList<Neighbor>();
+	
+	private Checkpoint(long time, Entity localEntity) {
+		this.time = time;
+		this.localEntity = localEntity;
+	}
+	
+	static ByteBuffer encode(Entity localEntity, LongMap<RemoteEntity> neighbors, long currentTime) {
+		ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + neighbors.size() * NEIGHBOR_SIZE);
+		data.putInt(MAGIC);
+		data.put((byte) VERSION);
+		data.putLong(currentTime);
+		data.putLong(localEntity.identifier.key);
+		data.putLong(localEntity.position.x);
+		data.putLong(localEntity.position.y);
+		data.putLong(localEntity.aoiRadius);
+		data.putInt(neighbors.size());
+		
+		for (int i = 0; i < neighbors.capacity(); i++) {
+			RemoteEntity neighbor = neighbors.valueAt(i);
+			if (neighbor == null)
+				continue;
+			
+			data.putLong(neighbor.identifier.key);
+			data.putLong(neighbor.position.x);
+			data.putLong(neighbor.position.y);
+			data.putLong(neighbor.aoiRadius);
+			data.put((byte) neighbor.version);
+			data.put((byte) neighbor.bindingQuadrant);
+			data.put((byte) (neighbor.direct ? FLAG_DIRECT : 0));
+		}
+		data.flip();
+		return data;
+	}
+	
+	/**
+	 * Writes a checkpoint encoded by encode to the given file.
+	 */
+	static void write(Path path, ByteBuffer data) throws IOException {
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+													StandardOpenOption.WRITE)) {
+			while (data.hasRemaining())
+				channel.write(data);
+		}
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Reads the checkpoint in the given file, returns null if there is none or it is not a valid
+	 * checkpoint.
+	 */
+	static Checkpoint read(Path path) {
+		if (!Files.isRegularFile(path))
+			return null;
+		
+		try {
+			ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+			if ((data.remaining() < HEADER_SIZE) || (data.getInt() != MAGIC) || (data.get() != VERSION))
+				return null;
+			
+			long time = data.getLong();
+			Entity localEntity = new Entity(Identifier.ofKey(data.getLong()));
+			localEntity.position.setTo(data.getLong(), data.getLong());
+			localEntity.aoiRadius = data.getLong();
+			int count = data.getInt();
+			if ((count < 0) || (data.remaining() != count * NEIGHBOR_SIZE))
+				return null;
+			
+			Checkpoint checkpoint = new Checkpoint(time, localEntity);
+			for (int i = 0; i < count; i++) {
+				Neighbor neighbor = new Neighbor(Identifier.ofKey(data.getLong()));
+				neighbor.position.setTo(data.getLong(), data.getLong());
+				neighbor.aoiRadius = data.getLong();
+				neighbor.version = data.get();
+				neighbor.bindingQuadrant = data.get();
+				neighbor.direct = (data.get() & FLAG_DIRECT) != 0;
+				checkpoint.neighbors.add(neighbor);
+			}
+			return checkpoint;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package quon;
+
+/**
+ * JavaQuON
+ * 
+ * Source of the current time (ms) of a node. Nodes use the system clock, the simulator runs them
+ * on a virtual clock instead.
+ */
+public interface Clock {
+	public static final Clock SYSTEM = new Clock() {
+		public long millis() {
+			return System.currentTimeMillis();
+		}
+	};
+	
+	public long millis();
+}
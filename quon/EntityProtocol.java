@@ -0,0 +1,136 @@
+package quon;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JavaQuON
+ * 
+ * Per-entity protocol state Node and MultiNode share. Each remote entity carries a stamp, which
+ * changes whenever the entity changes materially, so that the peers it was introduced to with a
+ * NEIGHBOR record are introduced to it again. Entities that left or timed out are remembered for
+ * the timeout, so that records still on their way do not add them again. The owner sends the
+ * datagrams, which it counts, and retries its JOIN while joining.
+ */
+abstract class EntityProtocol {
+	static final int NEIGHBOR_REFRESH_INTERVAL = 5000; /* after which time (ms) a known entity is introduced again */
+	static final int MATERIAL_CHANGE = 8;              /* fraction of its area of interest an entity has to move to be introduced again */
+	static final int MAXIMUM_DEPARTED = 1024;          /* entities that left remembered at most */
+	static final int NACK_INTERVAL = 200;              /* after which time (ms) without fragments the missing ones are requested */
+	static final int JOIN_RETRY_INTERVAL = 1000;       /* after which time (ms) an unacknowledged JOIN is sent again */
+	
+	private final LongMap<Long> departed = new LongMap<Long>();
+	private long stamp;
+	
+	abstract void send(Packet packet, Identifier destination);
+	
+	/* sends the JOIN again if it is due or requests missing fragments, called while waiting for the join */
+	abstract void retryJoin(long currentTime);
+	
+	/* waits until the join completed or the timeout (ms) elapsed, retrying it in between */
+	boolean awaitJoin(CountDownLatch connected, Clock clock, long joinTimeout) throws InterruptedException {
+		long currentTime = clock.millis();
+		long deadline = currentTime + joinTimeout;
+		while (currentTime < deadline) {
+			if (connected.await(Math.min(NACK_INTERVAL, deadline - currentTime), TimeUnit.MILLISECONDS))
+				return true;
+			currentTime = clock.millis();
+			retryJoin(currentTime);
+		}
+		return false;
+	}
+	
+	/* gives an entity a new stamp if it is new or changed materially, so that it is introduced to the peers again */
+	void updateStamp(RemoteEntity entity, boolean changed) {
+		if (changed || (entity.stamp == 0) ||
+			(entity.position.distanceTo(entity.stampPosition) > entity.aoiRadius / MATERIAL_CHANGE)) {
+			entity.stamp = ++stamp;
+			entity.stampPosition.setTo(entity.position);
+		}
+	}
+	
+	/* returns whether a peer has to be told about the entity, which is new or changed to it, entered or left its
+	 * area of interest, which the peer acts upon, or is due for a refresh, and records the introduction */
+	static boolean introduce(LongMap<RemoteEntity.Introduction> introductions, RemoteEntity entity, boolean inside, long currentTime) {
+		RemoteEntity.Introduction introduction = introductions.get(entity.identifier.key);
+		if (introduction == null) {
+			introduction = new RemoteEntity.Introduction();
+			introductions.put(entity.identifier.key, introduction);
+		} else if ((introduction.stamp == entity.stamp) && (introduction.inside == inside) &&
+				   (currentTime - introduction.time < NEIGHBOR_REFRESH_INTERVAL)) {
+			return false;
+		}
+		
+		introduction.stamp = entity.stamp;
+		introduction.inside = inside;
+		introduction.time = currentTime;
+		return true;
+	}
+	
+	/* appends a NEIGHBOR record to the batch, which is sent first if it is full */
+	void addNeighborRecord(Packet packet, RemoteEntity entity, Identifier destination, int mtu) {
+		/* legacy peers cannot tell hosted entities apart from their host */
+		if ((entity.identifier.entity != 0) && (packet.getVersion() == Packet.LEGACY))
+			return;
+		
+		if (!packet.addNeighborRecord(entity, mtu)) {
+			send(packet, destination);
+			packet.setBatchPacket();
+			packet.addNeighborRecord(entity, mtu);
+		}
+	}
+	
+	/* sends one LEAVE to each endpoint of the given entities, which takes the entities hosted there along */
+	void sendLeave(Packet packet, LongMap<RemoteEntity> neighbors, int version, int mtu) {
+		LongMap<RemoteEntity> endpoints = new LongMap<RemoteEntity>();
+		for (int i = 0; i < neighbors.capacity(); i++) {
+			RemoteEntity neighbor = neighbors.valueAt(i);
+			if (neighbor != null)
+				endpoints.put(Identifier.endpointKey(neighbor.identifier.key), neighbor);
+		}
+		
+		for (int i = 0; i < endpoints.capacity(); i++) {
+			RemoteEntity neighbor = endpoints.valueAt(i);
+			if (neighbor == null)
+				continue;
+			
+			packet.setVersion(Math.min(neighbor.version, version));
+			packet.setBatchPacket();
+			packet.addLeaveRecord(mtu);
+			send(packet, endpointOf(neighbor));
+		}
+	}
+	
+	static Identifier endpointOf(RemoteEntity entity) {
+		return (entity.identifier.entity == 0) ? entity.identifier : new Identifier(entity.identifier, 0);
+	}
+	
+	void addDeparted(long key, long currentTime) {
+		if (departed.size() >= MAXIMUM_DEPARTED)
+			departed.clear();
+		departed.put(key, currentTime);
+	}
+	
+	/* hosted entities have also departed if their host has */
+	boolean hasDeparted(long key, long currentTime, int timeout) {
+		long endpointKey = Identifier.endpointKey(key);
+		return isDeparted(key, currentTime, timeout) || ((endpointKey != key) && isDeparted(endpointKey, currentTime, timeout));
+	}
+	
+	private boolean isDeparted(long key, long currentTime, int timeout) {
+		Long time = departed.get(key);
+		if (time == null)
+			return false;
+		if (currentTime - time < timeout)
+			return true;
+		
+		departed.remove(key);
+		return false;
+	}
+	
+	/* an entity heard from directly is back, and so is its host */
+	void forgetDeparted(long key) {
+		departed.remove(key);
+		departed.remove(Identifier.endpointKey(key));
+	}
+}
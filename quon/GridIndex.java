@@ -0,0 +1,238 @@
+package quon;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * JavaQuON
+ * 
+ * Spatial index partitioning the plane into square cells of a fixed size, preferably close to
+ * the area of interest radius. Range queries visit only the cells overlapping the query box and
+ * nearest queries search rings of cells around the query position, falling back to visiting all
+ * occupied cells once that is cheaper. Cells keep the coordinates of their entities in arrays
+ * parallel to the entities, so that the distance tests of a query do not visit the entities.
+ * 
+ * Cell coordinates are clamped to 32 bits, which keeps the packed cell keys free of collisions.
+ * Entities beyond that range share the outermost cells, queries still test their coordinates.
+ */
+public class GridIndex implements SpatialIndex {
+	private final long cellSize;
+	private final LongMap<Cell> cells = new LongMap<Cell>();
+	
+	/* bounds of all cells occupied since the index was last empty */
+	private long minX, maxX, minY, maxY;
+	
+	private final long[] distances = new long[Position.QUADRANTS]; /* distances of the nearest entities per quadrant */
+	private final RemoteEntity[] nearest = new RemoteEntity[1];     /* result of findNearest */
+	private final long[] distance = new long[1];
+	
+	private static class Cell {
+		final long x;
+		final long y;
+		RemoteEntity[] entities = new RemoteEntity[4];
+		long[] xs = new long[4];  /* coordinates of the entities as of their last update */
+		long[] ys = new long[4];
+		int size;
+		
+		Cell(long x, long y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+	
+	public GridIndex(long cellSize) {
+		this.cellSize = Math.max(1, cellSize);
+	}
+	
+	private long cell(long coordinate) {
+		return Math.max(Integer.MIN_VALUE, Math.min(Math.floorDiv(coordinate, cellSize), Integer.MAX_VALUE));
+	}
+	
+	/* unique for cell coordinates of 32 bits */
+	private static long key(long x, long y) {
+		return (x << 32) | (y & 0xFFFFFFFFL);
+	}
+	
+	public void add(RemoteEntity entity) {
+		long x = cell(entity.position.x);
+		long y = cell(entity.position.y);
+		
+		if (cells.isEmpty()) {
+			minX = maxX = x;
+			minY = maxY = y;
+		} else {
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+		}
+		
+		long key = key(x, y);
+		Cell cell = cells.get(key);
+		if (cell == null) {
+			cell = new Cell(x, y);
+			cells.put(key, cell);
+		}
+		if (cell.size == cell.entities.length) {
+			cell.entities = Arrays.copyOf(cell.entities, 2 * cell.size);
+			cell.xs = Arrays.copyOf(cell.xs, 2 * cell.size);
+			cell.ys = Arrays.copyOf(cell.ys, 2 * cell.size);
+		}
+		
+		entity.indexKey = key;
+		entity.indexSlot = cell.size;
+		cell.entities[cell.size] = entity;
+		cell.xs[cell.size] = entity.position.x;
+		cell.ys[cell.size] = entity.position.y;
+		cell.size++;
+	}
+	
+	public void update(RemoteEntity entity) {
+		if (entity.indexSlot < 0)
+			return;
+		if (key(cell(entity.position.x), cell(entity.position.y)) == entity.indexKey) {
+			Cell cell = cells.get(entity.indexKey);
+			cell.xs[entity.indexSlot] = entity.position.x;
+			cell.ys[entity.indexSlot] = entity.position.y;
+			return;
+		}
+		
+		remove(entity);
+		add(entity);
+	}
+	
+	public void remove(RemoteEntity entity) {
+		if (entity.indexSlot < 0)
+			return;
+		
+		Cell cell = cells.get(entity.indexKey);
+		RemoteEntity last = cell.entities[--cell.size];
+		cell.entities[entity.indexSlot] = last;
+		cell.xs[entity.indexSlot] = cell.xs[cell.size];
+		cell.ys[entity.indexSlot] = cell.ys[cell.size];
+		last.indexSlot = entity.indexSlot;
+		cell.entities[cell.size] = null;
+		entity.indexSlot = -1;
+		
+		if (cell.size == 0)
+			cells.remove(entity.indexKey);
+	}
+	
+	public void clear() {
+		for (int slot = 0; slot < cells.capacity(); slot++) {
+			Cell cell = cells.valueAt(slot);
+			for (int i = 0; (cell != null) && (i < cell.size); i++)
+				cell.entities[i].indexSlot = -1;
+		}
+		cells.clear();
+	}
+	
+	public void findInRange(Position center, long radius, Collection<? super RemoteEntity> result) {
+		long x0 = Math.max(cell(center.x - radius), minX);
+		long x1 = Math.min(cell(center.x + radius), maxX);
+		long y0 = Math.max(cell(center.y - radius), minY);
+		long y1 = Math.min(cell(center.y + radius), maxY);
+		
+		if ((x0 > x1) || (y0 > y1) || cells.isEmpty())
+			return;
+		
+		/* compares the cells of the query box with the occupied cells without overflowing */
+		if ((x1 - x0 + 1) > cells.size() / (y1 - y0 + 1)) {
+			for (int slot = 0; slot < cells.capacity(); slot++) {
+				if (cells.valueAt(slot) != null)
+					collectInRange(cells.valueAt(slot), center, radius, result);
+			}
+		} else {
+			for (long x = x0; x <= x1; x++) {
+				for (long y = y0; y <= y1; y++) {
+					Cell cell = cells.get(key(x, y));
+					if (cell != null)
+						collectInRange(cell, center, radius, result);
+				}
+			}
+		}
+	}
+	
+	private static void collectInRange(Cell cell, Position center, long radius, Collection<? super RemoteEntity> result) {
+		long[] xs = cell.xs;
+		long[] ys = cell.ys;
+		for (int i = 0; i < cell.size; i++) {
+			if ((Math.abs(xs[i] - center.x) <= radius) && (Math.abs(ys[i] - center.y) <= radius))
+				result.add(cell.entities[i]);
+		}
+	}
+	
+	public RemoteEntity findNearest(Position position) {
+		search(position, nearest, distance, false);
+		RemoteEntity result = nearest[0];
+		nearest[0] = null;
+		return result;
+	}
+	
+	public void findNearestPerQuadrant(Position origin, RemoteEntity[] result) {
+		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++)
+			result[quadrant] = null;
+		search(origin, result, distances, true);
+	}
+	
+	/* searches rings of cells of growing distance around the origin until no unvisited cell can
+	 * hold a nearer entity, or visits all occupied cells once a ring holds more cells than that */
+	private void search(Position origin, RemoteEntity[] nearest, long[] distances, boolean perQuadrant) {
+		if (cells.isEmpty())
+			return;
+		
+		long cx = cell(origin.x);
+		long cy = cell(origin.y);
+		long rings = Math.max(Math.max(cx - minX, maxX - cx), Math.max(cy - minY, maxY - cy));
+		
+		for (long ring = 0; ring <= rings; ring++) {
+			if (8 * ring > cells.size()) {
+				for (int slot = 0; slot < cells.capacity(); slot++) {
+					if (cells.valueAt(slot) != null)
+						searchCell(cells.valueAt(slot), origin, nearest, distances, perQuadrant);
+				}
+				return;
+			}
+			
+			/* cells outside the occupied bounds are skipped, which also keeps the keys within 32 bits */
+			for (long x = Math.max(cx - ring, minX); x <= Math.min(cx + ring, maxX); x++) {
+				boolean edge = (x == cx - ring) || (x == cx + ring);
+				for (long y = cy - ring; y <= cy + ring; y += edge ? 1 : 2 * Math.max(ring, 1)) {
+					if ((y < minY) || (y > maxY))
+						continue;
+					Cell cell = cells.get(key(x, y));
+					if (cell != null)
+						searchCell(cell, origin, nearest, distances, perQuadrant);
+				}
+			}
+			
+			/* entities outside the rings searched so far are further away than ring * cellSize */
+			boolean done = true;
+			for (int i = 0; i < nearest.length; i++) {
+				if ((nearest[i] == null) || (distances[i] > ring * cellSize))
+					done = false;
+			}
+			if (done)
+				return;
+		}
+	}
+	
+	/* distances holds the distance of the entities found so far */
+	private static void searchCell(Cell cell, Position origin, RemoteEntity[] nearest, long[] distances, boolean perQuadrant) {
+		long[] xs = cell.xs;
+		long[] ys = cell.ys;
+		for (int i = 0; i < cell.size; i++) {
+			int slot = 0;
+			if (perQuadrant) {
+				if (xs[i] > origin.x) slot += 1;
+				if (ys[i] > origin.y) slot += 2;
+			}
+			
+			long distance = Math.max(Math.abs(xs[i] - origin.x), Math.abs(ys[i] - origin.y));
+			if ((nearest[slot] == null) || (distance < distances[slot])) {
+				nearest[slot] = cell.entities[i];
+				distances[slot] = distance;
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package quon;
+
+/**
+ * JavaQuON
+ * 
+ * Histogram of non-negative values with buckets of doubling width: bucket 0 counts the value 0,
+ * bucket i the values from 2^(i-1) to 2^i - 1. Recording is a few arithmetic operations without
+ * allocating, percentiles are reported as the upper bound of their bucket and are thus accurate
+ * to a factor of two. Not thread safe, the node and its shards record and copy their histograms
+ * while they are locked.
+ */
+public class Histogram {
+	public static final int BUCKETS = 64;
+	
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long sum;
+	private long max;
+	
+	public Histogram() {
+	}
+	
+	Histogram(Histogram histogram) {
+		System.arraycopy(histogram.counts, 0, counts, 0, BUCKETS);
+		count = histogram.count;
+		sum = histogram.sum;
+		max = histogram.max;
+	}
+	
+	public void record(long value) {
+		value = Math.max(0, value);
+		counts[64 - Long.numberOfLeadingZeros(value)]++;
+		count++;
+		sum += value;
+		max = Math.max(max, value);
+	}
+	
+	/**
+	 * Adds the values recorded by another histogram.
+	 */
+	public void merge(Histogram histogram) {
+		for (int bucket = 0; bucket < BUCKETS; bucket++)
+			counts[bucket] += histogram.counts[bucket];
+		count += histogram.count;
+		sum += histogram.sum;
+		max = Math.max(max, histogram.max);
+	}
+	
+	public long getCount() {
+		return count;
+	}
+	
+	public long getSum() {
+		return sum;
+	}
+	
+	public long getMax() {
+		return max;
+	}
+	
+	public double getMean() {
+		return (count > 0) ? (double) sum / count : 0;
+	}
+	
+	public long getBucketCount(int bucket) {
+		return counts[bucket];
+	}
+	
+	/**
+	 * Upper bound of the bucket holding the given percentile (0 to 100) of the values recorded,
+	 * at most the largest value recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts[bucket];
+			if ((seen >= rank) && (seen > 0))
+				return Math.min((bucket == 0) ? 0 : (1L << bucket) - 1, max);
+		}
+		return max;
+	}
+}
@@ -1,45 +1,139 @@
 package quon;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
 
 /**
  * JavaQuON
  *
- * In JavaQuON, a peer is identified by its IPv4 address and port number.
+ * In JavaQuON, a peer is identified by its IPv4 address and port number. Both are packed into
+ * a single long key, which is all that hashing and comparing identifiers looks at. The
+ * InetAddress is only created when a socket needs it.
+ * 
+ * Entities hosted by a MultiNode share the address and port of their host and are told apart by
+ * an unsigned 16 bit entity sub-identifier, which is 0 for plain peers and part of the key.
  */
 public class Identifier {
-	public static final int SIZE = 4 + Integer.SIZE;
+	public static final int SIZE         = 4 + Integer.BYTES; /* IPv4 address and port */
+	public static final int COMPACT_SIZE = 4 + Short.BYTES;   /* IPv4 address and unsigned 16 bit port */
 	
-	public final InetAddress address;
+	public final long key;
+	public final int ip;
 	public final int port;
+	public final int entity;
+	
+	private InetAddress address;
+	private InetSocketAddress socketAddress;
 	
 	public Identifier(InetAddress address, int port) {
+		this(toInt(address), port);
 		this.address = address;
+	}
+	
+	public Identifier(int ip, int port) {
+		this(ip, port, 0);
+	}
+	
+	public Identifier(int ip, int port, int entity) {
+		this.ip = ip;
 		this.port = port;
+		this.entity = entity & 0xFFFF;
+		this.key = entityKey(key(ip, port), this.entity);
 	}
 	
-	public Identifier(byte[] data, int offset) {
-		InetAddress temp = null;
-		try {
-			temp = InetAddress.getByAddress(Arrays.copyOfRange(data, offset, offset + 4));
-		} catch (UnknownHostException e) { }
-		address = temp; 
-		port    = ByteBuffer.wrap(data, offset + 4, Integer.SIZE).order(ByteOrder.BIG_ENDIAN).getInt();
+	/**
+	 * Identifier of an entity hosted at the given endpoint.
+	 */
+	public Identifier(Identifier endpoint, int entity) {
+		this(endpoint.ip, endpoint.port, entity);
+		this.address = endpoint.address;
+		this.socketAddress = endpoint.socketAddress;
 	}
-
+	
+	public Identifier(ByteBuffer data, int offset) {
+		this(data, offset, false);
+	}
+	
+	public Identifier(ByteBuffer data, int offset, boolean compact) {
+		this(data, offset, compact, 0);
+	}
+	
+	public Identifier(ByteBuffer data, int offset, boolean compact, int entity) {
+		this(data.getInt(offset), compact ? (data.getShort(offset + 4) & 0xFFFF) : data.getInt(offset + 4), entity);
+	}
+	
+	/**
+	 * Identifier with the given key, the inverse of the key field.
+	 */
+	public static Identifier ofKey(long key) {
+		return new Identifier((int) (key >>> 32), (int) key & 0xFFFF, (int) (key >>> 16) & 0xFFFF);
+	}
+	
+	public static long key(int ip, int port) {
+		return ((long) ip << 32) | (port & 0xFFFFL);
+	}
+	
+	/**
+	 * Key of the entity with the given sub-identifier hosted at the endpoint with the given key.
+	 */
+	public static long entityKey(long endpointKey, int entity) {
+		return endpointKey | ((long) (entity & 0xFFFF) << 16);
+	}
+	
+	/**
+	 * Key of the endpoint an entity is hosted at, which is the key itself for plain peers.
+	 */
+	public static long endpointKey(long key) {
+		return key & 0xFFFFFFFF0000FFFFL;
+	}
+	
+	/**
+	 * Reads the key of an identifier stored at the given offset without creating the identifier.
+	 */
+	public static long key(ByteBuffer data, int offset, boolean compact) {
+		return key(data.getInt(offset), compact ? (data.getShort(offset + 4) & 0xFFFF) : data.getInt(offset + 4));
+	}
+	
+	/**
+	 * Key of the identifier of a socket address. Uses the fact that the hash code of an
+	 * Inet4Address is its address, which avoids copying the address bytes.
+	 */
+	public static long key(InetSocketAddress socketAddress) {
+		return key(toInt(socketAddress.getAddress()), socketAddress.getPort());
+	}
+	
+	private static int toInt(InetAddress address) {
+		if (address instanceof Inet4Address)
+			return address.hashCode();
+		
+		byte[] ip = address.getAddress();
+		return ((ip[0] & 0xFF) << 24) | ((ip[1] & 0xFF) << 16) | ((ip[2] & 0xFF) << 8) | (ip[3] & 0xFF);
+	}
+	
+	public InetAddress getAddress() {
+		if (address == null) {
+			byte[] bytes = new byte[] { (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip };
+			try {
+				address = InetAddress.getByAddress(bytes);
+			} catch (UnknownHostException e) { }
+		}
+		return address;
+	}
+	
+	public InetSocketAddress getSocketAddress() {
+		if (socketAddress == null)
+			socketAddress = new InetSocketAddress(getAddress(), port);
+		return socketAddress;
+	}
+	
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((address == null) ? 0 : address.hashCode());
-		result = prime * result + port;
-		return result;
+		return Long.hashCode(key * 0x9E3779B97F4A7C15L);
 	}
-
+	
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -49,31 +143,21 @@ public class Identifier {
 		if (getClass() != obj.getClass())
 			return false;
 		Identifier other = (Identifier) obj;
-		if (address == null) {
-			if (other.address != null)
-				return false;
-		} else if (!address.equals(other.address))
-			return false;
-		if (port != other.port)
-			return false;
-		return true;
+		return key == other.key;
 	}
 	
-	public void insertData(byte data[], int offset) {
-		byte[] ip = address.getAddress();
-		data[offset    ] = ip[0];
-		data[offset + 1] = ip[1];
-		data[offset + 2] = ip[2];
-		data[offset + 3] = ip[3];
-		ByteBuffer.wrap(data, offset + 4, Integer.SIZE).order(ByteOrder.BIG_ENDIAN).putInt(port);
+	public void insertData(ByteBuffer data, int offset) {
+		data.putInt(offset, ip);
+		data.putInt(offset + 4, port);
 	}
 	
-	private String ipToString(byte[] ip) {
-		return (ip[0] & 0xFF) + "." + (ip[1] & 0xFF) + "." + (ip[2] & 0xFF) + "." + (ip[3] & 0xFF);
+	public void insertCompactData(ByteBuffer data, int offset) {
+		data.putInt(offset, ip);
+		data.putShort(offset + 4, (short) port);
 	}
 	
 	public String toString() {
-		
-		return "[" + ipToString(address.getAddress()) + ":" + port + "]"; 
+		return "[" + (ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF) + ":" + port +
+			   ((entity != 0) ? "#" + entity : "") + "]"; 
 	}
 }
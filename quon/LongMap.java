@@ -0,0 +1,156 @@
+package quon;
+
+/**
+ * JavaQuON
+ * 
+ * Map from primitive long keys to values using open addressing with linear probing. Keys are
+ * stored unboxed in a flat array, so lookups neither allocate nor follow references until the
+ * value is returned. Values must not be null, an empty slot is marked by a null value.
+ * 
+ * Slots can be iterated with capacity(), keyAt(int) and valueAt(int), which skip no work but allocate no
+ * iterator. The map must not be changed while iterating.
+ */
+public class LongMap<V> {
+	private static final int MINIMUM_CAPACITY = 16;
+	
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+	
+	public LongMap() {
+		this(MINIMUM_CAPACITY);
+	}
+	
+	public LongMap(int expectedSize) {
+		int capacity = MINIMUM_CAPACITY;
+		while (capacity < 2 * expectedSize)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+	
+	private void allocate(int capacity) {
+		keys   = new long[capacity];
+		values = new Object[capacity];
+		mask   = capacity - 1;
+	}
+	
+	/* spreads the key bits, as identifiers and cell keys differ mostly in their low and high words */
+	private int slot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return (V) values[i];
+		}
+		return null;
+	}
+	
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new NullPointerException();
+		
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V previous = (V) values[i];
+				values[i] = value;
+				return previous;
+			}
+		}
+		
+		keys[i] = key;
+		values[i] = value;
+		if (++size > (mask + 1) / 2)
+			resize(2 * (mask + 1));
+		return null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				break;
+		}
+		if (values[i] == null)
+			return null;
+		
+		V previous = (V) values[i];
+		size--;
+		
+		/* shift following entries of the probe sequence back instead of leaving a tombstone */
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		values[i] = null;
+		return previous;
+	}
+	
+	public void clear() {
+		if (size == 0)
+			return;
+		
+		for (int i = 0; i < values.length; i++)
+			values[i] = null;
+		size = 0;
+	}
+	
+	public int capacity() {
+		return values.length;
+	}
+	
+	/**
+	 * Key stored in the given slot, only meaningful if the slot is not empty.
+	 */
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+	
+	/**
+	 * Value stored in the given slot or null if the slot is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot) {
+		return (V) values[slot];
+	}
+	
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] == null)
+				continue;
+			
+			int j = slot(oldKeys[i]);
+			while (values[j] != null)
+				j = (j + 1) & mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package quon;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * JavaQuON
+ * 
+ * In-memory network connecting loopback transports by the keys of their identifiers. Datagrams
+ * sent are delayed by the latency plus a random jitter, some are lost or delayed further so that
+ * they arrive out of order. The network runs on the clock it was created with and is driven by a
+ * single thread, which delivers the datagrams once they are due, like the simulator does.
+ */
+public class LoopbackNetwork {
+	static class Datagram {
+		final long time;      /* time (ms) the datagram arrives */
+		final long sequence;  /* datagrams arriving at the same time are delivered in the order they were sent */
+		final Identifier origin;
+		final long destination;
+		final byte[] data;
+		
+		Datagram(long time, long sequence, Identifier origin, long destination, byte[] data) {
+			this.time = time;
+			this.sequence = sequence;
+			this.origin = origin;
+			this.destination = destination;
+			this.data = data;
+		}
+	}
+	
+	private final Clock clock;
+	private final Random random;
+	private final LongMap<LoopbackTransport> transports = new LongMap<LoopbackTransport>();
+	private final PriorityQueue<Datagram> datagrams = new PriorityQueue<Datagram>(1024, new Comparator<Datagram>() {
+		public int compare(Datagram a, Datagram b) {
+			return (a.time != b.time) ? Long.compare(a.time, b.time) : Long.compare(a.sequence, b.sequence);
+		}
+	});
+	private long sequence;
+	
+	private long latency;             /* delay (ms) of all datagrams */
+	private int jitter;               /* additional random delay (ms) up to which datagrams are delayed */
+	private double loss;              /* probability that a datagram is lost */
+	private double reordering;        /* probability that a datagram is delayed further */
+	private long reorderingDelay;     /* further delay (ms) of those datagrams */
+	
+	long sent;           /* datagrams sent */
+	long lost;           /* datagrams lost */
+	long undeliverable;  /* datagrams sent to identifiers no open transport has */
+	
+	public LoopbackNetwork(Clock clock, Random random) {
+		this.clock = clock;
+		this.random = random;
+	}
+	
+	public void setLatency(long latency, int jitter) {
+		this.latency = Math.max(0, latency);
+		this.jitter = Math.max(0, jitter);
+	}
+	
+	public void setLoss(double loss) {
+		this.loss = loss;
+	}
+	
+	/**
+	 * Delays datagrams with the given probability by the given time (ms), so that they arrive
+	 * after datagrams sent later.
+	 */
+	public void setReordering(double reordering, long reorderingDelay) {
+		this.reordering = reordering;
+		this.reorderingDelay = Math.max(0, reorderingDelay);
+	}
+	
+	void attach(LoopbackTransport transport) {
+		transports.put(transport.identifier.key, transport);
+	}
+	
+	void detach(LoopbackTransport transport) {
+		if (transports.get(transport.identifier.key) == transport)
+			transports.remove(transport.identifier.key);
+	}
+	
+	void send(Identifier origin, Identifier destination, byte[] data) {
+		sent++;
+		if ((loss > 0) && (random.nextDouble() < loss)) {
+			lost++;
+			return;
+		}
+		
+		long delay = latency + ((jitter > 0) ? random.nextInt(jitter + 1) : 0);
+		if ((reordering > 0) && (random.nextDouble() < reordering))
+			delay += reorderingDelay;
+		datagrams.add(new Datagram(clock.millis() + delay, sequence++, origin, destination.key, data));
+	}
+	
+	/**
+	 * Time (ms) the next datagram arrives or Long.MAX_VALUE if none is on its way.
+	 */
+	public long nextDelivery() {
+		return datagrams.isEmpty() ? Long.MAX_VALUE : datagrams.peek().time;
+	}
+	
+	/**
+	 * Moves the next datagram into the inbox of its destination and returns the transport or
+	 * null if no open transport has the identifier it was sent to.
+	 */
+	public LoopbackTransport deliver() {
+		Datagram datagram = datagrams.poll();
+		LoopbackTransport transport = transports.get(datagram.destination);
+		if (transport == null) {
+			undeliverable++;
+			return null;
+		}
+		
+		transport.inbox.add(datagram);
+		return transport;
+	}
+}
@@ -0,0 +1,58 @@
+package quon;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * JavaQuON
+ * 
+ * Transport exchanging datagrams over a loopback network in memory instead of sockets. Receiving
+ * does not block, it returns the datagrams the network delivered to the transport so far.
+ */
+public class LoopbackTransport implements Transport {
+	private static final int POOL_CAPACITY = 4;
+	
+	private final LoopbackNetwork network;
+	private final BufferPool bufferPool = new BufferPool(Packet.MAXIMUM_SIZE, POOL_CAPACITY, false);
+	final ArrayDeque<LoopbackNetwork.Datagram> inbox = new ArrayDeque<LoopbackNetwork.Datagram>();
+	
+	Identifier identifier;
+	
+	long datagrams;  /* datagrams sent */
+	long bytes;      /* bytes sent, without the IP and UDP headers */
+	
+	public LoopbackTransport(LoopbackNetwork network) {
+		this.network = network;
+	}
+	
+	public void open(Identifier identifier) throws IOException {
+		this.identifier = identifier;
+		network.attach(this);
+	}
+	
+	public void close() {
+		if (identifier != null)
+			network.detach(this);
+		inbox.clear();
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	public boolean receive(Packet packet) throws IOException {
+		LoopbackNetwork.Datagram datagram = inbox.poll();
+		if (datagram == null)
+			return false;
+		
+		packet.setDatagram(datagram.data);
+		packet.origin = datagram.origin;
+		return true;
+	}
+	
+	public void send(Packet packet, Identifier destination) throws IOException {
+		datagrams++;
+		bytes += packet.data.limit();
+		network.send(identifier, destination, packet.getDatagram());
+	}
+}
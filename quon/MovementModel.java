@@ -0,0 +1,188 @@
+package quon;
+
+import java.util.Random;
+
+/**
+ * JavaQuON
+ * 
+ * Movement of the entities simulated by the simulator inside a square world. The entities are
+ * placed once and then moved by the elapsed time in each step, using the random generator of the
+ * simulator only, so that a simulation with the same seed moves the entities the same way.
+ */
+public interface MovementModel {
+	public void place(Entity[] entities, Random random);
+	
+	public void move(Entity[] entities, long elapsed, Random random);
+	
+	/**
+	 * Entities move straight at a constant speed and bounce off the borders of the world, like
+	 * in the test application.
+	 */
+	public static class RandomWalk implements MovementModel {
+		private final long worldSize;
+		private final long speed;  /* units per second */
+		private long[] dx;
+		private long[] dy;
+		
+		public RandomWalk(long worldSize, long speed) {
+			this.worldSize = worldSize;
+			this.speed = speed;
+		}
+		
+		public void place(Entity[] entities, Random random) {
+			dx = new long[entities.length];
+			dy = new long[entities.length];
+			for (int i = 0; i < entities.length; i++) {
+				entities[i].position.x = (long) (random.nextDouble() * worldSize);
+				entities[i].position.y = (long) (random.nextDouble() * worldSize);
+				dx[i] = random.nextBoolean() ? -1 : 1;
+				dy[i] = random.nextBoolean() ? -1 : 1;
+			}
+		}
+		
+		public void move(Entity[] entities, long elapsed, Random random) {
+			long step = speed * elapsed / 1000;
+			for (int i = 0; i < entities.length; i++) {
+				Position position = entities[i].position;
+				position.x += dx[i] * step;
+				position.y += dy[i] * step;
+				if ((position.x < 0) || (position.x > worldSize)) {
+					dx[i] = -dx[i];
+					position.x = Math.max(0, Math.min(worldSize, position.x));
+				}
+				if ((position.y < 0) || (position.y > worldSize)) {
+					dy[i] = -dy[i];
+					position.y = Math.max(0, Math.min(worldSize, position.y));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Entities move at a constant speed towards a random waypoint, pause there for a while and
+	 * then pick the next waypoint.
+	 */
+	public static class RandomWaypoint implements MovementModel {
+		private final long worldSize;
+		private final long speed;  /* units per second */
+		private final long pause;  /* longest pause (ms) at a waypoint */
+		private long[] targetX;
+		private long[] targetY;
+		private long[] paused;     /* remaining pause (ms) */
+		
+		public RandomWaypoint(long worldSize, long speed, long pause) {
+			this.worldSize = worldSize;
+			this.speed = speed;
+			this.pause = pause;
+		}
+		
+		public void place(Entity[] entities, Random random) {
+			targetX = new long[entities.length];
+			targetY = new long[entities.length];
+			paused = new long[entities.length];
+			for (int i = 0; i < entities.length; i++) {
+				entities[i].position.x = (long) (random.nextDouble() * worldSize);
+				entities[i].position.y = (long) (random.nextDouble() * worldSize);
+				targetX[i] = (long) (random.nextDouble() * worldSize);
+				targetY[i] = (long) (random.nextDouble() * worldSize);
+			}
+		}
+		
+		public void move(Entity[] entities, long elapsed, Random random) {
+			for (int i = 0; i < entities.length; i++) {
+				if (paused[i] > 0) {
+					paused[i] -= elapsed;
+					continue;
+				}
+				
+				Position position = entities[i].position;
+				if (moveTowards(position, targetX[i], targetY[i], speed * elapsed / 1000)) {
+					targetX[i] = (long) (random.nextDouble() * worldSize);
+					targetY[i] = (long) (random.nextDouble() * worldSize);
+					paused[i] = (pause > 0) ? (long) (random.nextDouble() * pause) : 0;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Entities gather around a few hotspots: each moves like a random waypoint entity, but its
+	 * waypoints lie close to a randomly picked hotspot most of the time, which crowds the areas
+	 * of interest there.
+	 */
+	public static class Hotspots implements MovementModel {
+		private final long worldSize;
+		private final long speed;        /* units per second */
+		private final long spread;       /* distance up to which waypoints lie around a hotspot */
+		private final long[] hotspotX;
+		private final long[] hotspotY;
+		private long[] targetX;
+		private long[] targetY;
+		
+		public Hotspots(long worldSize, long speed, int hotspots, long spread, Random random) {
+			this.worldSize = worldSize;
+			this.speed = speed;
+			this.spread = spread;
+			hotspotX = new long[hotspots];
+			hotspotY = new long[hotspots];
+			for (int i = 0; i < hotspots; i++) {
+				hotspotX[i] = (long) (random.nextDouble() * worldSize);
+				hotspotY[i] = (long) (random.nextDouble() * worldSize);
+			}
+		}
+		
+		public void place(Entity[] entities, Random random) {
+			targetX = new long[entities.length];
+			targetY = new long[entities.length];
+			for (int i = 0; i < entities.length; i++) {
+				pickWaypoint(i, random);
+				entities[i].position.x = targetX[i];
+				entities[i].position.y = targetY[i];
+				pickWaypoint(i, random);
+			}
+		}
+		
+		public void move(Entity[] entities, long elapsed, Random random) {
+			for (int i = 0; i < entities.length; i++) {
+				Position position = entities[i].position;
+				if (moveTowards(position, targetX[i], targetY[i], speed * elapsed / 1000))
+					pickWaypoint(i, random);
+			}
+		}
+		
+		/* every tenth waypoint lies anywhere in the world */
+		private void pickWaypoint(int i, Random random) {
+			if ((hotspotX.length == 0) || (random.nextInt(10) == 0)) {
+				targetX[i] = (long) (random.nextDouble() * worldSize);
+				targetY[i] = (long) (random.nextDouble() * worldSize);
+			} else {
+				int hotspot = random.nextInt(hotspotX.length);
+				targetX[i] = clamp(hotspotX[hotspot] + (long) (random.nextGaussian() * spread));
+				targetY[i] = clamp(hotspotY[hotspot] + (long) (random.nextGaussian() * spread));
+			}
+		}
+		
+		private long clamp(long coordinate) {
+			return Math.max(0, Math.min(worldSize, coordinate));
+		}
+	}
+	
+	/**
+	 * Moves the position by the given distance towards the target, returns true once it reached
+	 * the target.
+	 */
+	private static boolean moveTowards(Position position, long targetX, long targetY, long distance) {
+		double dx = targetX - position.x;
+		double dy = targetY - position.y;
+		double length = Math.sqrt(dx * dx + dy * dy);
+		if (length <= distance) {
+			position.x = targetX;
+			position.y = targetY;
+			return true;
+		}
+		
+		position.x += Math.round(dx * distance / length);
+		position.y += Math.round(dy * distance / length);
+		return false;
+	}
+}
@@ -0,0 +1,823 @@
+package quon;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * JavaQuON
+ * 
+ * Node variant hosting many local entities behind one endpoint, such as the non-player characters
+ * of a game server. Hosted entities are created with addEntity and told apart by the entity
+ * sub-identifier of their identifiers. All of them share one store and spatial index of the
+ * remote entities, and each tick a single batch per remote endpoint carries the MOVE records of
+ * all hosted entities relevant to it, so memory and packet rates grow with the remote peers
+ * instead of with the hosted entities times their neighbors. Areas of interest among hosted
+ * entities are answered locally.
+ * 
+ * A hosted entity is sent to the remote entities inside its area of interest, to those it is
+ * inside the area of interest of and to the nearest remote entity in each quadrant. The remote
+ * entities are told about the other remote entities inside their area of interest with NEIGHBOR
+ * records, and remote entities no hosted entity needs are dropped after the timeout. Hosted
+ * entities are only visible to peers speaking version 1. The stamps, introductions and departed
+ * entities are kept like a Node keeps them, and the ticks are driven the same way.
+ */
+public class MultiNode implements Runnable {
+	private static final int MAXIMUM_INTRODUCTIONS = 1024;     /* introductions remembered per endpoint at most */
+	private static final int MAXIMUM_ENTITY = 0xFFFF;          /* highest entity sub-identifier */
+	private static final int JOINS_PER_TICK = 4;               /* hosted entities joining their region per tick at most */
+	private static final int LEAVING_MARGIN = 4;               /* fraction of an area of interest beyond it hosted entities are still sent */
+	
+	/**
+	 * Records for one remote endpoint, collected during a tick.
+	 */
+	private static class Destination {
+		final Identifier identifier;
+		final ArrayList<RemoteEntity> requests = new ArrayList<RemoteEntity>(); /* hosted entities sent as MOVE_BNR */
+		final ArrayList<RemoteEntity> moves    = new ArrayList<RemoteEntity>(); /* hosted entities sent as MOVE */
+		final ArrayList<RemoteEntity> targets  = new ArrayList<RemoteEntity>(); /* remote entities at the endpoint needed by a hosted entity */
+		final LongMap<RemoteEntity.Introduction> introductions = new LongMap<RemoteEntity.Introduction>();
+		RemoteEntity last;  /* hosted entity added last, which is not added twice */
+		long lastUsed;      /* tick the endpoint was last sent to */
+		
+		Destination(Identifier identifier) {
+			this.identifier = identifier;
+		}
+	}
+	
+	/**
+	 * Bootstrap snapshot a remote node sends in answer to the JOIN of a hosted entity, whose lost
+	 * fragments are asked for like a joining Node asks for them.
+	 */
+	private static class Bootstrap {
+		final Identifier source;
+		final int snapshot;
+		final long time;  /* time (ms) the first record of the snapshot arrived */
+		final BitSet received = new BitSet();
+		int version;
+		int fragments = -1;  /* fragments announced by the JOIN_ACK, -1 until it arrived */
+		long lastFragment;
+		
+		Bootstrap(Identifier source, int snapshot, long time) {
+			this.source = source;
+			this.snapshot = snapshot;
+			this.time = time;
+		}
+	}
+	
+	private final Identifier identifier;
+	private final Transport transport;
+	
+	/* hosted entities and their copies as of the last tick, so that they can be moved while the node works,
+	 * the last contact of a copy is the time it last joined its region */
+	private final LongMap<Entity> entities = new LongMap<Entity>();
+	private final ArrayList<RemoteEntity> hosted = new ArrayList<RemoteEntity>();
+	private final SpatialIndex hostedIndex;
+	private int nextEntity = 1;
+	
+	private final LongMap<RemoteEntity> neighbors = new LongMap<RemoteEntity>();
+	private final SpatialIndex spatialIndex;
+	private long maximumAoiRadius;  /* largest area of interest radius of the remote entities */
+	private final EntityProtocol protocol = new EntityProtocol() {
+		void send(Packet packet, Identifier destination) {
+			datagrams++;
+			packet.send(destination, transport);
+		}
+		
+		void retryJoin(long currentTime) {
+			MultiNode.this.retryJoin(currentTime);
+		}
+	};
+	
+	private final LongMap<Destination> destinations = new LongMap<Destination>();
+	private final ArrayList<Destination> pending = new ArrayList<Destination>(); /* endpoints sent to this tick */
+	private final ArrayList<Destination> unused  = new ArrayList<Destination>();
+	private final ArrayList<RemoteEntity> candidates = new ArrayList<RemoteEntity>();
+	private final RemoteEntity[] nearest = new RemoteEntity[Position.QUADRANTS];
+	
+	private Clock clock = Clock.SYSTEM;
+	private Packet receivePacket;
+	private Packet sendPacket;
+	private Identifier bootstrap;
+	private long nextJoin;  /* time (ms) the JOIN is sent again unless it is acknowledged */
+	private final CountDownLatch connected = new CountDownLatch(1);
+	
+	/* bootstrap snapshots being received by the key of the endpoint sending them */
+	private final LongMap<Bootstrap> bootstraps = new LongMap<Bootstrap>();
+	private final ArrayList<Bootstrap> expiredBootstraps = new ArrayList<Bootstrap>();
+	
+	private int mtu            = Packet.MAXIMUM_SIZE;
+	private int updateInterval = 167;
+	private int timeout        = 10000;
+	private final TimingWheel failureDetector = new TimingWheel(updateInterval, timeout);
+	private final ArrayList<RemoteEntity> expired = new ArrayList<RemoteEntity>();
+	
+	private final Ticker ticker = new Ticker() {
+		void tick(long scheduledTime) {
+			MultiNode.this.tick(scheduledTime);
+		}
+	};
+	private boolean virtualThreads;
+	private Thread receiveThread;
+	private volatile boolean closed;
+	
+	long ticks;            /* number of update ticks executed */
+	long tickLateness;     /* accumulated delay (ms) of update ticks behind their schedule */
+	long maxTickLateness;  /* maximum delay (ms) of an update tick behind its schedule */
+	long datagrams;        /* datagrams sent */
+	long snapshots;        /* bootstrap snapshots received completely */
+	
+	/**
+	 * Creates a node hosting entities at the given endpoint. The area of interest radius typical
+	 * for the entities sizes the cells of the spatial indices.
+	 */
+	public MultiNode(Identifier identifier, long aoiRadius) {
+		this(identifier, aoiRadius, new ChannelTransport());
+	}
+	
+	public MultiNode(Identifier identifier, long aoiRadius, Transport transport) {
+		this.identifier = identifier;
+		this.transport = transport;
+		this.spatialIndex = new GridIndex(aoiRadius);
+		this.hostedIndex = new GridIndex(aoiRadius);
+	}
+	
+	/**
+	 * Sets the maximum size of the datagrams sent by this node.
+	 */
+	public void setMtu(int mtu) {
+		this.mtu = Math.max(Packet.MINIMUM_BATCH_SIZE, Math.min(mtu, Packet.MAXIMUM_SIZE));
+	}
+	
+	/**
+	 * Runs the receive loop and the update ticks on virtual threads, see Node.setVirtualThreads.
+	 * Has to be set before joining. Returns whether virtual threads are used.
+	 */
+	public boolean setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+		return virtualThreads && VirtualThreads.AVAILABLE;
+	}
+	
+	/* has to be set before joining */
+	void setClock(Clock clock) {
+		this.clock = clock;
+	}
+	
+	/**
+	 * Creates a hosted entity at the given position, which is moved by changing its position.
+	 * Hosted entities far from all known remote entities join the network in their region.
+	 */
+	public synchronized Entity addEntity(Position position, long aoiRadius) {
+		if (entities.size() >= MAXIMUM_ENTITY)
+			throw new IllegalStateException("all entity sub-identifiers are in use");
+		
+		while (entities.containsKey(Identifier.entityKey(identifier.key, nextEntity)))
+			nextEntity = nextEntity % MAXIMUM_ENTITY + 1;
+		Entity entity = new Entity(new Identifier(identifier, nextEntity));
+		nextEntity = nextEntity % MAXIMUM_ENTITY + 1;
+		
+		entity.position.setTo(position);
+		entity.aoiRadius = aoiRadius;
+		entities.put(entity.identifier.key, entity);
+		
+		RemoteEntity copy = new RemoteEntity(entity.identifier);
+		copy.position.setTo(position);
+		copy.aoiRadius = aoiRadius;
+		hosted.add(copy);
+		hostedIndex.add(copy);
+		return entity;
+	}
+	
+	/**
+	 * Removes a hosted entity, the endpoints it was last sent to are told that it left.
+	 */
+	public synchronized void removeEntity(Entity entity) {
+		if (entities.remove(entity.identifier.key) == null)
+			return;
+		
+		RemoteEntity copy = null;
+		for (int i = 0; i < hosted.size(); i++) {
+			if (hosted.get(i).identifier.key == entity.identifier.key) {
+				copy = hosted.get(i);
+				hosted.set(i, hosted.get(hosted.size() - 1));
+				hosted.remove(hosted.size() - 1);
+				break;
+			}
+		}
+		hostedIndex.remove(copy);
+		
+		if (closed || (sendPacket == null))
+			return;
+		
+		for (Destination destination : pending) {
+			if (!destination.moves.contains(copy) && !destination.requests.contains(copy))
+				continue;
+			
+			sendPacket.setVersion(versionOf(destination));
+			sendPacket.setBatchPacket();
+			sendPacket.addLeaveRecord(copy.identifier.entity, mtu);
+			sendBatch(destination.identifier);
+		}
+	}
+	
+	/**
+	 * Adds read-only copies of the entities inside the area of interest of the given hosted entity
+	 * to the result, remote entities as of the last datagrams received and hosted entities as of
+	 * the last tick.
+	 */
+	public synchronized void entitiesInAoi(Entity entity, Collection<? super AoiEntity> result) {
+		candidates.clear();
+		spatialIndex.findInRange(entity.position, entity.aoiRadius, candidates);
+		for (RemoteEntity neighbor : candidates)
+			result.add(AoiSnapshot.copyOf(neighbor));
+		
+		candidates.clear();
+		hostedIndex.findInRange(entity.position, entity.aoiRadius, candidates);
+		for (RemoteEntity copy : candidates) {
+			if (copy.identifier.key != entity.identifier.key)
+				result.add(AoiSnapshot.copyOf(copy));
+		}
+	}
+	
+	public List<AoiEntity> entitiesInAoi(Entity entity) {
+		ArrayList<AoiEntity> result = new ArrayList<AoiEntity>();
+		entitiesInAoi(entity, result);
+		return result;
+	}
+	
+	public void run() {
+		while(!closed) {
+			try {
+				if (transport.receive(receivePacket))
+					handlePacket(receivePacket);
+			} catch (IOException e) {
+				if (!closed)
+					e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Enters the network via the given node or creates a new network if it is null, waiting at most
+	 * for the timeout after which peers are detected as inactive.
+	 */
+	public boolean join(Identifier bootstrap) {
+		return join(bootstrap, timeout);
+	}
+	
+	/**
+	 * Enters the network via the given node or creates a new network if it is null. The JOIN is sent
+	 * again while it is not acknowledged, like a Node sends it. Returns false and closes the node if
+	 * it was not acknowledged within the timeout (ms). The hosted entities join their regions during
+	 * the following ticks.
+	 */
+	public boolean join(Identifier bootstrap, long joinTimeout) {
+		try {
+			transport.open(identifier);
+		} catch (IOException e) {
+			return false;
+		}
+		
+		sendPacket = new Packet(transport.getBufferPool().acquire());
+		receivePacket = new Packet(transport.getBufferPool().acquire());
+		if (virtualThreads) {
+			receiveThread = VirtualThreads.FACTORY.newThread(this);
+		} else {
+			receiveThread = new Thread(this, "JavaQuON MultiNode " + identifier);
+		}
+		receiveThread.start();
+		
+		if (bootstrap != null) {
+			boolean joined = false;
+			synchronized (this) {
+				this.bootstrap = bootstrap;
+				nextJoin = clock.millis();
+				retryJoin(nextJoin);
+			}
+			
+			try {
+				joined = protocol.awaitJoin(connected, clock, joinTimeout);
+			} catch (InterruptedException e) { e.printStackTrace(); }
+			if (!joined) {
+				close();
+				return false;
+			}
+		}
+		
+		ticker.start(updateInterval, virtualThreads);
+		return true;
+	}
+	
+	/* sends the JOIN again while it is not acknowledged, the fragments of the snapshot answering it are requested by the ticks */
+	synchronized void retryJoin(long currentTime) {
+		if (closed || (connected.getCount() == 0) || (currentTime < nextJoin))
+			return;
+		
+		sendPacket.setVersion(Packet.VERSION);
+		sendPacket.setJoinPacket(hosted.isEmpty() ? new Entity(identifier) : hosted.get(0));
+		sendPacket.send(bootstrap, transport);
+		if (!hosted.isEmpty())
+			hosted.get(0).lastContact = currentTime;
+		nextJoin = currentTime + EntityProtocol.JOIN_RETRY_INTERVAL;
+	}
+	
+	/**
+	 * Leaves the network gracefully: all known endpoints are sent a LEAVE for this node and the
+	 * entities it hosts. Closes the node afterwards.
+	 */
+	public void leave() {
+		synchronized (this) {
+			if (!closed && (sendPacket != null))
+				protocol.sendLeave(sendPacket, neighbors, Packet.VERSION, mtu);
+		}
+		close();
+	}
+	
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			ticker.cancel();
+			transport.close();
+		}
+	}
+	
+	synchronized void tick(long scheduledTime) {
+		if (closed)
+			return;
+		
+		long currentTime = clock.millis();
+		long lateness = Math.max(0, currentTime - scheduledTime);
+		ticks++;
+		tickLateness += lateness;
+		maxTickLateness = Math.max(maxTickLateness, lateness);
+		
+		updateHosted();
+		joinRegions(currentTime);
+		collectDestinations();
+		for (Destination destination : pending)
+			sendDestination(destination, currentTime);
+		requestFragments(currentTime);
+		checkForTimeOuts(currentTime);
+	}
+	
+	private void updateHosted() {
+		for (RemoteEntity copy : hosted) {
+			Entity entity = entities.get(copy.identifier.key);
+			copy.position.setTo(entity.position);
+			copy.aoiRadius = entity.aoiRadius;
+			hostedIndex.update(copy);
+		}
+	}
+	
+	/* hosted entities without a known remote entity nearby send a JOIN, whose answer introduces the
+	 * remote entities of their region, and try again after the timeout */
+	private void joinRegions(long currentTime) {
+		if ((bootstrap == null) && neighbors.isEmpty())
+			return;
+		
+		int joins = 0;
+		for (RemoteEntity copy : hosted) {
+			if ((joins >= JOINS_PER_TICK) || (currentTime - copy.lastContact < timeout))
+				continue;
+			
+			RemoteEntity nearestEntity = spatialIndex.findNearest(copy.position);
+			if ((nearestEntity != null) && (nearestEntity.position.distanceTo(copy.position) <= copy.aoiRadius))
+				continue;
+			
+			sendPacket.setVersion(Packet.VERSION);
+			sendPacket.setJoinPacket(copy);
+			sendBatch((nearestEntity != null) ? nearestEntity.identifier : bootstrap);
+			copy.lastContact = currentTime;
+			joins++;
+		}
+	}
+	
+	/* decides which hosted entities are sent to which remote endpoint */
+	private void collectDestinations() {
+		for (Destination destination : pending) {
+			destination.requests.clear();
+			destination.moves.clear();
+			destination.targets.clear();
+			destination.last = null;
+		}
+		pending.clear();
+		
+		for (RemoteEntity copy : hosted) {
+			spatialIndex.findNearestPerQuadrant(copy.position, nearest);
+			for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++) {
+				if (nearest[quadrant] != null)
+					addMove(nearest[quadrant], copy, true);
+			}
+			
+			/* entities leaving an area of interest are sent a little longer, so that the last position sent is outside */
+			candidates.clear();
+			spatialIndex.findInRange(copy.position, withMargin(Math.max(copy.aoiRadius, maximumAoiRadius)), candidates);
+			for (RemoteEntity neighbor : candidates) {
+				long distance = copy.position.distanceTo(neighbor.position);
+				if ((distance <= withMargin(copy.aoiRadius)) || (distance <= withMargin(neighbor.aoiRadius)))
+					addMove(neighbor, copy, false);
+			}
+		}
+		
+		/* remote entities that requested updates get the nearest hosted entities, as from a binding neighbor */
+		for (int i = 0; i < neighbors.capacity(); i++) {
+			RemoteEntity neighbor = neighbors.valueAt(i);
+			if ((neighbor == null) || !neighbor.requestedUpdates)
+				continue;
+			
+			hostedIndex.findNearestPerQuadrant(neighbor.position, nearest);
+			for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++) {
+				if (nearest[quadrant] == null)
+					continue;
+				
+				Destination destination = getDestination(neighbor);
+				if (!destination.moves.contains(nearest[quadrant]) && !destination.requests.contains(nearest[quadrant]))
+					destination.moves.add(nearest[quadrant]);
+			}
+		}
+	}
+	
+	private static long withMargin(long aoiRadius) {
+		return aoiRadius + aoiRadius / LEAVING_MARGIN;
+	}
+	
+	private void addMove(RemoteEntity neighbor, RemoteEntity copy, boolean bindingNeighborRequest) {
+		Destination destination = getDestination(neighbor);
+		if (destination.last == copy)
+			return;
+		
+		/* the hosted entities share what they learn, one binding neighbor request per endpoint suffices */
+		destination.last = copy;
+		if (bindingNeighborRequest && destination.requests.isEmpty())
+			destination.requests.add(copy);
+		else
+			destination.moves.add(copy);
+	}
+	
+	private Destination getDestination(RemoteEntity neighbor) {
+		long key = Identifier.endpointKey(neighbor.identifier.key);
+		Destination destination = destinations.get(key);
+		if (destination == null) {
+			destination = new Destination(EntityProtocol.endpointOf(neighbor));
+			destinations.put(key, destination);
+		}
+		if (destination.lastUsed != ticks) {
+			destination.lastUsed = ticks;
+			pending.add(destination);
+		}
+		if (neighbor.lastNeeded != ticks) {
+			neighbor.lastNeeded = ticks;
+			destination.targets.add(neighbor);
+		}
+		return destination;
+	}
+	
+	/* version spoken by the entities at an endpoint */
+	private static int versionOf(Destination destination) {
+		return destination.targets.isEmpty() ? Packet.VERSION : Math.min(destination.targets.get(0).version, Packet.VERSION);
+	}
+	
+	/* sends the hosted entities and introduces the remote entities inside the area of interest of the
+	 * remote entities needed at the endpoint, unless it only speaks the legacy version */
+	private void sendDestination(Destination destination, long currentTime) {
+		if (destination.targets.isEmpty() || (destination.targets.get(0).version == Packet.LEGACY))
+			return;
+		
+		sendPacket.setVersion(versionOf(destination));
+		sendPacket.setBatchPacket();
+		for (RemoteEntity copy : destination.requests)
+			addMoveRecord(copy, true, destination.identifier);
+		for (RemoteEntity copy : destination.moves)
+			addMoveRecord(copy, false, destination.identifier);
+		
+		if (destination.introductions.size() > MAXIMUM_INTRODUCTIONS)
+			destination.introductions.clear();
+		for (RemoteEntity target : destination.targets) {
+			candidates.clear();
+			spatialIndex.findInRange(target.position, target.aoiRadius, candidates);
+			for (RemoteEntity entity : candidates) {
+				if ((Identifier.endpointKey(entity.identifier.key) != Identifier.endpointKey(target.identifier.key)) &&
+					EntityProtocol.introduce(destination.introductions, entity, true, currentTime))
+					addNeighborRecord(entity, destination.identifier);
+			}
+		}
+		
+		if (sendPacket.getRecordCount() > 0)
+			sendBatch(destination.identifier);
+	}
+	
+	private void addMoveRecord(RemoteEntity copy, boolean bindingNeighborRequest, Identifier destination) {
+		if (!sendPacket.addMoveRecord(copy, bindingNeighborRequest, mtu)) {
+			sendBatch(destination);
+			sendPacket.setBatchPacket();
+			sendPacket.addMoveRecord(copy, bindingNeighborRequest, mtu);
+		}
+	}
+	
+	private void addNeighborRecord(RemoteEntity entity, Identifier destination) {
+		protocol.addNeighborRecord(sendPacket, entity, destination, mtu);
+	}
+	
+	private void sendBatch(Identifier destination) {
+		protocol.send(sendPacket, destination);
+	}
+	
+	/* asks the remote nodes for the fragments of their snapshots that did not arrive for a while, snapshots
+	 * still incomplete after the timeout are given up */
+	private void requestFragments(long currentTime) {
+		expiredBootstraps.clear();
+		for (int i = 0; i < bootstraps.capacity(); i++) {
+			Bootstrap bootstrap = bootstraps.valueAt(i);
+			if (bootstrap == null)
+				continue;
+			
+			if (currentTime - bootstrap.time >= timeout) {
+				expiredBootstraps.add(bootstrap);
+			} else if ((bootstrap.fragments >= 0) && (currentTime - bootstrap.lastFragment >= EntityProtocol.NACK_INTERVAL)) {
+				sendNack(bootstrap);
+				bootstrap.lastFragment = currentTime;
+			}
+		}
+		for (Bootstrap bootstrap : expiredBootstraps)
+			bootstraps.remove(bootstrap.source.key);
+	}
+	
+	private void sendNack(Bootstrap bootstrap) {
+		sendPacket.setVersion(bootstrap.version);
+		sendPacket.setBatchPacket();
+		sendPacket.addNackRecord(bootstrap.snapshot, bootstrap.received, bootstrap.fragments, mtu);
+		sendBatch(bootstrap.source);
+	}
+	
+	/* removes the remote entities not heard from or not needed by a hosted entity within the timeout */
+	private void checkForTimeOuts(long currentTime) {
+		long neededTicks = timeout / updateInterval;
+		
+		expired.clear();
+		failureDetector.advance(currentTime, expired);
+		for (RemoteEntity entity : expired) {
+			if (currentTime - entity.lastContact >= timeout) {
+				removeNeighbor(entity);
+				protocol.addDeparted(entity.identifier.key, currentTime);
+			} else if (ticks - entity.lastNeeded >= neededTicks) {
+				removeNeighbor(entity);
+			} else
+				failureDetector.schedule(entity, entity.lastContact + timeout);
+		}
+		
+		if (ticks % neededTicks == 0) {
+			unused.clear();
+			for (int i = 0; i < destinations.capacity(); i++) {
+				Destination destination = destinations.valueAt(i);
+				if ((destination != null) && (ticks - destination.lastUsed >= neededTicks))
+					unused.add(destination);
+			}
+			for (Destination destination : unused)
+				destinations.remove(destination.identifier.key);
+		}
+	}
+	
+	private void removeNeighbor(RemoteEntity entity) {
+		neighbors.remove(entity.identifier.key);
+		spatialIndex.remove(entity);
+		failureDetector.cancel(entity);
+	}
+	
+	synchronized void handlePacket(Packet packet) {
+		if (closed)
+			return;
+		
+		packet.rewind();
+		while (packet.nextRecord()) {
+			switch(packet.getRecordType()) {
+			case Packet.MOVE: {
+				handleMovePacket(packet, false);
+			} break;
+			
+			case Packet.MOVE_BNR: {
+				handleMovePacket(packet, true);
+			} break;
+			
+			case Packet.NEIGHBOR: {
+				handleNeighborPacket(packet);
+			} break;
+			
+			case Packet.LEAVE: {
+				handleLeavePacket(packet);
+			} break;
+			
+			case Packet.JOIN: {
+				handleJoinPacket(packet);
+			} break;
+			
+			case Packet.JOIN_ACK: {
+				handleJoinAckPacket(packet);
+			} break;
+			
+			case Packet.SNAPSHOT: {
+				handleSnapshotPacket(packet);
+			} break;
+			
+			default: break;
+			}
+		}
+	}
+	
+	private void handleMovePacket(Packet packet, boolean bindingNeighborRequest) {
+		long currentTime = clock.millis();
+		long key = packet.getIdentifierKey();
+		RemoteEntity entity = neighbors.get(key);
+		if (Identifier.endpointKey(key) == identifier.key)
+			return;
+		
+		if (packet.isDelta() && ((entity == null) || (entity.keyframe != packet.getKeyframe()))) {
+			/* keyframe was lost or the entity was forgotten since, ask for a new one on behalf of all hosted entities */
+			if (entity != null)
+				entity.lastContact = currentTime;
+			sendPacket.setVersion(packet.getVersion());
+			sendPacket.setBatchPacket();
+			if (sendPacket.addKeyframeRecord(0, Packet.MAXIMUM_SIZE))
+				sendBatch(packet.getIdentifier());
+			return;
+		}
+		
+		boolean known = (entity != null);
+		if (!known) {
+			entity = new RemoteEntity(packet.getIdentifier());
+			entity.lastNeeded = ticks;
+			neighbors.put(key, entity);
+			protocol.forgetDeparted(key);
+		}
+		
+		packet.getPosition(entity.position, entity.keyframePosition);
+		if ((packet.getKeyframe() >= 0) && !packet.isDelta()) {
+			entity.keyframe = packet.getKeyframe();
+			entity.keyframePosition.setTo(entity.position);
+		}
+		packet.getVelocity(entity.velocity);
+		boolean changed = (entity.aoiRadius != packet.getAoiRadius()) || (entity.version < packet.getVersion());
+		entity.aoiRadius = packet.getAoiRadius();
+		maximumAoiRadius = Math.max(maximumAoiRadius, entity.aoiRadius);
+		entity.lastContact = currentTime;
+		entity.requestedUpdates = bindingNeighborRequest;
+		entity.version = Math.max(entity.version, packet.getVersion());
+		protocol.updateStamp(entity, changed);
+		
+		if (known) {
+			spatialIndex.update(entity);
+		} else {
+			spatialIndex.add(entity);
+			failureDetector.schedule(entity, currentTime + timeout);
+		}
+	}
+	
+	private void handleNeighborPacket(Packet packet) {
+		long currentTime = clock.millis();
+		RemoteEntity origin = neighbors.get(packet.getOrigin().key);
+		if (origin != null) {
+			origin.lastContact = currentTime;
+			if (origin.version < packet.getVersion()) {
+				origin.version = packet.getVersion();
+				protocol.updateStamp(origin, true);
+			}
+		}
+		
+		long key = packet.getIdentifierKey();
+		if ((Identifier.endpointKey(key) == identifier.key) || neighbors.containsKey(key) || protocol.hasDeparted(key, currentTime, timeout))
+			return;
+		
+		RemoteEntity entity = new RemoteEntity(packet.getIdentifier());
+		packet.getPosition(entity.position);
+		entity.aoiRadius = packet.getAoiRadius();
+		maximumAoiRadius = Math.max(maximumAoiRadius, entity.aoiRadius);
+		entity.lastContact = currentTime;
+		entity.lastNeeded = ticks;
+		entity.version = packet.getNeighborVersion();
+		protocol.updateStamp(entity, true);
+		
+		neighbors.put(key, entity);
+		spatialIndex.add(entity);
+		failureDetector.schedule(entity, currentTime + timeout);
+	}
+	
+	/* a LEAVE without entity sub-identifier takes the entities hosted by the sender along */
+	private void handleLeavePacket(Packet packet) {
+		long key = packet.getIdentifierKey();
+		RemoteEntity entity = neighbors.get(key);
+		if (entity != null)
+			removeNeighbor(entity);
+		
+		if (packet.getEntity() == 0) {
+			expired.clear();
+			for (int i = 0; i < neighbors.capacity(); i++) {
+				RemoteEntity neighbor = neighbors.valueAt(i);
+				if ((neighbor != null) && (Identifier.endpointKey(neighbor.identifier.key) == key))
+					expired.add(neighbor);
+			}
+			for (RemoteEntity neighbor : expired)
+				removeNeighbor(neighbor);
+			destinations.remove(key);
+		}
+		protocol.addDeparted(key, clock.millis());
+	}
+	
+	/* the JOIN_ACK announces the snapshot a Node sends in answer to a JOIN of version 2 */
+	private void handleJoinAckPacket(Packet packet) {
+		connected.countDown();
+		if (packet.getFragmentCount() == 0)
+			return;
+		
+		Bootstrap bootstrap = getBootstrap(packet.getOrigin(), packet.getSnapshot(), true);
+		bootstrap.version = packet.getProtocolVersion();
+		bootstrap.fragments = packet.getFragmentCount();
+		bootstrap.lastFragment = clock.millis();
+		completeBootstrap(bootstrap);
+	}
+	
+	/* the entities of a fragment are handled by the following records like any others */
+	private void handleSnapshotPacket(Packet packet) {
+		Bootstrap bootstrap = getBootstrap(packet.getOrigin(), packet.getSnapshot(), false);
+		/* a fragment beyond the snapshot would stand in for a missing one */
+		if ((bootstrap == null) || (packet.getFragment() >= ((bootstrap.fragments >= 0) ? bootstrap.fragments : packet.getFragmentCount())))
+			return;
+		
+		bootstrap.version = packet.getVersion();
+		bootstrap.received.set(packet.getFragment());
+		bootstrap.lastFragment = clock.millis();
+		completeBootstrap(bootstrap);
+	}
+	
+	/* a JOIN_ACK starts a new snapshot of its endpoint, fragments of an earlier one are ignored once it arrived */
+	private Bootstrap getBootstrap(Identifier source, int snapshot, boolean acknowledgement) {
+		Bootstrap bootstrap = bootstraps.get(source.key);
+		if ((bootstrap == null) || (bootstrap.snapshot != snapshot)) {
+			if ((bootstrap != null) && (bootstrap.fragments >= 0) && !acknowledgement)
+				return null;
+			bootstrap = new Bootstrap(source, snapshot, clock.millis());
+			bootstraps.put(source.key, bootstrap);
+		}
+		return bootstrap;
+	}
+	
+	/* tells the accepting node that the snapshot is complete, so that it forgets it */
+	private void completeBootstrap(Bootstrap bootstrap) {
+		if ((bootstrap.fragments < 0) || (bootstrap.received.nextClearBit(0) < bootstrap.fragments))
+			return;
+		
+		sendNack(bootstrap);
+		bootstraps.remove(bootstrap.source.key);
+		snapshots++;
+	}
+	
+	/* forwards a JOIN to a nearer remote entity or answers it with the hosted and remote entities around the joining one */
+	private void handleJoinPacket(Packet packet) {
+		Position position = packet.getPosition();
+		RemoteEntity nearestEntity = spatialIndex.findNearest(position);
+		RemoteEntity nearestHosted = hostedIndex.findNearest(position);
+		Identifier joining = packet.getIdentifier();
+		
+		/* a JOIN of a hosted entity forwarded back, no remote entity is nearer */
+		if (joining.key == identifier.key)
+			return;
+		
+		if ((nearestEntity != null) && (Identifier.endpointKey(nearestEntity.identifier.key) != joining.key) &&
+			((nearestHosted == null) || (nearestEntity.position.distanceTo(position) < nearestHosted.position.distanceTo(position)))) {
+			packet.addHop();
+			packet.send(nearestEntity.identifier, transport);
+			return;
+		}
+		
+		long aoiRadius = packet.getAoiRadius();
+		sendPacket.setVersion(Math.min(packet.getProtocolVersion(), Packet.VERSION));
+		sendPacket.setJoinAckPacket(packet.getHops());
+		sendPacket.send(joining, transport);
+		if (sendPacket.getVersion() == Packet.LEGACY)
+			return;
+		
+		sendPacket.setBatchPacket();
+		collectAround(hostedIndex, position, aoiRadius);
+		for (RemoteEntity copy : candidates)
+			addMoveRecord(copy, false, joining);
+		collectAround(spatialIndex, position, aoiRadius);
+		for (RemoteEntity entity : candidates) {
+			if (Identifier.endpointKey(entity.identifier.key) != joining.key)
+				addNeighborRecord(entity, joining);
+		}
+		if (sendPacket.getRecordCount() > 0)
+			sendBatch(joining);
+	}
+	
+	/* collects the entities within the radius and the nearest entity in each quadrant */
+	private void collectAround(SpatialIndex index, Position position, long radius) {
+		candidates.clear();
+		index.findInRange(position, radius, candidates);
+		index.findNearestPerQuadrant(position, nearest);
+		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++) {
+			if ((nearest[quadrant] != null) && !candidates.contains(nearest[quadrant]))
+				candidates.add(nearest[quadrant]);
+		}
+	}
+}
@@ -1,305 +1,1940 @@
 package quon;
 
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * JavaQuON
  * 
  * The node class implements the QuON protocol. Peers create a JavaQuON node initialized with
  * their local entity and enter the network using the join method via the identifier of an
- * already participating node or they create a new network by passing null.
+ * already participating node or they create a new network by passing null. By default a node
+ * runs its own receive thread and update timer. In virtual thread mode the receive loop and the
+ * update ticks run on virtual threads dispatched by a scheduler shared by all nodes, nodes created
+ * with a NodeHost are driven by the event loops of the host instead. Nodes running their own
+ * receive thread can decode datagrams on several processing threads, see setProcessingThreads.
  */
-public class Node extends Thread {
+public class Node implements Runnable {
+	private static final int KEYFRAME_INTERVAL = 8; /* ticks after which a new position keyframe is sent */
+	
+	private static final Integer AOI_ENTER = 0;
+	private static final Integer AOI_MOVE  = 1;
+	private static final Integer AOI_LEAVE = 2;
+	
+	/* kinds of batches sent to a neighbor */
+	private static final int SENT_MOVE      = 0; /* MOVE record to a direct neighbor */
+	private static final int SENT_BINDING   = 1; /* MOVE_BNR and NEIGHBOR records to a binding neighbor */
+	private static final int SENT_TEMPORARY = 2; /* MOVE and NEIGHBOR records to a temporary neighbor */
+	
+	private static final int UDP_OVERHEAD = 28; /* bytes of the IPv4 and UDP headers of a datagram */
+	
+	private static final int MAXIMUM_HOPS = 64;                /* times a JOIN is forwarded before it only goes to neighbors */
+	private static final int MAXIMUM_FORWARDS = 0xFF;          /* times a JOIN is forwarded at most, where its hop count saturates */
+	private static final int MAXIMUM_SNAPSHOTS = 64;           /* bootstrap snapshots kept for retransmission at most */
+	private static final int RESTORE_POLL_INTERVAL = 20;       /* after which time (ms) a warm restart checks for replies of the neighbors */
+	
+	private static final Comparator<RemoteEntity> LOWEST_PRIORITY_FIRST = new Comparator<RemoteEntity>() {
+		public int compare(RemoteEntity a, RemoteEntity b) {
+			return Double.compare(b.updatePriority, a.updatePriority);
+		}
+	};
+	
+	private static final Executor DIRECT_EXECUTOR = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
 	private final Entity localEntity;
 	
-	private final HashMap<Identifier,RemoteEntity> neighbors = new HashMap<Identifier,RemoteEntity>();
+	private final LongMap<RemoteEntity> neighbors = new LongMap<RemoteEntity>();
+	
+	/* membership of the lists is flagged in the entities, so they are never searched by hash */
+	private final ArrayList<RemoteEntity> directNeighbors    = new ArrayList<RemoteEntity>();
+	private final RemoteEntity[]          bindingNeighbors   = new RemoteEntity[Position.QUADRANTS];
+	private final ArrayList<RemoteEntity> temporaryNeighbors = new ArrayList<RemoteEntity>();
+	
+	private SpatialIndex spatialIndex;
+	private final ArrayList<RemoteEntity> candidates = new ArrayList<RemoteEntity>();
+	private final ArrayList<RemoteEntity> changed    = new ArrayList<RemoteEntity>();
+	private final RemoteEntity[] nearest = new RemoteEntity[Position.QUADRANTS];
 	
-	private final HashSet<RemoteEntity> directNeighbors    = new HashSet<RemoteEntity>();
-	private final RemoteEntity[]        bindingNeighbors   = new RemoteEntity[Position.QUADRANTS];
-	private final HashSet<RemoteEntity> temporaryNeighbors = new HashSet<RemoteEntity>();
+	/* position and area of interest of the local entity the neighbor sets were computed for */
+	private final Position neighborhoodCenter = new Position();
+	private long neighborhoodRadius = -1;
 	
-	private DatagramSocket socket;
+	private volatile AoiSnapshot aoiSnapshot = AoiSnapshot.EMPTY;
+	private boolean aoiChanged;
+	
+	private final CopyOnWriteArrayList<AoiListener> aoiListeners = new CopyOnWriteArrayList<AoiListener>();
+	private final LinkedHashMap<RemoteEntity,Integer> aoiEvents = new LinkedHashMap<RemoteEntity,Integer>();
+	private Executor aoiListenerExecutor = DIRECT_EXECUTOR;
+	private boolean coalesceAoiEvents;
+	
+	private final Transport transport;
+	private final NodeHost host;
+	private Clock clock = Clock.SYSTEM;
+	private Packet receivePacket;
+	private Packet sendPacket;
 	private CountDownLatch connected = new CountDownLatch(1);
 	
+	private int protocolVersion = Packet.VERSION;
+	private boolean deltaEncoding;
+	private int keyframe;
+	private int keyframeAge = KEYFRAME_INTERVAL;
+	private final Position keyframePosition = new Position();
+	
+	/* dead reckoning: the position and velocity last sent, peers extrapolate from them */
+	private boolean deadReckoning;
+	private long errorBound        = 1;    /* deviation from the extrapolated position that triggers an update */
+	private int keepaliveInterval  = 1000; /* after which time (ms) an update is sent even without deviation */
+	private int model;                     /* incremented whenever a new position and velocity is sent */
+	private final Position modelPosition = new Position();
+	private final Position velocity      = new Position();
+	private long modelTime;
+	private long modelAoiRadius;
+	private final ArrayList<RemoteEntity> extrapolated = new ArrayList<RemoteEntity>();
+	
+	/* update scheduling: neighbors are updated less often by priority to stay within the uplink budget */
+	private int uplinkBudget;  /* bytes per second available for all datagrams sent or 0 if unlimited */
+	private long uplinkBytes;  /* bytes sent, including the IP and UDP headers */
+	private long updateBytes;  /* bytes of the scheduled position updates among them */
+	private long uplinkRate;   /* bytes per second sent, averaged over about a second */
+	private long otherRate;    /* bytes per second sent besides the scheduled updates, averaged likewise */
+	private long scheduleTime; /* time (ms) and bytes sent when the updates were last scheduled */
+	private long scheduleUplinkBytes;
+	private long scheduleUpdateBytes;
+	private final ArrayList<RemoteEntity> schedule = new ArrayList<RemoteEntity>();
+	private final PriorityQueue<RemoteEntity> lowestPriority = new PriorityQueue<RemoteEntity>(16, LOWEST_PRIORITY_FIRST);
+	private final LongMap<RemoteEntity> updatedHosts = new LongMap<RemoteEntity>(); /* MultiNodes sent a MOVE this tick */
+	
+	/* stamps and tombstones of the remote entities, entities that left or timed out are remembered for the
+	 * timeout, so that neighbors still knowing them cannot bring them back */
+	private final EntityProtocol protocol = new EntityProtocol() {
+		void send(Packet packet, Identifier destination) {
+			Node.this.send(packet, destination);
+		}
+		
+		void retryJoin(long currentTime) {
+			Node.this.retryJoin(currentTime);
+		}
+	};
+	
+	/* hysteresis: entities enter an area of interest within its radius less the enter margin and
+	 * leave it beyond its radius plus the exit margin, but not before the minimum dwell time */
+	private long enterMargin;
+	private long exitMargin;
+	private int minimumDwell;
+	
+	private int mtu            = Packet.MAXIMUM_SIZE; /* maximum size (bytes) of a datagram */
 	private int updateInterval = 167; /* send position updated six times a second */
 	private int timeout        = 10000; /* after which time (ms) a peer should be detected as inactive */ 
-	private TimerTask updateTask;
-	private Timer updateTimer;
+	private final TimingWheel failureDetector = new TimingWheel(updateInterval, timeout);
+	private final ArrayList<RemoteEntity> expired = new ArrayList<RemoteEntity>();
+	
+	/* keyframes requested from entities sending deltas without them by their key, each is requested once, so that
+	 * entities forgotten again right away are not asked on every delta */
+	private final LongMap<Integer> requestedKeyframes = new LongMap<Integer>();
+	
+	/* far peers JOINs are forwarded to when they are nearer to the joining entity than all neighbors */
+	private final ShortcutTable shortcuts = new ShortcutTable();
+	
+	/* bootstrap snapshots sent to joining entities by the key of their endpoint, which their NACKs come from */
+	private final LongMap<Snapshot> snapshots = new LongMap<Snapshot>();
+	private final ArrayList<Snapshot> expiredSnapshots = new ArrayList<Snapshot>();
+	private int nextSnapshot;
+	
+	/* joining: the snapshot announced by the JOIN_ACK and the fragments of it received so far,
+	 * fragments arriving before the JOIN_ACK are counted for the snapshot they belong to */
+	private Identifier bootstrap;        /* node the JOIN is sent to */
+	private long joinTime;               /* time (ms) the JOIN of this node was first sent */
+	private long nextJoin;               /* time (ms) the JOIN is sent again unless it is acknowledged */
+	private boolean acknowledged;
+	private Identifier snapshotSource;   /* node that accepted the JOIN */
+	private int snapshotVersion;         /* version negotiated with that node */
+	private int snapshot = -1;
+	private int snapshotFragments;
+	private final BitSet receivedFragments = new BitSet();
+	private long lastFragment;           /* time (ms) the last fragment arrived */
+	
+	/* warm restart: the local entity and the neighbor table written periodically and read when joining */
+	private Path checkpointFile;
+	private int checkpointInterval;
+	private long nextCheckpoint;  /* time (ms) the next checkpoint is due */
+	private Future<?> pendingCheckpoint;  /* checkpoint being written in the background or null */
+	private final Ticker ticker = new Ticker() {
+		void tick(long scheduledTime) {
+			Node.this.tick(scheduledTime);
+		}
+	};
+	
+	private boolean virtualThreads;
+	private Thread receiveThread;
+	private int processingThreads = 1;
+	private Shard[] shards;
+	private Thread[] shardThreads;
+	private BlockingQueue<Packet> freePackets;
+	private volatile boolean closed;
+	
+	long ticks;            /* number of update ticks executed */
+	long tickLateness;     /* accumulated delay (ms) of update ticks behind their schedule */
+	long maxTickLateness;  /* maximum delay (ms) of an update tick behind its schedule */
+	
+	long aoiCrossings;             /* entities crossing the area of interest radius */
+	long aoiTransitions;           /* entities entering or leaving the area of interest with hysteresis */
+	long notifications;            /* NEIGHBOR records sent to entities entering the area of interest of a neighbor */
+	long suppressedNotifications;  /* NEIGHBOR records the hard radius test would have sent in addition */
+	
+	/* metrics, records and bytes are counted per record type, durations in nanoseconds, the shards
+	 * count the datagrams they decode themselves */
+	private long datagramsSent;
+	private long datagramsReceived;
+	private final long[] recordsSent     = new long[Packet.NAMES.length];
+	private final long[] bytesSent       = new long[Packet.NAMES.length];
+	private final long[] recordsReceived = new long[Packet.NAMES.length];
+	private final long[] bytesReceived   = new long[Packet.NAMES.length];
+	private final Histogram tickDuration     = new Histogram();
+	private final Histogram handleDuration   = new Histogram();
+	private final Histogram acceptedJoinHops = new Histogram(); /* hops of the JOINs of other entities accepted */
+	private boolean jmxEnabled;
+	private ObjectName objectName;  /* name the node is registered with at the MBean server or null */
+	
+	long joinHops;        /* times the JOIN of this node was forwarded before it was acknowledged */
+	long joinLatency;     /* time (ms) from sending the JOIN of this node to receiving the JOIN_ACK */
+	long forwardedJoins;  /* JOINs of other entities forwarded */
+	long shortcutJoins;   /* JOINs forwarded to a far peer rather than a neighbor */
+	
+	/**
+	 * Bootstrap snapshot sent to a joining entity, kept until it received all fragments.
+	 */
+	private static class Snapshot {
+		final Identifier identifier;
+		final int id;
+		final long time;
+		final ArrayList<byte[]> fragments = new ArrayList<byte[]>();
+		
+		Snapshot(Identifier identifier, int id, long time) {
+			this.identifier = identifier;
+			this.id = id;
+			this.time = time;
+		}
+	}
+	
+	NodeHost.EventLoop eventLoop; /* event loop of the host driving this node */
+	long nextTick;                /* next scheduled update, maintained by the event loop */
 	
 	public Node(Entity entity) {
+		this(entity, new ChannelTransport(), null);
+	}
+	
+	public Node(Entity entity, Transport transport) {
+		this(entity, transport, null);
+	}
+	
+	public Node(Entity entity, NodeHost host) {
+		this(entity, new ChannelTransport(), host);
+	}
+	
+	public Node(Entity entity, Transport transport, NodeHost host) {
+		if ((host != null) && !(transport instanceof SelectableTransport))
+			throw new IllegalArgumentException("hosted nodes require a SelectableTransport");
+		
 		this.localEntity = entity;
+		this.transport = transport;
+		this.host = host;
+	}
+	
+	/**
+	 * Runs the receive loop and the update ticks on virtual threads instead of a platform thread
+	 * and a timer. Has to be set before joining. Returns whether virtual threads are used, which is
+	 * false on releases without them, where the node runs on pooled platform threads instead.
+	 */
+	public boolean setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+		return virtualThreads && VirtualThreads.AVAILABLE;
+	}
+	
+	/**
+	 * Decodes received datagrams on the given number of threads instead of the receive thread. The
+	 * datagrams of a peer are always decoded by the same thread, in the order they were received,
+	 * and the records are staged in partitions of the neighbor table that the next tick merges into
+	 * the neighbor, direct and binding sets. Changes of neighbors thus take effect at tick time.
+	 * Ignored by hosted nodes. Has to be set before joining.
+	 */
+	public void setProcessingThreads(int processingThreads) {
+		this.processingThreads = Math.max(1, processingThreads);
+	}
+	
+	/**
+	 * Sets the maximum size of the datagrams sent by this node, records for one destination are
+	 * batched into as few datagrams of at most this size as possible.
+	 */
+	public void setMtu(int mtu) {
+		this.mtu = Math.max(Packet.MINIMUM_BATCH_SIZE, Math.min(mtu, Packet.MAXIMUM_SIZE));
+	}
+	
+	/**
+	 * Sets the highest packet version this node speaks, the version used with each peer is
+	 * negotiated during JOIN and learned from the datagrams it sends.
+	 */
+	public void setProtocolVersion(int protocolVersion) {
+		this.protocolVersion = Math.max(Packet.LEGACY, Math.min(protocolVersion, Packet.VERSION));
+	}
+	
+	/**
+	 * Encodes positions sent to peers speaking version 1 as deltas to a keyframe, which is renewed
+	 * every few ticks so that peers missing a keyframe recover quickly.
+	 */
+	public void setDeltaEncoding(boolean deltaEncoding) {
+		this.deltaEncoding = deltaEncoding;
+	}
+	
+	/**
+	 * Sends position updates to peers speaking version 1 only when the position deviates from the
+	 * one they extrapolate from the last update, or when a keepalive is due. MOVE records then carry
+	 * the velocity, estimated from the movement since the previous update.
+	 */
+	public void setDeadReckoning(boolean deadReckoning) {
+		this.deadReckoning = deadReckoning;
+	}
+	
+	/**
+	 * Sets the maximum deviation between the true and the extrapolated position and the interval
+	 * (ms) of keepalive updates, which should stay well below the timeout of the peers.
+	 */
+	public void setDeadReckoningBounds(long errorBound, int keepaliveInterval) {
+		this.errorBound = Math.max(0, errorBound);
+		this.keepaliveInterval = Math.max(updateInterval, keepaliveInterval);
+	}
+	
+	/**
+	 * Limits the bytes per second the node sends, including the IP and UDP headers. Position
+	 * updates get what the other datagrams, e.g. introductions of new neighbors and bootstrap
+	 * snapshots, leave of it on average. Binding neighbors keep the full update rate longest, the
+	 * other neighbors are updated less often the further away they are relative to their area of
+	 * interest. The limit is best-effort: no neighbor is updated less often than every third of the
+	 * timeout, so that it does not time out the node, and bursts above the average are not
+	 * deferred. 0 removes the limit.
+	 */
+	public void setUplinkBudget(int bytesPerSecond) {
+		this.uplinkBudget = Math.max(0, bytesPerSecond);
+	}
+	
+	/**
+	 * Damps the churn of entities moving along the edge of an area of interest. Entities enter it
+	 * within the radius less the enter margin, leave it beyond the radius plus the exit margin and
+	 * stay in or out of it for at least the minimum dwell time (ms). Applies to the direct
+	 * neighbors, the AOI events and the NEIGHBOR records sent to entities entering the area of
+	 * interest of a neighbor.
+	 */
+	public synchronized void setAoiHysteresis(long enterMargin, long exitMargin, int minimumDwell) {
+		this.enterMargin = Math.max(0, enterMargin);
+		this.exitMargin = Math.max(0, exitMargin);
+		this.minimumDwell = Math.max(0, minimumDwell);
+	}
+	
+	/**
+	 * Sets the spatial index used for neighbor queries, by default a grid index with cells the
+	 * size of the area of interest radius is used. Has to be set before joining.
+	 */
+	public void setSpatialIndex(SpatialIndex spatialIndex) {
+		this.spatialIndex = spatialIndex;
+	}
+	
+	public void addAoiListener(AoiListener listener) {
+		aoiListeners.add(listener);
+	}
+	
+	public void removeAoiListener(AoiListener listener) {
+		aoiListeners.remove(listener);
+	}
+	
+	/**
+	 * Sets the executor delivering AOI events. By default listeners are called directly while the
+	 * node is locked, a single threaded executor keeps the events in order.
+	 */
+	public synchronized void setAoiListenerExecutor(Executor executor) {
+		this.aoiListenerExecutor = (executor != null) ? executor : DIRECT_EXECUTOR;
+	}
+	
+	/**
+	 * Delivers AOI events once per tick instead of after each received datagram, coalescing all
+	 * changes of an entity during the tick into at most one event.
+	 */
+	public synchronized void setCoalesceAoiEvents(boolean coalesceAoiEvents) {
+		this.coalesceAoiEvents = coalesceAoiEvents;
+	}
+	
+	/**
+	 * Registers the node with the platform MBean server while it runs, see NodeMXBean. Has to be
+	 * set before joining.
+	 */
+	public void setJmxEnabled(boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+	
+	/**
+	 * Writes the local entity and the neighbor table to the given file every interval (ms) and
+	 * when the node is closed, the periodic checkpoints are written in the background. A node
+	 * joining with a checkpoint of its own identifier younger than the timeout contacts the
+	 * direct and binding neighbors in it, whose replies reconcile the neighbor table, instead of
+	 * sending a JOIN. Once a majority of them replied, the node resumes at the position in the
+	 * checkpoint, otherwise it forgets them and sends the JOIN from the position the local entity
+	 * had before. Has to be set before joining.
+	 */
+	public void setCheckpoint(Path file, int interval) {
+		this.checkpointFile = file;
+		this.checkpointInterval = interval;
 	}
 	
 	public void run() {
-		while(true) {
-			Packet packet = new Packet();
-			packet.receive(socket);
-			handlePacket(packet);
+		while(!closed) {
+			try {
+				if (shards != null)
+					receiveSharded();
+				else if (transport.receive(receivePacket))
+					handlePacket(receivePacket);
+			} catch (IOException e) {
+				if (!closed)
+					e.printStackTrace();
+			} catch (InterruptedException e) {
+				if (!closed)
+					e.printStackTrace();
+			}
 		}
 	}
 	
-	public void join(Identifier identifier) {
-		try {
-			socket = new DatagramSocket(localEntity.identifier.port, localEntity.identifier.address);
-		} catch (SocketException e) {
+	/* the datagrams of a peer are queued to the shard of the peer, which decodes them in order */
+	private void receiveSharded() throws IOException, InterruptedException {
+		Packet packet = freePackets.poll(updateInterval, TimeUnit.MILLISECONDS);
+		if (packet == null)
 			return;
+		
+		if (transport.receive(packet))
+			shardOf(packet.getOrigin().key).queue.put(packet);
+		else
+			freePackets.put(packet);
+	}
+	
+	private Shard shardOf(long key) {
+		return shards[(int) ((key * 0x9E3779B97F4A7C15L) >>> 33) % shards.length];
+	}
+	
+	void releasePacket(Packet packet) {
+		freePackets.offer(packet);
+	}
+	
+	private void startShards() {
+		shards = new Shard[processingThreads];
+		shardThreads = new Thread[processingThreads];
+		freePackets = new ArrayBlockingQueue<Packet>(processingThreads * (Shard.QUEUE_CAPACITY + 1));
+		while (freePackets.remainingCapacity() > 0)
+			freePackets.offer(new Packet(transport.getBufferPool().acquire()));
+		
+		for (int i = 0; i < processingThreads; i++) {
+			shards[i] = new Shard(this);
+			if (virtualThreads) {
+				shardThreads[i] = VirtualThreads.FACTORY.newThread(shards[i]);
+			} else {
+				shardThreads[i] = new Thread(shards[i], "JavaQuON Node " + localEntity.identifier + " shard " + i);
+			}
+			shardThreads[i].start();
+		}
+	}
+	
+	/**
+	 * Joins the network via the node with the given identifier, or creates a new network if it is
+	 * null, waiting at most for the timeout after which peers are detected as inactive.
+	 */
+	public boolean join(Identifier identifier) {
+		return join(identifier, timeout);
+	}
+	
+	/**
+	 * Joins the network via the node with the given identifier, or creates a new network if it is
+	 * null. Waits until the node accepting the JOIN acknowledged it and all fragments of its
+	 * bootstrap snapshot arrived, so that the entities around the local entity are known. The JOIN
+	 * is sent again while it is not acknowledged and lost fragments are requested again. Returns
+	 * false and closes the node if the join did not complete within the timeout (ms).
+	 */
+	public boolean join(Identifier identifier, long joinTimeout) {
+		if (!open())
+			return false;
+		
+		if (host != null) {
+			try {
+				host.register(this, (SelectableTransport) transport);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		} else {
+			if (processingThreads > 1)
+				startShards();
+			else
+				receivePacket = new Packet(transport.getBufferPool().acquire());
+			if (virtualThreads) {
+				receiveThread = VirtualThreads.FACTORY.newThread(this);
+			} else {
+				receiveThread = new Thread(this, "JavaQuON Node " + localEntity.identifier);
+			}
+			receiveThread.start();
+		}
+		
+		boolean restored = (checkpointFile != null) && awaitRestore();
+		if (!restored && (identifier != null) && !awaitJoin(identifier, joinTimeout)) {
+			close();
+			return false;
+		}
+		
+		if (host != null)
+			host.schedule(this);
+		else
+			ticker.start(updateInterval, virtualThreads);
+		return true;
+	}
+	
+	/* opens the transport without starting any thread, nodes driven by the simulator are only opened */
+	boolean open() {
+		try {
+			transport.open(localEntity.identifier);
+		} catch (IOException e) {
+			return false;
+		}
+		
+		sendPacket = new Packet(transport.getBufferPool().acquire());
+		if (spatialIndex == null)
+			spatialIndex = new GridIndex(localEntity.aoiRadius);
+		if (jmxEnabled)
+			registerMBean();
+		return true;
+	}
+	
+	private void registerMBean() {
+		try {
+			objectName = new ObjectName("quon:type=Node,name=" + ObjectName.quote(localEntity.identifier.toString()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new NodeMonitor(this, localEntity.identifier), objectName);
+		} catch (JMException e) {
+			e.printStackTrace();
+			objectName = null;
+		}
+	}
+	
+	/* waits until the join completed or the timeout elapsed */
+	private boolean awaitJoin(Identifier identifier, long joinTimeout) {
+		startJoin(identifier, clock.millis());
+		try {
+			if (protocol.awaitJoin(connected, clock, joinTimeout)) {
+				/* the records following the SNAPSHOT record completing the join are handled while the node is locked */
+				synchronized (this) {
+					return true;
+				}
+			}
+		} catch (InterruptedException e) { e.printStackTrace(); }
+		return false;
+	}
+	
+	/* rejoins via the neighbors in the checkpoint unless it is stale, forgets them again unless a majority of them
+	 * replied. The neighbor sets are computed around the position in the checkpoint while the neighbors are asked,
+	 * the position of the application is put back unless the restore is confirmed. */
+	private boolean awaitRestore() {
+		Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+		long restoreTime = clock.millis();
+		if ((checkpoint == null) || (checkpoint.localEntity.identifier.key != localEntity.identifier.key) ||
+			(restoreTime - checkpoint.time >= timeout)) {
+			return false;
 		}
 		
-		start();
+		Position position = new Position(localEntity.position.x, localEntity.position.y);
+		long aoiRadius = localEntity.aoiRadius;
+		ArrayList<RemoteEntity> restored = new ArrayList<RemoteEntity>();
+		synchronized (this) {
+			localEntity.position.setTo(checkpoint.localEntity.position);
+			localEntity.aoiRadius = checkpoint.localEntity.aoiRadius;
+			for (Checkpoint.Neighbor saved : checkpoint.neighbors) {
+				RemoteEntity entity = new RemoteEntity(saved.identifier);
+				entity.position.setTo(saved.position);
+				/* contacts after the restore are replies */
+				addNeighbor(entity, saved.aoiRadius, saved.version, restoreTime - 1);
+				if (saved.direct || (saved.bindingQuadrant >= 0))
+					restored.add(entity);
+			}
+			joinTime = restoreTime;
+		}
 		
-		if (identifier != null) {
-			Packet packet = new Packet();
-			packet.setJoinPacket(localEntity);
-			packet.send(identifier, socket);
+		int quorum = restored.size() / 2 + 1;
+		long currentTime = restoreTime;
+		long nextContact = restoreTime;
+		try {
+			while (!restored.isEmpty() && (currentTime < restoreTime + EntityProtocol.JOIN_RETRY_INTERVAL)) {
+				synchronized (this) {
+					mergeShards();
+					int replies = 0;
+					for (RemoteEntity entity : restored) {
+						if ((neighbors.get(entity.identifier.key) == entity) && (entity.lastContact >= restoreTime))
+							replies++;
+					}
+					if (replies >= quorum) {
+						publishAoiSnapshot();
+						joinHops = 0;
+						joinLatency = currentTime - joinTime;
+						connected.countDown();
+						joinEvent(0);
+						return true;
+					}
+					
+					/* MOVE_BNR records at the restored position make the neighbors that did not reply yet
+					 * reply with the entities around it */
+					if (currentTime >= nextContact) {
+						for (RemoteEntity entity : restored) {
+							if ((neighbors.get(entity.identifier.key) == entity) && (entity.lastContact < restoreTime)) {
+								sendPacket.setVersion(Math.min(entity.version, protocolVersion));
+								sendPacket.setBatchPacket();
+								sendPacket.addMoveRecord(localEntity, true, mtu);
+								sendBatch(entity.identifier);
+							}
+						}
+						nextContact = currentTime + EntityProtocol.NACK_INTERVAL;
+					}
+				}
+				Thread.sleep(RESTORE_POLL_INTERVAL);
+				currentTime = clock.millis();
+			}
+		} catch (InterruptedException e) { e.printStackTrace(); }
 		
+		synchronized (this) {
+			for (Checkpoint.Neighbor saved : checkpoint.neighbors) {
+				RemoteEntity entity = neighbors.get(saved.identifier.key);
+				if (entity != null)
+					removeNeighbor(entity);
+			}
+			/* unless the application moved the entity meanwhile */
+			if ((localEntity.position.x == checkpoint.localEntity.position.x) && (localEntity.position.y == checkpoint.localEntity.position.y) &&
+				(localEntity.aoiRadius == checkpoint.localEntity.aoiRadius)) {
+				localEntity.position.setTo(position);
+				localEntity.aoiRadius = aoiRadius;
+			}
+			publishAoiSnapshot();
+		}
+		return false;
+	}
+	
+	synchronized void startJoin(Identifier identifier, long currentTime) {
+		bootstrap = identifier;
+		joinTime = currentTime;
+		nextJoin = currentTime;
+		retryJoin(currentTime);
+	}
+	
+	/* sends the JOIN again while it is not acknowledged and requests the missing fragments of the
+	 * snapshot whenever none arrived for a while */
+	synchronized void retryJoin(long currentTime) {
+		if (closed || isJoined())
+			return;
+		
+		if (!acknowledged && (currentTime >= nextJoin)) {
+			sendPacket.setVersion(protocolVersion);
+			sendPacket.setJoinPacket(localEntity);
+			send(sendPacket, bootstrap);
+			nextJoin = currentTime + EntityProtocol.JOIN_RETRY_INTERVAL;
+		} else if (acknowledged && (currentTime - lastFragment >= EntityProtocol.NACK_INTERVAL)) {
+			sendNack();
+			lastFragment = currentTime;
+		}
+	}
+	
+	boolean isJoined() {
+		return connected.getCount() == 0;
+	}
+	
+	/**
+	 * Leaves the network gracefully: all neighbors are sent a LEAVE, so they replace this node
+	 * right away instead of waiting for it to time out. Closes the node afterwards.
+	 */
+	public void leave() {
+		synchronized (this) {
+			if (!closed && (sendPacket != null))
+				protocol.sendLeave(sendPacket, neighbors, protocolVersion, mtu);
+		}
+		close();
+	}
+	
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			ticker.cancel();
+			if (shardThreads != null) {
+				for (Thread thread : shardThreads)
+					thread.interrupt();
+			}
+			if ((checkpointFile != null) && (ticks > 0))
+				writeCheckpoint(true);
+			transport.close();
+			if (objectName != null) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+				} catch (JMException e) { e.printStackTrace(); }
+				objectName = null;
+			}
+		}
+	}
+	
+	/* takes a checkpoint and has it written in the background, a periodic one is skipped while the previous
+	 * one is still being written, while the one taken on closing is waited for */
+	private void writeCheckpoint(boolean wait) {
+		if (!wait && (pendingCheckpoint != null) && !pendingCheckpoint.isDone())
+			return;
+		
+		final Path file = checkpointFile;
+		final ByteBuffer data = Checkpoint.encode(localEntity, neighbors, clock.millis());
+		pendingCheckpoint = Checkpoint.WRITER.submit(new Runnable() {
+			public void run() {
+				try {
+					Checkpoint.write(file, data);
+				} catch (IOException e) { e.printStackTrace(); }
+			}
+		});
+		
+		if (wait) {
 			try {
-				connected.await();
-			} catch (InterruptedException e) { e.printStackTrace(); }
+				pendingCheckpoint.get();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	boolean isClosed() {
+		return closed;
+	}
+	
+	int getUpdateInterval() {
+		return updateInterval;
+	}
+	
+	/* the simulator runs nodes on a virtual clock, has to be set before joining */
+	void setClock(Clock clock) {
+		this.clock = clock;
+	}
+	
+	synchronized void tick(long scheduledTime) {
+		if (closed)
+			return;
+		
+		long start = System.nanoTime();
+		NodeEvents.Tick event = NodeEvents.TICK.isEnabled() ? new NodeEvents.Tick() : null;
+		if (event != null)
+			event.begin();
+		long sent = datagramsSent;
+		
+		long lateness = Math.max(0, clock.millis() - scheduledTime);
+		ticks++;
+		tickLateness += lateness;
+		maxTickLateness = Math.max(maxTickLateness, lateness);
+		
+		mergeShards();
+		extrapolatePositions();
+		sendPositionUpdates();
+		checkForTimeOuts();
+		publishAoiSnapshot();
+		deliverAoiEvents();
+		if ((checkpointFile != null) && (clock.millis() >= nextCheckpoint)) {
+			writeCheckpoint(false);
+			nextCheckpoint = clock.millis() + checkpointInterval;
 		}
 		
-
-		updateTask = new TimerTask() {
-			@Override
+		tickDuration.record(System.nanoTime() - start);
+		if (event == null)
+			return;
+		event.end();
+		if (event.shouldCommit()) {
+			event.node = localEntity.identifier.toString();
+			event.directNeighbors = directNeighbors.size();
+			event.bindingNeighbors = countBindingNeighbors();
+			event.temporaryNeighbors = temporaryNeighbors.size();
+			event.datagramsSent = datagramsSent - sent;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of the metrics of the node.
+	 */
+	public synchronized NodeMetrics getMetrics() {
+		long datagrams = datagramsReceived;
+		long[] records = recordsReceived.clone();
+		long[] bytes = bytesReceived.clone();
+		Histogram durations = new Histogram(handleDuration);
+		if (shards != null) {
+			for (Shard shard : shards)
+				datagrams += shard.addMetrics(records, bytes, durations);
+		}
+		
+		return new NodeMetrics(datagramsSent, recordsSent, bytesSent, datagrams, records, bytes,
+							   neighbors.size(), directNeighbors.size(), countBindingNeighbors(), temporaryNeighbors.size(),
+							   ticks, aoiCrossings, aoiTransitions, notifications, forwardedJoins, shortcutJoins,
+							   joinHops, joinLatency, tickDuration, durations, acceptedJoinHops);
+	}
+	
+	private int countBindingNeighbors() {
+		int count = 0;
+		for (RemoteEntity neighbor : bindingNeighbors) {
+			if (neighbor != null)
+				count++;
+		}
+		return count;
+	}
+	
+	/* counts the current record of a datagram being decoded for the metrics by its type */
+	static void count(Packet packet, long[] records, long[] bytes) {
+		int type = packet.getRecordType();
+		records[type]++;
+		bytes[type] += packet.getRecordSize();
+	}
+	
+	private void send(Packet packet, Identifier destination) {
+		uplinkBytes += packet.data.limit() + UDP_OVERHEAD;
+		datagramsSent++;
+		packet.countRecords(recordsSent, bytesSent);
+		packet.send(destination, transport);
+	}
+	
+	/**
+	 * Returns the entities inside the area of interest as of the latest snapshot, without
+	 * blocking and without allocating.
+	 */
+	public List<AoiEntity> entitiesInAoi() {
+		return aoiSnapshot.getEntities();
+	}
+	
+	/**
+	 * Copies the entities inside the area of interest as of the latest snapshot into the given
+	 * array and returns their number, which may exceed the length of the array.
+	 */
+	public int entitiesInAoi(AoiEntity[] entities) {
+		return aoiSnapshot.copyTo(entities);
+	}
+	
+	public AoiSnapshot getAoiSnapshot() {
+		return aoiSnapshot;
+	}
+	
+	/* publishes a new snapshot of the direct neighbors if they changed since the last one, only
+	 * the neighbors that moved are copied again */
+	private void publishAoiSnapshot() {
+		if (!aoiChanged)
+			return;
+		aoiChanged = false;
+		
+		AoiEntity[] entities = new AoiEntity[directNeighbors.size()];
+		int i = 0;
+		for (RemoteEntity neighbor : directNeighbors)
+			entities[i++] = AoiSnapshot.copyOf(neighbor);
+		
+		aoiSnapshot = new AoiSnapshot(aoiSnapshot.version + 1, entities);
+	}
+	
+	/* records a change of the area of interest, merging it with earlier pending changes of the entity */
+	private void aoiEvent(RemoteEntity entity, Integer event) {
+		aoiChanged = true;
+		if (aoiListeners.isEmpty())
+			return;
+		
+		Integer pending = aoiEvents.get(entity);
+		if (pending == null) {
+			aoiEvents.put(entity, event);
+		} else if (pending == AOI_ENTER) {
+			if (event == AOI_LEAVE)
+				aoiEvents.remove(entity);
+		} else if (pending == AOI_MOVE) {
+			aoiEvents.put(entity, event == AOI_LEAVE ? AOI_LEAVE : AOI_MOVE);
+		} else if (event != AOI_LEAVE) {
+			aoiEvents.put(entity, AOI_MOVE);
+		}
+	}
+	
+	private void deliverAoiEvents() {
+		if (aoiEvents.isEmpty())
+			return;
+		
+		final Integer[] events = new Integer[aoiEvents.size()];
+		final AoiEntity[] entities = new AoiEntity[aoiEvents.size()];
+		int i = 0;
+		for (Map.Entry<RemoteEntity,Integer> entry : aoiEvents.entrySet()) {
+			events[i] = entry.getValue();
+			entities[i++] = AoiSnapshot.copyOf(entry.getKey());
+		}
+		aoiEvents.clear();
+		
+		aoiListenerExecutor.execute(new Runnable() {
 			public void run() {
-				sendPositionUpdates();
-				checkForTimeOuts();
+				for (AoiListener listener : aoiListeners) {
+					for (int i = 0; i < events.length; i++) {
+						if (events[i] == AOI_ENTER)
+							listener.onEnter(entities[i]);
+						else if (events[i] == AOI_MOVE)
+							listener.onMove(entities[i]);
+						else
+							listener.onLeave(entities[i]);
+					}
+				}
 			}
-		};
-		updateTimer = new Timer();
-		updateTimer.schedule(updateTask, 0, updateInterval);
+		});
 	}
 	
-	public synchronized ArrayList<Entity> entitiesInAoi() {
-		ArrayList<Entity> entities = new ArrayList<Entity>();
-		entities.addAll(directNeighbors);
-		return entities;
+	/* adds or removes an entity from the direct neighbors as of its distance to the local entity */
+	private void updateDirectNeighbor(RemoteEntity entity) {
+		long currentTime = clock.millis();
+		boolean direct = isDirect(entity, currentTime);
+		if (direct == entity.direct)
+			return;
+		
+		entity.direct = direct;
+		entity.directSince = currentTime;
+		aoiTransitions++;
+		aoiEvent(entity, direct ? AOI_ENTER : AOI_LEAVE);
+		if (direct)
+			directNeighbors.add(entity);
+		else
+			removeFrom(directNeighbors, entity);
 	}
 	
-	private void updateDirectNeighbors() {
-		directNeighbors.clear();
-		for (RemoteEntity neighbor : neighbors.values()) {
-			if (localEntity.position.distanceTo(neighbor.position) <= localEntity.aoiRadius)
-				directNeighbors.add(neighbor);
+	/* decides whether an entity is a direct neighbor with hysteresis, counting the crossings of the radius */
+	private boolean isDirect(RemoteEntity entity, long currentTime) {
+		long distance = localEntity.position.distanceTo(entity.position);
+		boolean insideAoi = (distance <= localEntity.aoiRadius);
+		if (insideAoi != entity.insideAoi) {
+			entity.insideAoi = insideAoi;
+			aoiCrossings++;
 		}
+		
+		if ((currentTime - entity.directSince < minimumDwell) ||
+			(isInside(distance, localEntity.aoiRadius, entity.direct) == entity.direct))
+			return entity.direct;
+		return !entity.direct;
 	}
 	
-	private void updateBindingNeighbors() {
-		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++)
-			bindingNeighbors[quadrant] = null;
+	/* tests a distance against an area of interest with the margin applying to an entity inside or outside of it */
+	private boolean isInside(long distance, long aoiRadius, boolean inside) {
+		return inside ? (distance <= aoiRadius + exitMargin) : (distance <= aoiRadius - enterMargin);
+	}
+	
+	private void updateTemporaryNeighbor(RemoteEntity entity) {
+		boolean temporary = entity.requestedUpdates && (entity.bindingQuadrant < 0);
+		if (temporary == entity.temporary)
+			return;
 		
-		for (RemoteEntity neighbor : neighbors.values()) {
-			int quadrant = localEntity.position.classify(neighbor.position);
-			
-			if ((bindingNeighbors[quadrant] == null) || 
-				(localEntity.position.distanceTo(neighbor.position) < localEntity.position.distanceTo(bindingNeighbors[quadrant].position))) {
-				bindingNeighbors[quadrant] = neighbor;
+		entity.temporary = temporary;
+		if (temporary)
+			temporaryNeighbors.add(entity);
+		else
+			removeFrom(temporaryNeighbors, entity);
+	}
+	
+	/* removes an entity by identity, moving the last entity of the list into its place */
+	private static void removeFrom(ArrayList<RemoteEntity> list, RemoteEntity entity) {
+		int last = list.size() - 1;
+		for (int i = last; i >= 0; i--) {
+			if (list.get(i) == entity) {
+				list.set(i, list.get(last));
+				list.remove(last);
+				return;
 			}
 		}
 	}
 	
-	private int isBindingNeighbor(RemoteEntity entity) {
-		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++) {
-			if (bindingNeighbors[quadrant] == entity)
-				return quadrant;
+	/* makes an entity the binding neighbor of a quadrant, the previous one is dropped if it is no longer needed */
+	private void setBindingNeighbor(int quadrant, RemoteEntity entity) {
+		RemoteEntity previous = bindingNeighbors[quadrant];
+		bindingNeighbors[quadrant] = entity;
+		if (entity != null) {
+			entity.bindingQuadrant = quadrant;
+			updateTemporaryNeighbor(entity);
+		}
+		
+		if ((previous != null) && (previous != entity) && (previous.bindingQuadrant == quadrant)) {
+			previous.bindingQuadrant = -1;
+			updateTemporaryNeighbor(previous);
+			dropIfUnneeded(previous);
 		}
-		return -1;
 	}
 	
-	private void updateTemporaryNeighbors() {
-		temporaryNeighbors.clear();
-		for (RemoteEntity neighbor : neighbors.values()) {
-			if ((neighbor.requestedUpdates) && (isBindingNeighbor(neighbor) < 0)) {
-				temporaryNeighbors.add(neighbor);
+	private RemoteEntity findNearestInQuadrant(int quadrant) {
+		spatialIndex.findNearestPerQuadrant(localEntity.position, nearest);
+		return nearest[quadrant];
+	}
+	
+	/* updates the neighbor sets after an entity was added, moved or changed its request for updates */
+	private void updateNeighbor(RemoteEntity entity) {
+		updateDirectNeighbor(entity);
+		
+		int quadrant = localEntity.position.classify(entity.position);
+		if (entity.bindingQuadrant >= 0) {
+			int previous = entity.bindingQuadrant;
+			if ((previous != quadrant) ||
+				(entity.position.distanceTo(localEntity.position) > entity.position.oldDistanceTo(localEntity.position))) {
+				/* binding neighbor moved away, the nearest entity of its quadrant takes over */
+				bindingNeighbors[previous] = null;
+				entity.bindingQuadrant = -1;
+				setBindingNeighbor(previous, findNearestInQuadrant(previous));
 			}
 		}
+		if ((entity.bindingQuadrant < 0) && ((bindingNeighbors[quadrant] == null) ||
+			(localEntity.position.distanceTo(entity.position) < localEntity.position.distanceTo(bindingNeighbors[quadrant].position)))) {
+			setBindingNeighbor(quadrant, entity);
+		}
+		
+		updateTemporaryNeighbor(entity);
+		dropIfUnneeded(entity);
 	}
 	
-	private void updateNeighbors() {
-		neighbors.clear();
-		for (RemoteEntity neighbor : directNeighbors)
-			neighbors.put(neighbor.identifier, neighbor);
-		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++)
-			if (bindingNeighbors[quadrant] != null)
-				neighbors.put(bindingNeighbors[quadrant].identifier, bindingNeighbors[quadrant]);
-		for (RemoteEntity neighbor : temporaryNeighbors)
-			neighbors.put(neighbor.identifier, neighbor);
+	/* forgets an entity that is neither a direct, binding nor temporary neighbor */
+	private void dropIfUnneeded(RemoteEntity entity) {
+		if (entity.direct || (entity.bindingQuadrant >= 0) || entity.temporary)
+			return;
+		
+		shortcuts.offer(entity.identifier, entity.position, localEntity.position, localEntity.aoiRadius, clock.millis());
+		neighbors.remove(entity.identifier.key);
+		spatialIndex.remove(entity);
+		failureDetector.cancel(entity);
+	}
+	
+	private void removeNeighbor(RemoteEntity entity) {
+		neighbors.remove(entity.identifier.key);
+		spatialIndex.remove(entity);
+		failureDetector.cancel(entity);
+		if (entity.direct) {
+			removeFrom(directNeighbors, entity);
+			entity.direct = false;
+			aoiTransitions++;
+			aoiEvent(entity, AOI_LEAVE);
+		}
+		if (entity.temporary) {
+			removeFrom(temporaryNeighbors, entity);
+			entity.temporary = false;
+		}
+		
+		if (entity.bindingQuadrant >= 0) {
+			int quadrant = entity.bindingQuadrant;
+			bindingNeighbors[quadrant] = null;
+			entity.bindingQuadrant = -1;
+			setBindingNeighbor(quadrant, findNearestInQuadrant(quadrant));
+		}
 	}
 	
-	private synchronized void sendPositionUpdates() {
-		updateDirectNeighbors();
-		updateBindingNeighbors();
-		updateTemporaryNeighbors();
+	/* recomputes the direct and binding neighbors after the local entity moved */
+	private void updateNeighborhood() {
+		if ((localEntity.position.x == neighborhoodCenter.x) && (localEntity.position.y == neighborhoodCenter.y) &&
+			(localEntity.aoiRadius == neighborhoodRadius))
+			return;
 		
-		/* create MOVE packet for direct and temporary neighbors */
-		Packet movePacket = new Packet();
-		movePacket.setMovePacket(localEntity, false);
+		neighborhoodCenter.setTo(localEntity.position);
+		neighborhoodRadius = localEntity.aoiRadius;
+		changed.clear();
 		
-		/* create MOVE_BNR packet for binding neighbors */
-		Packet moveBNRPacket = new Packet();
-		moveBNRPacket.setMovePacket(localEntity, true);
+		long currentTime = clock.millis();
+		for (int i = directNeighbors.size() - 1; i >= 0; i--) {
+			RemoteEntity neighbor = directNeighbors.get(i);
+			if (!isDirect(neighbor, currentTime)) {
+				neighbor.direct = false;
+				neighbor.directSince = currentTime;
+				aoiTransitions++;
+				directNeighbors.set(i, directNeighbors.get(directNeighbors.size() - 1));
+				directNeighbors.remove(directNeighbors.size() - 1);
+				changed.add(neighbor);
+				aoiEvent(neighbor, AOI_LEAVE);
+			}
+		}
 		
-		/* create NEIGHBOR packets of all binding and temporary neighbors */
-		ArrayList<Packet> neighborPackets = new ArrayList<Packet>();
+		candidates.clear();
+		spatialIndex.findInRange(localEntity.position, localEntity.aoiRadius, candidates);
+		for (RemoteEntity neighbor : candidates) {
+			if (!neighbor.direct && isDirect(neighbor, currentTime)) {
+				neighbor.direct = true;
+				neighbor.directSince = currentTime;
+				aoiTransitions++;
+				directNeighbors.add(neighbor);
+				aoiEvent(neighbor, AOI_ENTER);
+			}
+		}
+		
+		spatialIndex.findNearestPerQuadrant(localEntity.position, nearest);
 		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++) {
-			if (bindingNeighbors[quadrant] == null)
+			if (bindingNeighbors[quadrant] == nearest[quadrant])
+				continue;
+			if (bindingNeighbors[quadrant] != null) {
+				if (bindingNeighbors[quadrant].bindingQuadrant == quadrant)
+					bindingNeighbors[quadrant].bindingQuadrant = -1;
+				changed.add(bindingNeighbors[quadrant]);
+			}
+			bindingNeighbors[quadrant] = nearest[quadrant];
+		}
+		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++) {
+			if (bindingNeighbors[quadrant] != null) {
+				bindingNeighbors[quadrant].bindingQuadrant = quadrant;
+				updateTemporaryNeighbor(bindingNeighbors[quadrant]);
+			}
+		}
+		
+		for (RemoteEntity neighbor : changed) {
+			updateTemporaryNeighbor(neighbor);
+			dropIfUnneeded(neighbor);
+		}
+	}
+	
+	/* moves neighbors that reported a velocity to their extrapolated positions */
+	private void extrapolatePositions() {
+		long currentTime = clock.millis();
+		
+		extrapolated.clear();
+		for (int i = 0; i < neighbors.capacity(); i++) {
+			RemoteEntity entity = neighbors.valueAt(i);
+			if ((entity == null) || ((entity.velocity.x == 0) && (entity.velocity.y == 0)))
 				continue;
 			
-			Packet packet = new Packet();
-			packet.setNeighborPacket(bindingNeighbors[quadrant]);
-			neighborPackets.add(packet);
+			long elapsed = currentTime - entity.reportedTime;
+			long x = entity.reportedPosition.x + entity.velocity.x * elapsed / 1000;
+			long y = entity.reportedPosition.y + entity.velocity.y * elapsed / 1000;
+			if ((x != entity.position.x) || (y != entity.position.y))
+				extrapolate(entity, x, y);
 		}
-		for (RemoteEntity entity : temporaryNeighbors) {
-			Packet packet = new Packet();
-			packet.setNeighborPacket(entity);
-			neighborPackets.add(packet);
+		
+		/* the spatial index holds all new positions before the neighbor sets are updated */
+		for (RemoteEntity entity : extrapolated) {
+			updateNeighbor(entity);
+			if (entity.direct) {
+				aoiEvent(entity, AOI_MOVE);
+				notifyAboutNewNeighbors(entity);
+			}
 		}
+	}
+	
+	private void extrapolate(RemoteEntity entity, long x, long y) {
+		entity.position.setTo(x, y);
+		protocol.updateStamp(entity, false);
+		spatialIndex.update(entity);
+		extrapolated.add(entity);
+	}
+	
+	/* package-private for the benchmarks, which measure it without the rest of the tick */
+	synchronized void sendPositionUpdates() {
+		updateNeighborhood();
+		if (deadReckoning)
+			updateModel(clock.millis());
+		
+		if (deltaEncoding && (++keyframeAge >= KEYFRAME_INTERVAL)) {
+			keyframe = (keyframe + 1) & 0xFF;
+			keyframePosition.setTo(localEntity.position);
+			keyframeAge = 0;
+		}
+		
+		long currentTime = clock.millis();
+		if (uplinkBudget > 0)
+			scheduleUpdates(currentTime);
 		
-		/* send MOVE packet to all direct neighbors */
+		/* send MOVE packet to all direct neighbors, entities hosted by the same MultiNode share one */
+		updatedHosts.clear();
 		for (RemoteEntity neighbor : directNeighbors) {
-			if ((isBindingNeighbor(neighbor) < 0) && !temporaryNeighbors.contains(neighbor))
-				movePacket.send(neighbor.identifier, socket);
+			if ((neighbor.bindingQuadrant < 0) && !neighbor.temporary &&
+				isScheduled(neighbor, currentTime) && isUpdateDue(neighbor, SENT_MOVE)) {
+				if (neighbor.identifier.entity != 0) {
+					long endpointKey = Identifier.endpointKey(neighbor.identifier.key);
+					if (updatedHosts.containsKey(endpointKey))
+						continue;
+					updatedHosts.put(endpointKey, neighbor);
+				}
+				
+				long sent = uplinkBytes;
+				beginBatch(neighbor, false);
+				sendBatch(neighbor.identifier);
+				updateSent(neighbor, currentTime, sent);
+			}
 		}
 		
-		/* send MOVE_BNR and NEIGHBOR packets to all binding neighbors */
+		/* send batch of MOVE_BNR and NEIGHBOR records of all binding and temporary neighbors to all binding neighbors */
 		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++) {
-			if (bindingNeighbors[quadrant] == null)
+			RemoteEntity neighbor = bindingNeighbors[quadrant];
+			if ((neighbor == null) || !isScheduled(neighbor, currentTime))
 				continue;
 			
-			moveBNRPacket.send(bindingNeighbors[quadrant].identifier, socket);
-			
-			for (Packet packet : neighborPackets) {
-				if (!packet.getIdentifier().equals(bindingNeighbors[quadrant].identifier))
-					packet.send(bindingNeighbors[quadrant].identifier, socket);
+			long sent = uplinkBytes;
+			beginNeighborBatch(neighbor, true, SENT_BINDING);
+			addNeighborRecords(neighbor);
+			if (sendPacket.getRecordCount() > 0) {
+				sendBatch(neighbor.identifier);
+				updateSent(neighbor, currentTime, sent);
 			}
 		}
 		
-		/* send MOVE and NEIGHBOR packets to all temporary neighbors */
+		/* send batch of MOVE and NEIGHBOR records of all binding and temporary neighbors to all temporary neighbors */
 		for (RemoteEntity neighbor : temporaryNeighbors) {
-			movePacket.send(neighbor.identifier, socket);
+			if (!isScheduled(neighbor, currentTime))
+				continue;
 			
-			for (Packet packet : neighborPackets) {
-				if (!packet.getIdentifier().equals(neighbor.identifier))
-					packet.send(neighbor.identifier, socket);
+			long sent = uplinkBytes;
+			beginNeighborBatch(neighbor, false, SENT_TEMPORARY);
+			addNeighborRecords(neighbor);
+			if (sendPacket.getRecordCount() > 0) {
+				sendBatch(neighbor.identifier);
+				updateSent(neighbor, currentTime, sent);
 			}
 		}
-		
-		updateNeighbors();
 	}
 	
-	private synchronized void checkForTimeOuts() {
-		ArrayList<RemoteEntity> timeouts = new ArrayList<RemoteEntity>();
+	/* assigns each neighbor an update period, lengthening the periods of the lowest priority
+	 * neighbors first until the estimated rate of all updates fits into what the other datagrams
+	 * leave of the uplink budget, or the periods reach a third of the timeout */
+	private void scheduleUpdates(long currentTime) {
+		long elapsed = currentTime - scheduleTime;
+		if ((scheduleTime > 0) && (elapsed > 0)) {
+			long sent = uplinkBytes - scheduleUplinkBytes;
+			long other = sent - (updateBytes - scheduleUpdateBytes);
+			uplinkRate += (sent * 1000 / elapsed - uplinkRate) / 8;
+			otherRate += (other * 1000 / elapsed - otherRate) / 8;
+		}
+		scheduleTime = currentTime;
+		scheduleUplinkBytes = uplinkBytes;
+		scheduleUpdateBytes = updateBytes;
+		long budget = Math.max(0, uplinkBudget - otherRate);
+		int maximumPeriod = Math.max(1, timeout / (3 * updateInterval));
 		
-		long currentTime = System.currentTimeMillis();
+		schedule.clear();
+		for (RemoteEntity neighbor : directNeighbors) {
+			if ((neighbor.bindingQuadrant < 0) && !neighbor.temporary)
+				schedule.add(neighbor);
+		}
+		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++) {
+			if (bindingNeighbors[quadrant] != null)
+				schedule.add(bindingNeighbors[quadrant]);
+		}
+		schedule.addAll(temporaryNeighbors);
 		
-		for (RemoteEntity entity : neighbors.values()) {
-			if (entity.lastContact - currentTime >= timeout) {
-				int quadrant = isBindingNeighbor(entity);
-				if (quadrant >= 0) {
-					bindingNeighbors[quadrant] = null;
-				}
-				
-				timeouts.add(entity);
+		/* neighbors that were not updated yet are estimated at the average cost of the others */
+		long costs = 0;
+		int known = 0;
+		for (RemoteEntity neighbor : schedule) {
+			if (neighbor.updateCost > 0) {
+				costs += neighbor.updateCost;
+				known++;
 			}
 		}
+		long averageCost = (known > 0) ? costs / known : 0;
+		
+		long rate = 0;
+		for (RemoteEntity neighbor : schedule) {
+			if (neighbor.bindingQuadrant >= 0)
+				neighbor.updatePriority = -1;
+			else
+				neighbor.updatePriority = (double) localEntity.position.distanceTo(neighbor.position) / Math.max(1, neighbor.aoiRadius);
+			neighbor.updatePeriod = 1;
+			rate += cost(neighbor, averageCost) * 1000L / updateInterval;
+		}
+		
+		/* instead of sorting all neighbors, only as many as need longer periods are taken from the
+		 * heap, which is filled again whenever all of them got the longer period */
+		lowestPriority.clear();
+		for (int period = 1; (rate > budget) && (2 * period <= maximumPeriod); ) {
+			if (lowestPriority.isEmpty())
+				lowestPriority.addAll(schedule);
+			
+			RemoteEntity neighbor = lowestPriority.poll();
+			rate -= cost(neighbor, averageCost) * 1000L / (2L * updateInterval * period);
+			neighbor.updatePeriod = 2 * period;
+			if (lowestPriority.isEmpty())
+				period *= 2;
+		}
+		
+		/* longer periods apply at once, shorter ones from the next update on, so that neighbors whose
+		 * periods shrink do not all fall due in the same tick; half a tick of slack keeps the deadlines
+		 * from slipping by a tick due to timer jitter */
+		for (RemoteEntity neighbor : schedule)
+			neighbor.nextUpdate = Math.max(neighbor.nextUpdate, neighbor.lastUpdate + neighbor.updatePeriod * updateInterval - updateInterval / 2);
+	}
+	
+	private static long cost(RemoteEntity neighbor, long averageCost) {
+		return (neighbor.updateCost > 0) ? neighbor.updateCost : averageCost;
+	}
+	
+	private boolean isScheduled(RemoteEntity destination, long currentTime) {
+		return (uplinkBudget == 0) || (currentTime >= destination.nextUpdate);
+	}
+	
+	/* records the time and the bytes of an update sent to a neighbor */
+	private void updateSent(RemoteEntity destination, long currentTime, long sentBefore) {
+		int cost = (int) (uplinkBytes - sentBefore);
+		/* averaged, as the batches vary with the records that happen to be pending */
+		destination.updateCost = (destination.updateCost == 0) ? cost : (3 * destination.updateCost + cost) / 4;
+		updateBytes += cost;
+		destination.lastUpdate = currentTime;
+		destination.nextUpdate = currentTime + destination.updatePeriod * updateInterval - updateInterval / 2;
+	}
+	
+	private void sendBatch(Identifier destination) {
+		send(sendPacket, destination);
+	}
+	
+	/* starts a new dead reckoning model once the extrapolated position deviates too much or a keepalive is due */
+	private void updateModel(long currentTime) {
+		Position position = localEntity.position;
+		long elapsed = currentTime - modelTime;
+		long deviation = Math.max(Math.abs(modelPosition.x + velocity.x * elapsed / 1000 - position.x),
+								  Math.abs(modelPosition.y + velocity.y * elapsed / 1000 - position.y));
+		if ((deviation <= errorBound) && (localEntity.aoiRadius == modelAoiRadius) && (elapsed < keepaliveInterval))
+			return;
+		
+		/* the average velocity since the last model is stable for straight movement advancing in steps */
+		if ((modelTime > 0) && (elapsed > 0))
+			velocity.setTo((position.x - modelPosition.x) * 1000 / elapsed, (position.y - modelPosition.y) * 1000 / elapsed);
+		modelPosition.setTo(position);
+		modelTime = currentTime;
+		modelAoiRadius = localEntity.aoiRadius;
+		model++;
+	}
+	
+	/* legacy peers cannot extrapolate and are updated every tick, others when the model or the kind of batch they need changed */
+	private boolean isUpdateDue(RemoteEntity destination, int kind) {
+		if (!deadReckoning || (Math.min(destination.version, protocolVersion) == Packet.LEGACY) ||
+			(destination.sentModel != model) || (destination.sentKind != kind)) {
+			destination.sentModel = model;
+			destination.sentKind = kind;
+			return true;
+		}
+		return false;
+	}
+	
+	/* starts a datagram to the given neighbor in its version carrying the MOVE or MOVE_BNR record of the local entity */
+	private void beginBatch(RemoteEntity destination, boolean bindingNeighborRequest) {
+		sendPacket.setVersion(Math.min(destination.version, protocolVersion));
+		sendPacket.setBatchPacket();
 		
-		for (Entity entity : timeouts) {
-			neighbors.remove(entity.identifier);
+		Position velocity = deadReckoning ? this.velocity : null;
+		if (!deltaEncoding || (sendPacket.getVersion() == Packet.LEGACY)) {
+			sendPacket.addMoveRecord(localEntity, bindingNeighborRequest, -1, null, velocity, mtu);
+		} else if (destination.sentKeyframe == keyframe) {
+			sendPacket.addMoveRecord(localEntity, bindingNeighborRequest, keyframe, keyframePosition, velocity, mtu);
+		} else {
+			sendPacket.addMoveRecord(localEntity, bindingNeighborRequest, keyframe, null, velocity, mtu);
+			destination.sentKeyframe = keyframe;
 		}
-		directNeighbors.removeAll(timeouts);
-		temporaryNeighbors.removeAll(timeouts);
 	}
 	
+	/* starts a batch to a binding or temporary neighbor, which leaves out the MOVE record while it is not due, the
+	 * NEIGHBOR records following it are sent regardless */
+	private void beginNeighborBatch(RemoteEntity destination, boolean bindingNeighborRequest, int kind) {
+		if (isUpdateDue(destination, kind)) {
+			beginBatch(destination, bindingNeighborRequest);
+		} else {
+			sendPacket.setVersion(Math.min(destination.version, protocolVersion));
+			sendPacket.setBatchPacket();
+		}
+	}
+	
+	/* appends NEIGHBOR records of the binding and temporary neighbors the destination does not know in their current state */
+	private void addNeighborRecords(RemoteEntity destination) {
+		long currentTime = clock.millis();
+		if ((destination.introductions != null) &&
+			(destination.introductions.size() > 4 * (Position.QUADRANTS + temporaryNeighbors.size() + directNeighbors.size())))
+			destination.introductions.clear();
+		
+		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++) {
+			if ((bindingNeighbors[quadrant] == null) || (bindingNeighbors[quadrant] == destination))
+				continue;
+			
+			if (introduce(destination, bindingNeighbors[quadrant], currentTime))
+				addNeighborRecord(bindingNeighbors[quadrant], destination.identifier);
+		}
+		for (RemoteEntity entity : temporaryNeighbors) {
+			if (entity == destination)
+				continue;
+			
+			if (introduce(destination, entity, currentTime))
+				addNeighborRecord(entity, destination.identifier);
+		}
+	}
+	
+	/* returns whether the destination has to be told about the entity, which is new or changed to it, entered or left
+	 * its area of interest, which the destination acts upon, or is due for a refresh */
+	private boolean introduce(RemoteEntity destination, RemoteEntity entity, long currentTime) {
+		if (destination.introductions == null)
+			destination.introductions = new LongMap<RemoteEntity.Introduction>();
+		
+		RemoteEntity.Introduction introduction = destination.introductions.get(entity.identifier.key);
+		boolean inside = isInside(destination.position.distanceTo(entity.position), destination.aoiRadius,
+								  (introduction != null) && introduction.inside);
+		return EntityProtocol.introduce(destination.introductions, entity, inside, currentTime);
+	}
+	
+	/* appends a NEIGHBOR record to the current batch, which is sent first if it is full */
+	private void addNeighborRecord(RemoteEntity entity, Identifier destination) {
+		protocol.addNeighborRecord(sendPacket, entity, destination, mtu);
+	}
+	
+	/* removes the neighbors not heard from within the timeout, neighbors heard from since they were scheduled are scheduled again */
+	private synchronized void checkForTimeOuts() {
+		long currentTime = clock.millis();
+		
+		expired.clear();
+		failureDetector.advance(currentTime, expired);
+		for (RemoteEntity entity : expired) {
+			if (currentTime - entity.lastContact >= timeout) {
+				removeNeighbor(entity);
+				shortcuts.remove(entity.identifier.key);
+				protocol.addDeparted(entity.identifier.key, currentTime);
+			} else
+				failureDetector.schedule(entity, entity.lastContact + timeout);
+		}
+		
+		/* joining entities that never confirmed their snapshot */
+		expiredSnapshots.clear();
+		for (int i = 0; i < snapshots.capacity(); i++) {
+			Snapshot snapshot = snapshots.valueAt(i);
+			if ((snapshot != null) && (currentTime - snapshot.time >= timeout))
+				expiredSnapshots.add(snapshot);
+		}
+		for (Snapshot snapshot : expiredSnapshots)
+			snapshots.remove(Identifier.endpointKey(snapshot.identifier.key));
+	}
+	
+	/* tells an entity about the direct neighbors that entered its area of interest, as remembered in its
+	 * introductions with the same hysteresis as the direct neighbors */
 	private void notifyAboutNewNeighbors(RemoteEntity entity) {
-		for (RemoteEntity neighbor : directNeighbors) {
-			if (neighbor == entity) 
+		long currentTime = clock.millis();
+		if (entity.introductions == null)
+			entity.introductions = new LongMap<RemoteEntity.Introduction>();
+		
+		/* forget the neighbors that left the area of interest, so that they are sent again once they come back */
+		for (int i = 0; i < entity.introductions.capacity(); i++) {
+			RemoteEntity.Introduction introduction = entity.introductions.valueAt(i);
+			if ((introduction == null) || !introduction.inside)
+				continue;
+			
+			RemoteEntity neighbor = neighbors.get(entity.introductions.keyAt(i));
+			if ((neighbor == null) || !isInside(entity.position.distanceTo(neighbor.position), entity.aoiRadius, true)) {
+				introduction.inside = false;
+				introduction.time = currentTime;
+			}
+		}
+		
+		sendPacket.setVersion(Math.min(entity.version, protocolVersion));
+		sendPacket.setBatchPacket();
+		
+		candidates.clear();
+		spatialIndex.findInRange(entity.position, entity.aoiRadius, candidates);
+		for (RemoteEntity neighbor : candidates) {
+			if ((neighbor == entity) || !neighbor.direct)
 				continue;
-			if ((entity.position.distanceTo(neighbor.position) <= entity.aoiRadius) &&
-				(entity.position.oldDistanceTo(neighbor.position) > entity.aoiRadius)) {
-				Packet packet = new Packet();
-				packet.setNeighborPacket(neighbor);
-				packet.send(entity.identifier, socket);
+			
+			long distance = entity.position.distanceTo(neighbor.position);
+			boolean entered = (distance <= entity.aoiRadius) && (entity.position.oldDistanceTo(neighbor.position) > entity.aoiRadius);
+			
+			RemoteEntity.Introduction introduction = entity.introductions.get(neighbor.identifier.key);
+			if ((introduction != null) && (introduction.inside || (currentTime - introduction.time < minimumDwell))) {
+				if (entered)
+					suppressedNotifications++;
+				continue;
+			}
+			/* neighbors never sent are sent once the entity moved towards them, like without hysteresis */
+			if (!isInside(distance, entity.aoiRadius, false) ||
+				((introduction == null) && isInside(entity.position.oldDistanceTo(neighbor.position), entity.aoiRadius, false))) {
+				if (entered)
+					suppressedNotifications++;
+				continue;
+			}
+			
+			if (introduction == null) {
+				introduction = new RemoteEntity.Introduction();
+				entity.introductions.put(neighbor.identifier.key, introduction);
 			}
+			introduction.stamp = neighbor.stamp;
+			introduction.inside = true;
+			introduction.time = currentTime;
+			addNeighborRecord(neighbor, entity.identifier);
+			notifications++;
 		}
+		if (sendPacket.getRecordCount() > 0)
+			send(sendPacket, entity.identifier);
 	}
 	
 	private void handleMovePacket(Packet packet, boolean bindingNeighborRequest) {
-		Identifier identifier = packet.getIdentifier();
+		RemoteEntity entity = neighbors.get(packet.getIdentifierKey());
+		
+		if (packet.isDelta() && ((entity == null) || (entity.keyframe != packet.getKeyframe()))) {
+			/* keyframe was lost or the entity was forgotten since, ask for a new one */
+			if (entity != null)
+				entity.lastContact = clock.millis();
+			requestKeyframe(packet.getIdentifier(), packet.getVersion(), packet.getKeyframe());
+			return;
+		}
 		
-		if (!neighbors.containsKey(identifier))
-			neighbors.put(identifier, new RemoteEntity(identifier));
+		boolean known = (entity != null);
+		if (!known)
+			entity = new RemoteEntity(packet.getIdentifier());
 		
-		RemoteEntity entity = neighbors.get(identifier);
-		entity.position.setTo(packet.getPosition());
-		entity.aoiRadius = packet.getAoiRadius();
-		entity.lastContact = System.currentTimeMillis();
+		packet.getPosition(entity.position, entity.keyframePosition);
+		if ((packet.getKeyframe() >= 0) && !packet.isDelta()) {
+			entity.keyframe = packet.getKeyframe();
+			entity.keyframePosition.setTo(entity.position);
+		}
+		packet.getVelocity(entity.velocity);
+		moveNeighbor(entity, known, packet.getAoiRadius(), packet.getVersion(), bindingNeighborRequest, clock.millis());
+	}
+	
+	/* asks the sender of a delta whose keyframe is missing for a new keyframe, once for each keyframe */
+	private void requestKeyframe(Identifier destination, int version, int missing) {
+		Integer requested = requestedKeyframes.get(destination.key);
+		if ((requested != null) && (requested == missing))
+			return;
+		if (requestedKeyframes.size() >= EntityProtocol.MAXIMUM_DEPARTED)
+			requestedKeyframes.clear();
+		requestedKeyframes.put(destination.key, missing);
+		
+		sendPacket.setVersion(Math.min(version, protocolVersion));
+		sendPacket.setBatchPacket();
+		if (sendPacket.addKeyframeRecord(0, mtu))
+			send(sendPacket, destination);
+	}
+	
+	/* the next MOVE record sent to the requesting entity carries a new keyframe */
+	private void handleKeyframePacket(Packet packet) {
+		RemoteEntity entity = neighbors.get(packet.getIdentifierKey());
+		if (entity != null) {
+			entity.sentKeyframe = -1;
+			entity.sentModel = -1;
+		} else if (packet.getEntity() == 0) {
+			/* a MultiNode asks on behalf of its entities, which share the MOVE records */
+			for (RemoteEntity neighbor : directNeighbors) {
+				if (Identifier.endpointKey(neighbor.identifier.key) == packet.getOrigin().key) {
+					neighbor.sentKeyframe = -1;
+					neighbor.sentModel = -1;
+				}
+			}
+		}
+	}
+	
+	/* updates a neighbor whose new position and velocity are already set */
+	private void moveNeighbor(RemoteEntity entity, boolean known, long aoiRadius, int version, boolean bindingNeighborRequest, long currentTime) {
+		if (!known) {
+			neighbors.put(entity.identifier.key, entity);
+			protocol.forgetDeparted(entity.identifier.key);
+		}
+		
+		boolean changed = (entity.aoiRadius != aoiRadius) || (entity.version < version);
+		entity.aoiRadius = aoiRadius;
+		entity.lastContact = currentTime;
 		entity.requestedUpdates = bindingNeighborRequest;
+		entity.reportedPosition.setTo(entity.position);
+		entity.reportedTime = entity.lastContact;
+		if (!known)
+			failureDetector.schedule(entity, entity.lastContact + timeout);
+		entity.version = Math.max(entity.version, version);
+		protocol.updateStamp(entity, changed);
+		
+		if (known)
+			spatialIndex.update(entity);
+		else
+			spatialIndex.add(entity);
+		updateNeighbor(entity);
 		
-		if (directNeighbors.contains(identifier)) {
-			notifyAboutNewNeighbors(neighbors.get(identifier));
+		if (entity.direct) {
+			aoiEvent(entity, AOI_MOVE);
+			notifyAboutNewNeighbors(entity);
 		}
 	}
 	
 	private void handleNeighborPacket(Packet packet) {
-		RemoteEntity origin = neighbors.get(packet.getOrigin());
+		RemoteEntity origin = neighbors.get(packet.getOrigin().key);
 		if (origin != null)
-			origin.lastContact = System.currentTimeMillis();
+			contactNeighbor(origin, packet.getVersion(), clock.millis());
 		
-		Identifier identifier = packet.getIdentifier();
+		if (!neighbors.containsKey(packet.getIdentifierKey()) && !hasDeparted(packet.getIdentifierKey())) {
+			RemoteEntity entity = new RemoteEntity(packet.getIdentifier());
+			packet.getPosition(entity.position);
+			addNeighbor(entity, packet.getAoiRadius(), packet.getNeighborVersion(), clock.millis());
+		}
+	}
+	
+	private void contactNeighbor(RemoteEntity entity, int version, long currentTime) {
+		entity.lastContact = Math.max(entity.lastContact, currentTime);
+		if (entity.version < version) {
+			entity.version = version;
+			protocol.updateStamp(entity, true);
+		}
+	}
+	
+	/* adds a neighbor introduced by another one, whose position is already set */
+	private void addNeighbor(RemoteEntity entity, long aoiRadius, int version, long currentTime) {
+		neighbors.put(entity.identifier.key, entity);
 		
-		if (!neighbors.containsKey(identifier)) {
-			neighbors.put(identifier, new RemoteEntity(identifier));
+		entity.aoiRadius = aoiRadius;
+		entity.lastContact = currentTime;
+		failureDetector.schedule(entity, entity.lastContact + timeout);
+		entity.requestedUpdates = false;
+		entity.version = version;
+		protocol.updateStamp(entity, true);
+		spatialIndex.add(entity);
+		updateNeighbor(entity);
+	}
+	
+	/* evicts a neighbor that left, its quadrant gets the nearest remaining entity as binding neighbor */
+	private void handleLeavePacket(Packet packet) {
+		long key = packet.getIdentifierKey();
+		RemoteEntity entity = neighbors.get(key);
+		if (entity != null)
+			removeNeighbor(entity);
+		if (packet.getEntity() == 0) {
+			removeHostedEntities(key);
+			shortcuts.removeEndpoint(key);
+		} else
+			shortcuts.remove(key);
+		protocol.addDeparted(key, clock.millis());
+	}
+	
+	/* a host leaving takes the entities it hosts along */
+	private void removeHostedEntities(long endpointKey) {
+		ArrayList<RemoteEntity> hosted = null;
+		for (int i = 0; i < neighbors.capacity(); i++) {
+			RemoteEntity neighbor = neighbors.valueAt(i);
+			if ((neighbor == null) || (neighbor.identifier.entity == 0) || (Identifier.endpointKey(neighbor.identifier.key) != endpointKey))
+				continue;
+			
+			if (hosted == null)
+				hosted = new ArrayList<RemoteEntity>();
+			hosted.add(neighbor);
+		}
 		
-			RemoteEntity entity = neighbors.get(identifier);
-			entity.position.setTo(packet.getPosition());
-			entity.aoiRadius = packet.getAoiRadius();
-			entity.lastContact = System.currentTimeMillis();
-			entity.requestedUpdates = false;
+		if (hosted != null) {
+			for (RemoteEntity neighbor : hosted)
+				removeNeighbor(neighbor);
 		}
 	}
 	
+	/* hosted entities have also departed if their host has */
+	private boolean hasDeparted(long key) {
+		return protocol.hasDeparted(key, clock.millis(), timeout);
+	}
+	
+	/* forwards a JOIN greedily to the neighbor or far peer nearest to the joining entity, the node
+	 * nearer than all of them answers it */
 	private void handleJoinPacket(Packet packet) {
+		long currentTime = clock.millis();
 		Position position = packet.getPosition();
-		Entity nearestEntity = localEntity;
+		Identifier identifier = packet.getIdentifier();
+		Identifier nearest = localEntity.identifier;
+		long distance = localEntity.position.distanceTo(position);
 		
-		for (RemoteEntity neighbor : neighbors.values()) {
-			if (neighbor.position.distanceTo(position) < localEntity.position.distanceTo(position)) 
-				nearestEntity = neighbor;
+		RemoteEntity nearestEntity = spatialIndex.findNearest(position);
+		if ((nearestEntity != null) && (nearestEntity.identifier.key != identifier.key) &&
+			(nearestEntity.position.distanceTo(position) < distance)) {
+			nearest = nearestEntity.identifier;
+			distance = nearestEntity.position.distanceTo(position);
 		}
 		
-		if (nearestEntity != localEntity) {
-			/* forward to closest neighbor */
-			packet.send(nearestEntity.identifier, socket);
+		/* JOINs of older peers are not taken along shortcuts, they cannot count their hops, and the positions of
+		 * far peers may be stale, so a JOIN going in circles only goes to neighbors nearer to the joining entity */
+		boolean circling = packet.getHops() >= MAXIMUM_HOPS;
+		ShortcutTable.Contact contact = (packet.countsHops() && !circling) ? shortcuts.findNearest(position, identifier.key, currentTime) : null;
+		boolean shortcut = (contact != null) && (contact.position.distanceTo(position) < distance);
+		if (shortcut)
+			nearest = contact.identifier;
+		
+		/* the joining entity is a far peer for all nodes the JOIN passes */
+		shortcuts.offer(identifier, position, localEntity.position, localEntity.aoiRadius, currentTime);
+		
+		if (nearest != localEntity.identifier) {
+			/* a JOIN still not answered is dropped rather than answered far from the joining entity, which sends it again */
+			if (packet.getHops() >= MAXIMUM_FORWARDS)
+				return;
+			
+			forwardedJoins++;
+			if (shortcut)
+				shortcutJoins++;
+			packet.addHop();
+			send(packet, nearest);
 		} else {
-			Identifier identifier = packet.getIdentifier();
+			acceptedJoinHops.record(packet.getHops());
+			int version = Math.min(packet.getProtocolVersion(), protocolVersion);
+			collectAround(position, packet.getAoiRadius(), identifier.key);
+			if (version >= Packet.SNAPSHOT_VERSION) {
+				sendSnapshot(identifier, version, packet.getHops(), currentTime);
+				return;
+			}
+			
+			/* send join acknowledgement with the negotiated version */
+			sendPacket.setVersion(version);
+			sendPacket.setJoinAckPacket(packet.getHops());
+			send(sendPacket, identifier);
+			
+			/* send own info and inform about the neighbors around the joining entity */
+			sendPacket.setBatchPacket();
+			sendPacket.addMoveRecord(localEntity, false, mtu);
+			for (RemoteEntity neighbor : candidates)
+				addNeighborRecord(neighbor, identifier);
+			send(sendPacket, identifier);
+		}
+	}
+	
+	/* collects the neighbors inside an area of interest and the nearest one in each quadrant, which
+	 * the joining entity needs as direct and binding neighbors */
+	private void collectAround(Position position, long aoiRadius, long excludedKey) {
+		candidates.clear();
+		spatialIndex.findInRange(position, aoiRadius, candidates);
+		spatialIndex.findNearestPerQuadrant(position, nearest);
+		for (int quadrant = 0; quadrant < Position.QUADRANTS; quadrant++) {
+			if ((nearest[quadrant] != null) && !candidates.contains(nearest[quadrant]))
+				candidates.add(nearest[quadrant]);
+		}
+		
+		for (int i = candidates.size() - 1; i >= 0; i--) {
+			if (candidates.get(i).identifier.key == excludedKey) {
+				candidates.set(i, candidates.get(candidates.size() - 1));
+				candidates.remove(candidates.size() - 1);
+			}
+		}
+	}
+	
+	/* acknowledges a JOIN with a snapshot of the collected neighbors in fragments of one datagram
+	 * each, which are kept until the joining entity received all of them */
+	private void sendSnapshot(Identifier identifier, int version, int hops, long currentTime) {
+		if (snapshots.size() >= MAXIMUM_SNAPSHOTS)
+			snapshots.clear();
+		Snapshot snapshot = new Snapshot(identifier, nextSnapshot, currentTime);
+		nextSnapshot = (nextSnapshot + 1) & 0xFF;
+		
+		sendPacket.setVersion(version);
+		sendPacket.setBatchPacket();
+		sendPacket.addSnapshotRecord(snapshot.id, 0, mtu);
+		sendPacket.addMoveRecord(localEntity, false, mtu);
+		for (RemoteEntity neighbor : candidates) {
+			if (!sendPacket.addNeighborRecord(neighbor, mtu)) {
+				snapshot.fragments.add(sendPacket.getDatagram());
+				sendPacket.setBatchPacket();
+				sendPacket.addSnapshotRecord(snapshot.id, snapshot.fragments.size(), mtu);
+				sendPacket.addNeighborRecord(neighbor, mtu);
+			}
+		}
+		snapshot.fragments.add(sendPacket.getDatagram());
+		snapshots.put(Identifier.endpointKey(identifier.key), snapshot);
+		
+		sendPacket.setJoinAckPacket(hops, snapshot.id, snapshot.fragments.size());
+		send(sendPacket, identifier);
+		for (int i = 0; i < snapshot.fragments.size(); i++)
+			sendFragment(snapshot, i);
+	}
+	
+	private void sendFragment(Snapshot snapshot, int fragment) {
+		sendPacket.setDatagram(snapshot.fragments.get(fragment));
+		sendPacket.setFragmentCount(snapshot.fragments.size());
+		send(sendPacket, snapshot.identifier);
+	}
+	
+	/* sends the fragments a joining entity is missing again, or forgets the snapshot once it has all */
+	private void handleNackPacket(Packet packet) {
+		Snapshot snapshot = snapshots.get(packet.getOrigin().key);
+		if ((snapshot == null) || (snapshot.id != packet.getSnapshot()))
+			return;
+		
+		if (packet.getFragmentCount() == 0) {
+			snapshots.remove(Identifier.endpointKey(snapshot.identifier.key));
+			return;
+		}
+		for (int i = 0; i < packet.getFragmentCount(); i++) {
+			if (packet.getMissingFragment(i) < snapshot.fragments.size())
+				sendFragment(snapshot, packet.getMissingFragment(i));
+		}
+	}
+	
+	private void handleJoinAckPacket(Packet packet) {
+		if (acknowledged)
+			return;
+		
+		acknowledged = true;
+		joinHops = packet.getHops();
+		joinLatency = clock.millis() - joinTime;
+		snapshotSource = packet.getOrigin();
+		snapshotVersion = packet.getProtocolVersion();
+		if (packet.getSnapshot() != snapshot) {
+			snapshot = packet.getSnapshot();
+			receivedFragments.clear();
+		}
+		snapshotFragments = packet.getFragmentCount();
+		lastFragment = clock.millis();
+		completeJoin();
+	}
+	
+	/* the entities of a fragment are handled by the following records like any others */
+	private void handleSnapshotPacket(Packet packet) {
+		if (connected.getCount() == 0)
+			return;
+		
+		if (packet.getSnapshot() != snapshot) {
+			/* fragment answering an earlier JOIN */
+			if (acknowledged)
+				return;
+			snapshot = packet.getSnapshot();
+			receivedFragments.clear();
+		}
+		/* a fragment beyond the snapshot would stand in for a missing one */
+		if (packet.getFragment() >= (acknowledged ? snapshotFragments : packet.getFragmentCount()))
+			return;
+		receivedFragments.set(packet.getFragment());
+		lastFragment = clock.millis();
+		if (acknowledged)
+			completeJoin();
+	}
+	
+	private void completeJoin() {
+		if (receivedFragments.nextClearBit(0) < snapshotFragments)
+			return;
+		
+		/* tells the accepting node that the snapshot is complete */
+		if (snapshotFragments > 0)
+			sendNack();
+		connected.countDown();
+		joinEvent(snapshotFragments);
+	}
+	
+	private void joinEvent(int fragments) {
+		if (!NodeEvents.JOIN.isEnabled())
+			return;
+		NodeEvents.Join event = new NodeEvents.Join();
+		if (event.shouldCommit()) {
+			event.node = localEntity.identifier.toString();
+			event.hops = (int) joinHops;
+			event.latency = joinLatency;
+			event.fragments = fragments;
+			event.commit();
+		}
+	}
+	
+	private void sendNack() {
+		sendPacket.setVersion(snapshotVersion);
+		sendPacket.setBatchPacket();
+		sendPacket.addNackRecord(snapshot, receivedFragments, snapshotFragments, mtu);
+		send(sendPacket, snapshotSource);
+	}
+	
+	synchronized void handlePacket(Packet packet) {
+		long start = System.nanoTime();
+		NodeEvents.Datagram event = NodeEvents.DATAGRAM.isEnabled() ? new NodeEvents.Datagram() : null;
+		if (event != null)
+			event.begin();
+		datagramsReceived++;
+		
+		packet.rewind();
+		while (packet.nextRecord()) {
+			count(packet, recordsReceived, bytesReceived);
+			handleRecord(packet);
+		}
+		publishAoiSnapshot();
+		if (!coalesceAoiEvents)
+			deliverAoiEvents();
+		
+		handleDuration.record(System.nanoTime() - start);
+		if (event == null)
+			return;
+		event.end();
+		if (event.shouldCommit()) {
+			event.node = localEntity.identifier.toString();
+			event.origin = String.valueOf(packet.getOrigin());
+			event.type = Packet.NAMES[packet.getType()];
+			event.size = packet.data.limit();
+			event.commit();
+		}
+	}
+	
+	/* decodes a datagram on a processing thread, MOVE and NEIGHBOR records are staged in the shard
+	 * of their entity while the rare other records are handled right away */
+	void stagePacket(Packet packet, Shard shard) {
+		long start = System.nanoTime();
+		long currentTime = clock.millis();
+		
+		packet.rewind();
+		while (packet.nextRecord()) {
+			shard.count(packet);
+			switch(packet.getRecordType()) {
+			case Packet.MOVE: {
+				shardOf(packet.getIdentifierKey()).stageMove(packet, false, currentTime);
+			} break;
 			
-			/* send join acknowledgement */
-			Packet ack = new Packet();
-			ack.setJoinAckPacket();
-			ack.send(identifier, socket);
+			case Packet.MOVE_BNR: {
+				shardOf(packet.getIdentifierKey()).stageMove(packet, true, currentTime);
+			} break;
 			
-			/* send own info */
-			Packet movePacket = new Packet();
-			movePacket.setMovePacket(localEntity, false);
-			movePacket.send(identifier, socket);
+			case Packet.NEIGHBOR: {
+				shardOf(packet.getOrigin().key).stageContact(packet, currentTime);
+				shardOf(packet.getIdentifierKey()).stageNeighbor(packet, currentTime);
+			} break;
 			
-			/* inform about all neighbors */
-			for (RemoteEntity neighbor : neighbors.values()) {
-				Packet neighborPacket = new Packet();
-				neighborPacket.setNeighborPacket(neighbor);
-				neighborPacket.send(identifier, socket);
+			default: {
+				synchronized (this) {
+					if (closed)
+						return;
+					/* JOIN is answered with the neighbors known so far */
+					mergeShards();
+					handleRecord(packet);
+					publishAoiSnapshot();
+					if (!coalesceAoiEvents)
+						deliverAoiEvents();
+				}
+			} break;
 			}
 		}
+		shard.handled(System.nanoTime() - start);
+	}
+	
+	private void mergeShards() {
+		if (shards != null) {
+			for (Shard shard : shards)
+				shard.merge();
+		}
 	}
 	
-	private synchronized void handlePacket(Packet packet) {
-		switch(packet.getType()) {
+	/* merges an update staged by a shard like handleMovePacket and handleNeighborPacket would have */
+	void merge(Shard.Update update) {
+		RemoteEntity entity = neighbors.get(update.identifier.key);
+		if ((entity != null) && update.contacted)
+			contactNeighbor(entity, update.version, update.lastContact);
+		if (update.missedKeyframe >= 0)
+			requestKeyframe(update.identifier, update.version, update.missedKeyframe);
+		
+		if (update.moved) {
+			boolean known = (entity != null);
+			if (!known)
+				entity = new RemoteEntity(update.identifier);
+			entity.position.setTo(update.position);
+			entity.velocity.setTo(update.velocity);
+			moveNeighbor(entity, known, update.aoiRadius, update.version, update.requestedUpdates, update.lastContact);
+		} else if (update.introduced && (entity == null) && !hasDeparted(update.identifier.key)) {
+			entity = new RemoteEntity(update.identifier);
+			entity.position.setTo(update.position);
+			addNeighbor(entity, update.aoiRadius, update.neighborVersion, update.lastContact);
+		}
+	}
+	
+	private void handleRecord(Packet packet) {
+		switch(packet.getRecordType()) {
 		case Packet.MOVE: {
 			handleMovePacket(packet, false);
 		} break;
@@ -312,12 +1947,28 @@ public class Node extends Thread {
 			handleNeighborPacket(packet);
 		} break;
 		
+		case Packet.LEAVE: {
+			handleLeavePacket(packet);
+		} break;
+		
 		case Packet.JOIN: {
 			handleJoinPacket(packet);
-		}
+		} break;
 		
 		case Packet.JOIN_ACK: {
-			connected.countDown();
+			handleJoinAckPacket(packet);
+		} break;
+		
+		case Packet.SNAPSHOT: {
+			handleSnapshotPacket(packet);
+		} break;
+		
+		case Packet.NACK: {
+			handleNackPacket(packet);
+		} break;
+		
+		case Packet.KEYFRAME: {
+			handleKeyframePacket(packet);
 		} break;
 		
 		default: break;
@@ -0,0 +1,88 @@
+package quon;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * JavaQuON
+ * 
+ * Flight recorder events of the node class, recorded along with the GC and CPU events of the
+ * JVM. The node checks whether a type is enabled before creating an event of it, so disabled
+ * types cost it neither an allocation nor more than a check of a flag. Ticks are recorded once
+ * they take longer than a millisecond, datagrams only if enabled explicitly, e.g. in a custom
+ * recording settings file.
+ */
+class NodeEvents {
+	static final EventType TICK     = EventType.getEventType(Tick.class);
+	static final EventType DATAGRAM = EventType.getEventType(Datagram.class);
+	static final EventType JOIN     = EventType.getEventType(Join.class);
+	
+	@Name("quon.Tick")
+	@Label("Node Tick")
+	@Category("JavaQuON")
+	@Description("Update tick of a node")
+	@Threshold("1 ms")
+	static class Tick extends Event {
+		@Label("Node")
+		String node;
+		
+		@Label("Direct Neighbors")
+		int directNeighbors;
+		
+		@Label("Binding Neighbors")
+		int bindingNeighbors;
+		
+		@Label("Temporary Neighbors")
+		int temporaryNeighbors;
+		
+		@Label("Datagrams Sent")
+		long datagramsSent;
+	}
+	
+	@Name("quon.Datagram")
+	@Label("Datagram Handled")
+	@Category("JavaQuON")
+	@Description("Datagram received and handled by a node")
+	@Enabled(false)
+	static class Datagram extends Event {
+		@Label("Node")
+		String node;
+		
+		@Label("Origin")
+		String origin;
+		
+		@Label("Type")
+		String type;
+		
+		@Label("Size")
+		@DataAmount
+		int size;
+	}
+	
+	@Name("quon.Join")
+	@Label("Node Join")
+	@Category("JavaQuON")
+	@Description("Join of a node completed")
+	static class Join extends Event {
+		@Label("Node")
+		String node;
+		
+		@Label("Hops")
+		int hops;
+		
+		@Label("Latency")
+		@Timespan(Timespan.MILLISECONDS)
+		long latency;
+		
+		@Label("Snapshot Fragments")
+		int fragments;
+	}
+}
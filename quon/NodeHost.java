@@ -0,0 +1,149 @@
+package quon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * JavaQuON
+ * 
+ * Event loop host for many nodes. Each of a fixed number of selector threads multiplexes the
+ * datagram channels of its nodes and drives their periodic position updates and time out checks,
+ * so the number of threads does not depend on the number of hosted nodes. Hosted nodes must use
+ * a SelectableTransport, e.g. a ChannelTransport or a TraceTransport wrapping one.
+ */
+public class NodeHost {
+	private final EventLoop[] loops;
+	private int nextLoop;
+	
+	public NodeHost(int threads) {
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			try {
+				loops[i] = new EventLoop(Selector.open());
+			} catch (IOException e) {
+				throw new IllegalStateException("unable to open selector", e);
+			}
+			loops[i].setName("JavaQuON NodeHost " + i);
+			loops[i].setDaemon(true);
+			loops[i].start();
+		}
+	}
+	
+	synchronized void register(Node node, SelectableTransport transport) throws IOException {
+		SelectableChannel channel = transport.getChannel();
+		if (channel == null)
+			throw new IllegalArgumentException("hosted nodes require a transport with a selectable channel");
+		
+		EventLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		
+		channel.configureBlocking(false);
+		node.eventLoop = loop;
+		loop.submit(new Registration(node, transport));
+	}
+	
+	void schedule(Node node) {
+		node.eventLoop.submit(node);
+	}
+	
+	public void close() {
+		for (EventLoop loop : loops) {
+			loop.running = false;
+			loop.selector.wakeup();
+		}
+	}
+	
+	private static class Registration {
+		final Node node;
+		final SelectableTransport transport;
+		
+		Registration(Node node, SelectableTransport transport) {
+			this.node = node;
+			this.transport = transport;
+		}
+	}
+	
+	static class EventLoop extends Thread {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Object> submissions = new ConcurrentLinkedQueue<Object>();
+		private final PriorityQueue<Node> ticks = new PriorityQueue<Node>(16, new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				return Long.compare(a.nextTick, b.nextTick);
+			}
+		});
+		
+		private final Packet packet = new Packet(ByteBuffer.allocateDirect(Packet.MAXIMUM_SIZE));
+		private final Consumer<SelectionKey> receiver = new Consumer<SelectionKey>() {
+			public void accept(SelectionKey key) {
+				receive(key);
+			}
+		};
+		
+		private volatile boolean running = true;
+		
+		EventLoop(Selector selector) {
+			this.selector = selector;
+		}
+		
+		void submit(Object submission) {
+			submissions.add(submission);
+			selector.wakeup();
+		}
+		
+		public void run() {
+			while (running) {
+				processSubmissions();
+				
+				long currentTime = System.currentTimeMillis();
+				while (!ticks.isEmpty() && (ticks.peek().nextTick <= currentTime)) {
+					Node node = ticks.poll();
+					if (node.isClosed())
+						continue;
+					
+					node.tick(node.nextTick);
+					node.nextTick = Math.max(node.nextTick + node.getUpdateInterval(), currentTime);
+					ticks.add(node);
+				}
+				
+				long timeout = ticks.isEmpty() ? 0 : Math.max(1, ticks.peek().nextTick - currentTime);
+				try {
+					selector.select(receiver, timeout);
+				} catch (IOException e) { e.printStackTrace(); }
+			}
+			
+			try {
+				selector.close();
+			} catch (IOException e) { e.printStackTrace(); }
+		}
+		
+		private void processSubmissions() {
+			Object submission;
+			while ((submission = submissions.poll()) != null) {
+				if (submission instanceof Registration) {
+					Registration registration = (Registration) submission;
+					try {
+						registration.transport.getChannel().register(selector, SelectionKey.OP_READ, registration);
+					} catch (ClosedChannelException e) { e.printStackTrace(); }
+				} else {
+					Node node = (Node) submission;
+					node.nextTick = System.currentTimeMillis();
+					ticks.add(node);
+				}
+			}
+		}
+		
+		private void receive(SelectionKey key) {
+			Registration registration = (Registration) key.attachment();
+			while (packet.receive(registration.transport))
+				registration.node.handlePacket(packet);
+		}
+	}
+}
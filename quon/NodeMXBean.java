@@ -0,0 +1,60 @@
+package quon;
+
+import java.util.Map;
+
+/**
+ * JavaQuON
+ * 
+ * Management interface of a node registered with the platform MBean server, see
+ * Node.setJmxEnabled. The attributes are read from a fresh snapshot of the metrics of the node,
+ * the maps are keyed by the names of the record types. Durations are in nanoseconds.
+ */
+public interface NodeMXBean {
+	public String getIdentifier();
+	
+	public int getNeighbors();
+	
+	public int getDirectNeighbors();
+	
+	public int getBindingNeighbors();
+	
+	public int getTemporaryNeighbors();
+	
+	public long getTicks();
+	
+	public long getDatagramsSent();
+	
+	public Map<String,Long> getRecordsSent();
+	
+	public Map<String,Long> getBytesSent();
+	
+	public long getDatagramsReceived();
+	
+	public Map<String,Long> getRecordsReceived();
+	
+	public Map<String,Long> getBytesReceived();
+	
+	public double getMeanTickDuration();
+	
+	public long getTickDuration99thPercentile();
+	
+	public long getMaxTickDuration();
+	
+	public double getMeanHandleDuration();
+	
+	public long getHandleDuration99thPercentile();
+	
+	public long getMaxHandleDuration();
+	
+	public long getJoinHops();
+	
+	public long getJoinLatency();
+	
+	public double getMeanAcceptedJoinHops();
+	
+	public long getMaxAcceptedJoinHops();
+	
+	public long getForwardedJoins();
+	
+	public long getShortcutJoins();
+}
@@ -0,0 +1,102 @@
+package quon;
+
+/**
+ * JavaQuON
+ * 
+ * Immutable snapshot of the metrics of a node, taken while the node is locked. Records and
+ * bytes are counted per record type, so that the records batched into a datagram count
+ * separately, the header of a batch counts with its first record. Bytes do not include the IP
+ * and UDP headers. Durations are in nanoseconds.
+ */
+public class NodeMetrics {
+	private final long datagramsSent;
+	private final long[] recordsSent;
+	private final long[] bytesSent;
+	private final long datagramsReceived;
+	private final long[] recordsReceived;
+	private final long[] bytesReceived;
+	
+	public final int neighbors;
+	public final int directNeighbors;
+	public final int bindingNeighbors;
+	public final int temporaryNeighbors;
+	
+	public final long ticks;
+	public final long aoiCrossings;
+	public final long aoiTransitions;
+	public final long notifications;
+	public final long forwardedJoins;
+	public final long shortcutJoins;
+	public final long joinHops;      /* hops of the JOIN of the node, see joinLatency */
+	public final long joinLatency;   /* time (ms) until the JOIN of the node was acknowledged */
+	
+	public final Histogram tickDuration;
+	public final Histogram handleDuration;    /* time handling a datagram */
+	public final Histogram acceptedJoinHops;  /* hops of the JOINs of other entities the node accepted */
+	
+	NodeMetrics(long datagramsSent, long[] recordsSent, long[] bytesSent, long datagramsReceived, long[] recordsReceived, long[] bytesReceived,
+				int neighbors, int directNeighbors, int bindingNeighbors, int temporaryNeighbors,
+				long ticks, long aoiCrossings, long aoiTransitions, long notifications, long forwardedJoins, long shortcutJoins,
+				long joinHops, long joinLatency, Histogram tickDuration, Histogram handleDuration, Histogram acceptedJoinHops) {
+		this.datagramsSent = datagramsSent;
+		this.recordsSent = recordsSent.clone();
+		this.bytesSent = bytesSent.clone();
+		this.datagramsReceived = datagramsReceived;
+		this.recordsReceived = recordsReceived.clone();
+		this.bytesReceived = bytesReceived.clone();
+		this.neighbors = neighbors;
+		this.directNeighbors = directNeighbors;
+		this.bindingNeighbors = bindingNeighbors;
+		this.temporaryNeighbors = temporaryNeighbors;
+		this.ticks = ticks;
+		this.aoiCrossings = aoiCrossings;
+		this.aoiTransitions = aoiTransitions;
+		this.notifications = notifications;
+		this.forwardedJoins = forwardedJoins;
+		this.shortcutJoins = shortcutJoins;
+		this.joinHops = joinHops;
+		this.joinLatency = joinLatency;
+		this.tickDuration = new Histogram(tickDuration);
+		this.handleDuration = new Histogram(handleDuration);
+		this.acceptedJoinHops = new Histogram(acceptedJoinHops);
+	}
+	
+	public long getRecordsSent(byte type) {
+		return recordsSent[type];
+	}
+	
+	public long getBytesSent(byte type) {
+		return bytesSent[type];
+	}
+	
+	public long getRecordsReceived(byte type) {
+		return recordsReceived[type];
+	}
+	
+	public long getBytesReceived(byte type) {
+		return bytesReceived[type];
+	}
+	
+	public long getDatagramsSent() {
+		return datagramsSent;
+	}
+	
+	public long getBytesSent() {
+		return sum(bytesSent);
+	}
+	
+	public long getDatagramsReceived() {
+		return datagramsReceived;
+	}
+	
+	public long getBytesReceived() {
+		return sum(bytesReceived);
+	}
+	
+	private static long sum(long[] values) {
+		long sum = 0;
+		for (long value : values)
+			sum += value;
+		return sum;
+	}
+}
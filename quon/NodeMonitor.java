@@ -0,0 +1,146 @@
+package quon;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JavaQuON
+ * 
+ * MXBean exposing the metrics of a node, each attribute is read from a fresh snapshot.
+ */
+class NodeMonitor implements NodeMXBean {
+	private static final byte[] TYPES = {Packet.MOVE, Packet.MOVE_BNR, Packet.NEIGHBOR, Packet.JOIN, Packet.JOIN_ACK,
+										 Packet.LEAVE, Packet.SNAPSHOT, Packet.NACK, Packet.KEYFRAME};
+	
+	private final Node node;
+	private final String identifier;
+	
+	NodeMonitor(Node node, Identifier identifier) {
+		this.node = node;
+		this.identifier = identifier.toString();
+	}
+	
+	private interface Counter {
+		public long get(NodeMetrics metrics, byte type);
+	}
+	
+	private Map<String,Long> byType(Counter counter) {
+		NodeMetrics metrics = node.getMetrics();
+		Map<String,Long> counts = new LinkedHashMap<String,Long>();
+		for (byte type : TYPES)
+			counts.put(Packet.NAMES[type], counter.get(metrics, type));
+		return counts;
+	}
+	
+	public String getIdentifier() {
+		return identifier;
+	}
+	
+	public int getNeighbors() {
+		return node.getMetrics().neighbors;
+	}
+	
+	public int getDirectNeighbors() {
+		return node.getMetrics().directNeighbors;
+	}
+	
+	public int getBindingNeighbors() {
+		return node.getMetrics().bindingNeighbors;
+	}
+	
+	public int getTemporaryNeighbors() {
+		return node.getMetrics().temporaryNeighbors;
+	}
+	
+	public long getTicks() {
+		return node.getMetrics().ticks;
+	}
+	
+	public long getDatagramsSent() {
+		return node.getMetrics().getDatagramsSent();
+	}
+	
+	public Map<String,Long> getRecordsSent() {
+		return byType(new Counter() {
+			public long get(NodeMetrics metrics, byte type) {
+				return metrics.getRecordsSent(type);
+			}
+		});
+	}
+	
+	public Map<String,Long> getBytesSent() {
+		return byType(new Counter() {
+			public long get(NodeMetrics metrics, byte type) {
+				return metrics.getBytesSent(type);
+			}
+		});
+	}
+	
+	public long getDatagramsReceived() {
+		return node.getMetrics().getDatagramsReceived();
+	}
+	
+	public Map<String,Long> getRecordsReceived() {
+		return byType(new Counter() {
+			public long get(NodeMetrics metrics, byte type) {
+				return metrics.getRecordsReceived(type);
+			}
+		});
+	}
+	
+	public Map<String,Long> getBytesReceived() {
+		return byType(new Counter() {
+			public long get(NodeMetrics metrics, byte type) {
+				return metrics.getBytesReceived(type);
+			}
+		});
+	}
+	
+	public double getMeanTickDuration() {
+		return node.getMetrics().tickDuration.getMean();
+	}
+	
+	public long getTickDuration99thPercentile() {
+		return node.getMetrics().tickDuration.getPercentile(99);
+	}
+	
+	public long getMaxTickDuration() {
+		return node.getMetrics().tickDuration.getMax();
+	}
+	
+	public double getMeanHandleDuration() {
+		return node.getMetrics().handleDuration.getMean();
+	}
+	
+	public long getHandleDuration99thPercentile() {
+		return node.getMetrics().handleDuration.getPercentile(99);
+	}
+	
+	public long getMaxHandleDuration() {
+		return node.getMetrics().handleDuration.getMax();
+	}
+	
+	public long getJoinHops() {
+		return node.getMetrics().joinHops;
+	}
+	
+	public long getJoinLatency() {
+		return node.getMetrics().joinLatency;
+	}
+	
+	public double getMeanAcceptedJoinHops() {
+		return node.getMetrics().acceptedJoinHops.getMean();
+	}
+	
+	public long getMaxAcceptedJoinHops() {
+		return node.getMetrics().acceptedJoinHops.getMax();
+	}
+	
+	public long getForwardedJoins() {
+		return node.getMetrics().forwardedJoins;
+	}
+	
+	public long getShortcutJoins() {
+		return node.getMetrics().shortcutJoins;
+	}
+}
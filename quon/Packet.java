@@ -1,15 +1,26 @@
 package quon;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * JavaQuON
  * 
- * Packet class encapsulating JavaQuON UDP datagrams.
+ * Packet class encapsulating JavaQuON UDP datagrams. Records are read through a cursor: after
+ * rewind, each call of nextRecord decodes the next record of the datagram.
+ * 
+ * Version 0 (legacy) datagrams hold a single record in a fixed layout. Version 1 datagrams are a
+ * BATCH of MOVE, MOVE_BNR and NEIGHBOR records for one destination, with positions and area of
+ * interest radii encoded as zigzag varints. MOVE records may carry a keyframe identifier, in which
+ * case later MOVE records can encode the position as a delta to that keyframe, and the velocity
+ * of the entity for receivers extrapolating its position. Records about entities hosted by a
+ * MultiNode carry their entity sub-identifier. A receiver without the keyframe of a delta asks the
+ * sender for a new one with a KEYFRAME record. Version 2 adds the records of bootstrap snapshots, a
+ * node accepting a JOIN sends the entities around the joining one in fragments starting with a
+ * SNAPSHOT record, and the joining node asks for lost fragments with NACK records. The version is
+ * negotiated during JOIN, which always uses the legacy layout.
  */
 public class Packet {
 	public static final byte MOVE     =  0;
@@ -18,7 +29,11 @@ public class Packet {
 	public static final byte JOIN	  =  3;
 	public static final byte JOIN_ACK =  4;
 	public static final byte LEAVE    =  5;
-	public static final byte INVALID  =  6;
+	public static final byte BATCH    =  6;
+	public static final byte INVALID  =  7;
+	public static final byte SNAPSHOT =  8;
+	public static final byte NACK     =  9;
+	public static final byte KEYFRAME = 10;
 	
 	public static final String[] NAMES = {"MOVE",
 										  "MOVE_BNR",
@@ -26,102 +41,782 @@ public class Packet {
 										  "JOIN",
 										  "JOIN_ACK",
 										  "LEAVE",
-										  "INVALID"};
-
-	/* | TYPE | POSITION | AOI_RADIUS [| IDENTIFIER ] */
+										  "BATCH",
+										  "INVALID",
+										  "SNAPSHOT",
+										  "NACK",
+										  "KEYFRAME"};
+	
+	public static final int LEGACY  = 0;
+	public static final int VERSION = 2; /* highest version spoken by this implementation */
+	public static final int SNAPSHOT_VERSION = 2; /* first version with bootstrap snapshots */
+	
+	/* version 0: | TYPE | POSITION | AOI_RADIUS [| IDENTIFIER ] [| VERSION ] [| HOPS ]
+	 * JOIN_ACK:  | TYPE [| VERSION ] [| HOPS ] [| SNAPSHOT | FRAGMENTS ]
+	 * the offsets were originally computed from bit sizes, they are kept for compatibility, peers
+	 * not knowing the hop count of JOIN and JOIN_ACK ignore it */
 	public final static int TYPE       = 0;
-	public final static int POSITION   = TYPE + Byte.SIZE;
-	public final static int AOI_RADIUS = POSITION + Position.SIZE;
-	public final static int IDENTIFIER = AOI_RADIUS + Long.SIZE;
+	public final static int POSITION   = 8;
+	public final static int AOI_RADIUS = 136;
+	public final static int IDENTIFIER = 200;
 	
 	public final static int SIZE_MOVE_PACKET     = IDENTIFIER + 1;
 	public final static int SIZE_NEIGHBOR_PACKET = IDENTIFIER + Identifier.SIZE + 1;
-	public final static int SIZE_JOIN_PACKET     = IDENTIFIER + Identifier.SIZE + 1;
-	public final static int SIZE_JOIN_ACK_PACKET = TYPE + 1;
-	public final static int MAXIMUM_SIZE         = IDENTIFIER + Identifier.SIZE + 1;
+	public final static int SIZE_JOIN_PACKET     = IDENTIFIER + Identifier.SIZE + 2;
+	public final static int SIZE_JOIN_ACK_PACKET = TYPE + 6;
+	public final static int MAXIMUM_SIZE         = 1472; /* UDP payload of an Ethernet frame */
+	
+	/* version 1: | VERSION << 4 | BATCH | RECORD ...
+	 * MOVE:      | FLAGS << 4 | TYPE [| ENTITY ] [| KEYFRAME ] | X | Y | AOI_RADIUS [| VELOCITY_X | VELOCITY_Y ]
+	 * NEIGHBOR:  | FLAGS << 4 | TYPE [| ENTITY ] | IDENTIFIER | VERSION | X | Y | AOI_RADIUS
+	 * LEAVE:     | FLAGS << 4 | TYPE [| ENTITY ]
+	 * KEYFRAME:  | FLAGS << 4 | TYPE [| ENTITY ]  (sent alone, peers not knowing it ignore the datagram)
+	 * the entity sub-identifier of MOVE, LEAVE and KEYFRAME records refers to the host sending the datagram
+	 * version 2: as version 1 with
+	 * SNAPSHOT:  | TYPE | SNAPSHOT | FRAGMENT | FRAGMENTS  (first record of each fragment, 16 bit fragment numbers)
+	 * NACK:      | TYPE | SNAPSHOT | COUNT | FRAGMENT ...  (fragments missing, none once the snapshot is complete) */
+	public final static int FLAG_KEYFRAME = 0x10; /* position is absolute and becomes the keyframe */
+	public final static int FLAG_DELTA    = 0x20; /* position is a delta to the keyframe */
+	public final static int FLAG_VELOCITY = 0x40; /* velocity (units per second) follows the area of interest radius */
+	public final static int FLAG_ENTITY   = 0x80; /* unsigned 16 bit entity sub-identifier follows the type */
 	
-	public byte[] data;
+	private final static int ENTITY_SIZE = Short.BYTES;
+	private final static int SNAPSHOT_SIZE = 2 + 2 * Short.BYTES;
+	private final static int MAXIMUM_VARINT_SIZE = 10;
+	private final static int MAXIMUM_RECORD_SIZE = ENTITY_SIZE + Math.max(1 + Identifier.COMPACT_SIZE + 1 + 3 * MAXIMUM_VARINT_SIZE, 2 + 5 * MAXIMUM_VARINT_SIZE);
+	public final static int MINIMUM_BATCH_SIZE   = Math.max(1 + MAXIMUM_RECORD_SIZE, SIZE_NEIGHBOR_PACKET);
+	
+	public final ByteBuffer data;
 	public Identifier origin;
 	
+	private int version;  /* version of the datagram being read or written */
+	private int count;    /* number of records written */
+	
+	/* records and bytes written per record type, the header of a batch counts with its first record */
+	private final int[] writtenRecords = new int[NAMES.length];
+	private final int[] writtenBytes = new int[NAMES.length];
+	private boolean tallied;  /* the counts above describe the datagram, false after setDatagram */
+	
+	/* cursor and fields of the current record */
+	private int start;  /* offset of the current record, or of the datagram for the first record of a batch */
+	private int next;
+	private boolean first;
+	private byte recordType;
+	private int flags;
+	private int keyframe;
+	private long x;
+	private long y;
+	private long aoiRadius;
+	private long velocityX;
+	private long velocityY;
+	private int identifier;
+	private int entity;
+	private int neighborVersion;
+	private int snapshot;
+	private int fragment;   /* fragment of a SNAPSHOT record */
+	private int fragments;  /* fragments of a snapshot or fragments listed by a NACK record */
+	
+	public Packet() {
+		this(ByteBuffer.allocate(MAXIMUM_SIZE));
+	}
+	
+	public Packet(ByteBuffer data) {
+		this.data = data;
+	}
+	
+	/**
+	 * Sets the version used for writing the following records.
+	 */
+	public void setVersion(int version) {
+		this.version = version;
+	}
+	
+	public int getVersion() {
+		return version;
+	}
+	
 	public byte getType() {
-		switch(data[TYPE]) {
+		if (data.limit() <= TYPE)
+			return INVALID;
+		
+		int header = data.get(TYPE);
+		int type = header & 0x0F;
+		int version = (header >> 4) & 0x0F;
+		if (version > VERSION)
+			return INVALID;
+		if (version != LEGACY)
+			return (type == BATCH) ? BATCH : INVALID;
+		
+		switch(type) {
 		case MOVE:
-		case MOVE_BNR:
-		case NEIGHBOR: 
-		case JOIN:
+		case MOVE_BNR: return (data.limit() >= IDENTIFIER) ? (byte) type : INVALID;
+		case NEIGHBOR:
+		case JOIN: return (data.limit() >= IDENTIFIER + Identifier.SIZE) ? (byte) type : INVALID;
 		case JOIN_ACK:
-		case LEAVE: return data[TYPE];
+		case LEAVE: return (byte) type;
 		default: return INVALID;
 		}
 	}
 	
+	public void rewind() {
+		version = (data.limit() > TYPE) ? (data.get(TYPE) >> 4) & 0x0F : LEGACY;
+		next = (version == LEGACY) ? TYPE : TYPE + 1;
+		first = true;
+	}
+	
+	/**
+	 * Decodes the next record of the datagram, returns false if there is none or it is malformed.
+	 */
+	public boolean nextRecord() {
+		byte type = getType();
+		if (type == INVALID)
+			return false;
+		
+		if (version == LEGACY) {
+			if (!first)
+				return false;
+			first = false;
+			
+			recordType = type;
+			flags = 0;
+			keyframe = -1;
+			entity = 0;
+			if (type == JOIN_ACK) {
+				snapshot = (data.limit() > TYPE + 3) ? data.get(TYPE + 3) & 0xFF : 0;
+				fragments = (data.limit() >= TYPE + 6) ? data.getShort(TYPE + 4) & 0xFFFF : 0;
+			}
+			if ((type == JOIN_ACK) || (type == LEAVE))
+				return true;
+			
+			x = data.getLong(POSITION);
+			y = data.getLong(POSITION + Long.BYTES);
+			aoiRadius = data.getLong(AOI_RADIUS);
+			velocityX = velocityY = 0;
+			identifier = IDENTIFIER;
+			neighborVersion = LEGACY;
+			return true;
+		}
+		
+		if (next >= data.limit())
+			return false;
+		
+		start = (next == TYPE + 1) ? TYPE : next;
+		int header = data.get(next++);
+		recordType = (byte) (header & 0x0F);
+		flags = header & 0xF0;
+		keyframe = -1;
+		entity = 0;
+		if ((flags & FLAG_ENTITY) != 0) {
+			if (next + ENTITY_SIZE > data.limit())
+				return false;
+			entity = data.getShort(next) & 0xFFFF;
+			next += ENTITY_SIZE;
+		}
+		
+		switch(recordType) {
+		case MOVE:
+		case MOVE_BNR: {
+			if ((flags & (FLAG_KEYFRAME | FLAG_DELTA)) != 0) {
+				if (next >= data.limit())
+					return false;
+				keyframe = data.get(next++) & 0xFF;
+			}
+		} break;
+		
+		case LEAVE:
+		case KEYFRAME: return true;
+		
+		case SNAPSHOT: {
+			if ((version < SNAPSHOT_VERSION) || (next + SNAPSHOT_SIZE - 1 > data.limit()))
+				return false;
+			snapshot = data.get(next) & 0xFF;
+			fragment = data.getShort(next + 1) & 0xFFFF;
+			fragments = data.getShort(next + 3) & 0xFFFF;
+			next += SNAPSHOT_SIZE - 1;
+		} return true;
+		
+		case NACK: {
+			if ((version < SNAPSHOT_VERSION) || (next + 3 > data.limit()))
+				return false;
+			snapshot = data.get(next) & 0xFF;
+			fragments = data.getShort(next + 1) & 0xFFFF;
+			fragment = next + 3;
+			next += 3 + fragments * Short.BYTES;
+		} return next <= data.limit();
+		
+		case NEIGHBOR: {
+			if (next + Identifier.COMPACT_SIZE + 1 > data.limit())
+				return false;
+			identifier = next;
+			neighborVersion = data.get(next + Identifier.COMPACT_SIZE);
+			next += Identifier.COMPACT_SIZE + 1;
+		} break;
+		
+		default: return false;
+		}
+		
+		x = getVarint();
+		y = getVarint();
+		aoiRadius = getVarint();
+		velocityX = velocityY = 0;
+		if ((recordType != NEIGHBOR) && ((flags & FLAG_VELOCITY) != 0)) {
+			velocityX = getVarint();
+			velocityY = getVarint();
+		}
+		return next <= data.limit();
+	}
+	
+	public byte getRecordType() {
+		return recordType;
+	}
+	
+	/**
+	 * Bytes of the current record, including the header of the datagram for its first record.
+	 */
+	public int getRecordSize() {
+		return (version == LEGACY) ? data.limit() : Math.min(next, data.limit()) - start;
+	}
+	
 	public Position getPosition() {
-		return new Position(data, POSITION);
+		return new Position(x, y);
+	}
+	
+	public void getPosition(Position position) {
+		position.setTo(x, y);
+	}
+	
+	/**
+	 * Gets the position of a MOVE record, resolving delta records against the given keyframe.
+	 */
+	public void getPosition(Position position, Position keyframePosition) {
+		if (isDelta())
+			position.setTo(keyframePosition.x + x, keyframePosition.y + y);
+		else
+			position.setTo(x, y);
 	}
 	
 	public long getAoiRadius() {
-		return ByteBuffer.wrap(data, AOI_RADIUS, Long.SIZE).order(ByteOrder.BIG_ENDIAN).getLong();
+		return aoiRadius;
+	}
+	
+	/**
+	 * Keyframe identifier of a MOVE record or -1 if it has none.
+	 */
+	public int getKeyframe() {
+		return keyframe;
+	}
+	
+	public boolean isDelta() {
+		return (flags & FLAG_DELTA) != 0;
+	}
+	
+	public boolean hasVelocity() {
+		return (flags & FLAG_VELOCITY) != 0;
+	}
+	
+	/**
+	 * Velocity (units per second) of a MOVE record, zero if the record carries none.
+	 */
+	public void getVelocity(Position velocity) {
+		velocity.setTo(velocityX, velocityY);
+	}
+	
+	/**
+	 * Version spoken by the peer described by a NEIGHBOR record.
+	 */
+	public int getNeighborVersion() {
+		return neighborVersion;
+	}
+	
+	/**
+	 * Version offered by a JOIN or accepted by a JOIN_ACK.
+	 */
+	public int getProtocolVersion() {
+		int offset = (recordType == JOIN) ? IDENTIFIER + Identifier.SIZE : TYPE + 1;
+		return (data.limit() > offset) ? Math.min(data.get(offset) & 0xFF, VERSION) : LEGACY;
+	}
+	
+	/**
+	 * Times a JOIN was forwarded, or the JOIN acknowledged by a JOIN_ACK was forwarded.
+	 */
+	public int getHops() {
+		int offset = hopsOffset();
+		return (data.limit() > offset) ? data.get(offset) & 0xFF : 0;
+	}
+	
+	/**
+	 * Snapshot announced by a JOIN_ACK or referred to by a SNAPSHOT or NACK record.
+	 */
+	public int getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * Fragment of the snapshot starting with the current SNAPSHOT record.
+	 */
+	public int getFragment() {
+		return fragment;
+	}
+	
+	/**
+	 * Fragments of the snapshot announced by a JOIN_ACK or a SNAPSHOT record, 0 if the JOIN_ACK
+	 * announces none, or number of missing fragments listed by a NACK record.
+	 */
+	public int getFragmentCount() {
+		return fragments;
+	}
+	
+	/**
+	 * Missing fragment listed by a NACK record at the given index below getFragmentCount().
+	 */
+	public int getMissingFragment(int index) {
+		return data.getShort(fragment + index * Short.BYTES) & 0xFFFF;
+	}
+	
+	/**
+	 * Whether the JOIN or JOIN_ACK carries a hop count, those of older peers do not.
+	 */
+	public boolean countsHops() {
+		return data.limit() > hopsOffset();
+	}
+	
+	/**
+	 * Counts a hop of a JOIN about to be forwarded.
+	 */
+	public void addHop() {
+		int offset = hopsOffset();
+		if ((data.limit() > offset) && ((data.get(offset) & 0xFF) < 0xFF))
+			data.put(offset, (byte) (data.get(offset) + 1));
+	}
+	
+	private int hopsOffset() {
+		return (recordType == JOIN) ? IDENTIFIER + Identifier.SIZE + 1 : TYPE + 2;
 	}
 	
 	public Identifier getIdentifier() {
-		if ((getType() == NEIGHBOR) || (getType() == JOIN))
-			return new Identifier(data, IDENTIFIER);
+		if ((recordType == NEIGHBOR) || (recordType == JOIN))
+			return new Identifier(data, identifier, version != LEGACY, entity);
+		else if (entity != 0)
+			return new Identifier(origin, entity);
 		else
 			return origin;
 	}
 	
+	/**
+	 * Key of the identifier returned by getIdentifier(), read without creating an identifier.
+	 */
+	public long getIdentifierKey() {
+		if ((recordType == NEIGHBOR) || (recordType == JOIN))
+			return Identifier.entityKey(Identifier.key(data, identifier, version != LEGACY), entity);
+		else
+			return Identifier.entityKey(origin.key, entity);
+	}
+	
+	/**
+	 * Entity sub-identifier of the current record, 0 unless it refers to a hosted entity.
+	 */
+	public int getEntity() {
+		return entity;
+	}
+	
 	public Identifier getOrigin() {
 		return origin;
 	}
 	
 	public void setMovePacket(Entity entity, boolean bindingNeighborRequest) {
-		data = new byte[SIZE_MOVE_PACKET];
-		if (bindingNeighborRequest) {
-			data[TYPE] = MOVE_BNR;
-		} else {
-			data[TYPE] = MOVE;
-		}
-		entity.position.insertData(data, POSITION);
-		ByteBuffer.wrap(data, AOI_RADIUS, Long.SIZE).order(ByteOrder.BIG_ENDIAN).putLong(entity.aoiRadius);
+		setBatchPacket();
+		addMoveRecord(entity, bindingNeighborRequest, MAXIMUM_SIZE);
 	}
 	
 	public void setNeighborPacket(RemoteEntity entity) {
-		data = new byte[SIZE_NEIGHBOR_PACKET];
-		data[TYPE] = NEIGHBOR;
-		entity.position.insertData(data, POSITION);
-		ByteBuffer.wrap(data, AOI_RADIUS, Long.SIZE).order(ByteOrder.BIG_ENDIAN).putLong(entity.aoiRadius);
-		entity.identifier.insertData(data, IDENTIFIER);
+		setBatchPacket();
+		addNeighborRecord(entity, MAXIMUM_SIZE);
 	}
 	
 	public void setJoinPacket(Entity entity) {
-		data = new byte[SIZE_JOIN_PACKET];
-		data[TYPE] = JOIN;
+		data.clear();
+		data.put(TYPE, JOIN);
 		entity.position.insertData(data, POSITION);
-		ByteBuffer.wrap(data, AOI_RADIUS, Long.SIZE).order(ByteOrder.BIG_ENDIAN).putLong(entity.aoiRadius);
+		data.putLong(AOI_RADIUS, entity.aoiRadius);
 		entity.identifier.insertData(data, IDENTIFIER);
+		data.put(IDENTIFIER + Identifier.SIZE, (byte) version);
+		data.put(IDENTIFIER + Identifier.SIZE + 1, (byte) 0);
+		data.limit(SIZE_JOIN_PACKET);
+		clearCounts();
+		written(JOIN, TYPE);
+	}
+	
+	public void setJoinAckPacket(int hops) {
+		setJoinAckPacket(hops, 0, 0);
+	}
+	
+	/**
+	 * JOIN_ACK announcing a bootstrap snapshot of the given number of fragments, if any.
+	 */
+	public void setJoinAckPacket(int hops, int snapshot, int fragments) {
+		data.clear();
+		data.put(TYPE, JOIN_ACK);
+		data.put(TYPE + 1, (byte) version);
+		data.put(TYPE + 2, (byte) Math.min(hops, 0xFF));
+		data.put(TYPE + 3, (byte) snapshot);
+		data.putShort(TYPE + 4, (short) fragments);
+		data.limit(SIZE_JOIN_ACK_PACKET);
+		clearCounts();
+		written(JOIN_ACK, TYPE);
 	}
 	
-	public void setJoinAckPacket() {
-		data = new byte[SIZE_JOIN_ACK_PACKET];
-		data[TYPE] = JOIN_ACK;
+	/**
+	 * Starts a datagram for records to one destination. Version 1 datagrams are batches, while
+	 * legacy datagrams hold a single record.
+	 */
+	public void setBatchPacket() {
+		data.clear();
+		clearCounts();
+		if (version == LEGACY) {
+			data.limit(0);
+		} else {
+			data.put(TYPE, (byte) ((version << 4) | BATCH));
+			data.limit(TYPE + 1);
+		}
+	}
+	
+	public int getRecordCount() {
+		return count;
+	}
+	
+	/**
+	 * Appends an absolute MOVE or MOVE_BNR record, returns false if the datagram is full.
+	 */
+	public boolean addMoveRecord(Entity entity, boolean bindingNeighborRequest, int maximumSize) {
+		return addMoveRecord(entity, bindingNeighborRequest, -1, null, maximumSize);
+	}
+	
+	/**
+	 * Appends a MOVE or MOVE_BNR record, returns false if the datagram is full. If a keyframe
+	 * identifier is given, the position is encoded as a delta to the given keyframe position or,
+	 * if that is null, as the new keyframe. Legacy datagrams always carry the absolute position.
+	 */
+	public boolean addMoveRecord(Entity entity, boolean bindingNeighborRequest, int keyframe, Position keyframePosition, int maximumSize) {
+		return addMoveRecord(entity, bindingNeighborRequest, keyframe, keyframePosition, null, maximumSize);
 	}
 	
-	public void receive(DatagramSocket socket) {
-		data = new byte[MAXIMUM_SIZE];
-		DatagramPacket packet = new DatagramPacket(data, data.length);
+	/**
+	 * Appends a MOVE or MOVE_BNR record like above, which also carries the given velocity unless
+	 * it is null. Legacy datagrams cannot carry a velocity.
+	 */
+	public boolean addMoveRecord(Entity entity, boolean bindingNeighborRequest, int keyframe, Position keyframePosition, Position velocity, int maximumSize) {
+		byte type = bindingNeighborRequest ? MOVE_BNR : MOVE;
 		
-		try {
-			socket.receive(packet);
-		} catch (IOException e) { e.printStackTrace(); }
+		if (version == LEGACY) {
+			if ((count > 0) || (maximumSize < SIZE_MOVE_PACKET))
+				return false;
+			
+			data.limit(SIZE_MOVE_PACKET);
+			data.put(TYPE, type);
+			entity.position.insertData(data, POSITION);
+			data.putLong(AOI_RADIUS, entity.aoiRadius);
+			data.put(IDENTIFIER, (byte) 0);
+			written(type, TYPE);
+			return true;
+		}
+		
+		long positionX = entity.position.x;
+		long positionY = entity.position.y;
+		int hosted = entity.identifier.entity;
+		int header = type;
+		if (hosted != 0)
+			header |= FLAG_ENTITY;
+		if (keyframe >= 0) {
+			if (keyframePosition != null) {
+				positionX -= keyframePosition.x;
+				positionY -= keyframePosition.y;
+				header |= FLAG_DELTA;
+			} else {
+				header |= FLAG_KEYFRAME;
+			}
+		}
+		
+		int offset = data.limit();
+		int size = 1 + ((hosted != 0) ? ENTITY_SIZE : 0) + ((keyframe >= 0) ? 1 : 0) +
+				   varintSize(positionX) + varintSize(positionY) + varintSize(entity.aoiRadius);
+		if (velocity != null) {
+			header |= FLAG_VELOCITY;
+			size += varintSize(velocity.x) + varintSize(velocity.y);
+		}
+		if (offset + size > maximumSize)
+			return false;
+		
+		data.limit(offset + size);
+		data.put(offset++, (byte) header);
+		offset = putEntity(offset, hosted);
+		if (keyframe >= 0)
+			data.put(offset++, (byte) keyframe);
+		offset = putVarint(offset, positionX);
+		offset = putVarint(offset, positionY);
+		offset = putVarint(offset, entity.aoiRadius);
+		if (velocity != null) {
+			offset = putVarint(offset, velocity.x);
+			putVarint(offset, velocity.y);
+		}
+		written(type, data.limit() - size);
+		return true;
+	}
+	
+	/**
+	 * Appends a NEIGHBOR record, returns false if the datagram is full.
+	 */
+	public boolean addNeighborRecord(RemoteEntity entity, int maximumSize) {
+		if (version == LEGACY) {
+			if ((count > 0) || (maximumSize < SIZE_NEIGHBOR_PACKET))
+				return false;
+			
+			data.limit(SIZE_NEIGHBOR_PACKET);
+			data.put(TYPE, NEIGHBOR);
+			entity.position.insertData(data, POSITION);
+			data.putLong(AOI_RADIUS, entity.aoiRadius);
+			entity.identifier.insertData(data, IDENTIFIER);
+			data.put(IDENTIFIER + Identifier.SIZE, (byte) 0);
+			written(NEIGHBOR, TYPE);
+			return true;
+		}
+		
+		int offset = data.limit();
+		int hosted = entity.identifier.entity;
+		int size = 1 + ((hosted != 0) ? ENTITY_SIZE : 0) + Identifier.COMPACT_SIZE + 1 +
+				   varintSize(entity.position.x) + varintSize(entity.position.y) + varintSize(entity.aoiRadius);
+		if (offset + size > maximumSize)
+			return false;
+		
+		data.limit(offset + size);
+		data.put(offset++, (byte) ((hosted != 0) ? NEIGHBOR | FLAG_ENTITY : NEIGHBOR));
+		offset = putEntity(offset, hosted);
+		entity.identifier.insertCompactData(data, offset);
+		offset += Identifier.COMPACT_SIZE;
+		data.put(offset++, (byte) entity.version);
+		offset = putVarint(offset, entity.position.x);
+		offset = putVarint(offset, entity.position.y);
+		putVarint(offset, entity.aoiRadius);
+		written(NEIGHBOR, data.limit() - size);
+		return true;
+	}
+	
+	/**
+	 * Appends a LEAVE record announcing that the sender leaves, returns false if the datagram is full.
+	 */
+	public boolean addLeaveRecord(int maximumSize) {
+		return addLeaveRecord(0, maximumSize);
+	}
+	
+	/**
+	 * Appends a LEAVE record announcing that the entity with the given sub-identifier hosted by
+	 * the sender leaves, or the sender with all its entities if it is 0. Legacy datagrams cannot
+	 * announce hosted entities.
+	 */
+	public boolean addLeaveRecord(int entity, int maximumSize) {
+		if (version == LEGACY) {
+			if (entity != 0)
+				return false;
+			if (count > 0)
+				return false;
+			
+			data.limit(TYPE + 1);
+			data.put(TYPE, LEAVE);
+			written(LEAVE, TYPE);
+			return true;
+		}
+		
+		int offset = data.limit();
+		int size = 1 + ((entity != 0) ? ENTITY_SIZE : 0);
+		if (offset + size > maximumSize)
+			return false;
+		
+		data.limit(offset + size);
+		data.put(offset++, (byte) ((entity != 0) ? LEAVE | FLAG_ENTITY : LEAVE));
+		putEntity(offset, entity);
+		written(LEAVE, data.limit() - size);
+		return true;
+	}
+	
+	/**
+	 * Appends a KEYFRAME record asking the destination for a new position keyframe, on behalf of
+	 * the entity with the given sub-identifier hosted by the sender or the sender itself if it is 0.
+	 * Returns false if the datagram is full or legacy, which has no keyframes.
+	 */
+	public boolean addKeyframeRecord(int entity, int maximumSize) {
+		int offset = data.limit();
+		int size = 1 + ((entity != 0) ? ENTITY_SIZE : 0);
+		if ((version == LEGACY) || (offset + size > maximumSize))
+			return false;
+		
+		data.limit(offset + size);
+		data.put(offset++, (byte) ((entity != 0) ? KEYFRAME | FLAG_ENTITY : KEYFRAME));
+		putEntity(offset, entity);
+		written(KEYFRAME, data.limit() - size);
+		return true;
+	}
+	
+	/**
+	 * Appends a SNAPSHOT record starting a fragment of a bootstrap snapshot, returns false if the
+	 * datagram is full or its version has no snapshots. The fragment count can be set later.
+	 */
+	public boolean addSnapshotRecord(int snapshot, int fragment, int maximumSize) {
+		int offset = data.limit();
+		if ((version < SNAPSHOT_VERSION) || (offset + SNAPSHOT_SIZE > maximumSize))
+			return false;
 		
-		origin = new Identifier(packet.getAddress(), packet.getPort());
+		data.limit(offset + SNAPSHOT_SIZE);
+		data.put(offset, SNAPSHOT);
+		data.put(offset + 1, (byte) snapshot);
+		data.putShort(offset + 2, (short) fragment);
+		data.putShort(offset + 4, (short) 0);
+		written(SNAPSHOT, offset);
+		return true;
 	}
 	
-	public void send(Identifier identifier, DatagramSocket socket) {
-		DatagramPacket packet = new DatagramPacket(data, data.length, identifier.address, identifier.port);
+	/**
+	 * Sets the fragment count of the SNAPSHOT record the datagram starts with.
+	 */
+	public void setFragmentCount(int fragments) {
+		data.putShort(TYPE + 5, (short) fragments);
+	}
+	
+	/**
+	 * Appends a NACK record listing the fragments of a snapshot not received yet, as many as fit
+	 * into the datagram, returns false if the datagram is full or its version has no snapshots.
+	 */
+	public boolean addNackRecord(int snapshot, BitSet received, int fragments, int maximumSize) {
+		int offset = data.limit();
+		if ((version < SNAPSHOT_VERSION) || (offset + 4 > maximumSize))
+			return false;
+		
+		int missing = fragments - received.get(0, Math.max(0, fragments)).cardinality();
+		int count = Math.max(0, Math.min(missing, (maximumSize - offset - 4) / Short.BYTES));
+		data.limit(offset + 4 + count * Short.BYTES);
+		data.put(offset, NACK);
+		data.put(offset + 1, (byte) snapshot);
+		data.putShort(offset + 2, (short) count);
 		
+		int fragment = received.nextClearBit(0);
+		for (int i = 0; i < count; i++) {
+			data.putShort(offset + 4 + i * Short.BYTES, (short) fragment);
+			fragment = received.nextClearBit(fragment + 1);
+		}
+		written(NACK, offset);
+		return true;
+	}
+	
+	/**
+	 * Copies the datagram, e.g. to send it again later with setDatagram.
+	 */
+	public byte[] getDatagram() {
+		byte[] datagram = new byte[data.limit()];
+		data.get(0, datagram);
+		return datagram;
+	}
+	
+	public void setDatagram(byte[] datagram) {
+		data.clear();
+		data.put(0, datagram);
+		data.limit(datagram.length);
+		tallied = false;
+	}
+	
+	/**
+	 * Adds the records of the datagram written and their bytes to the given counts per record type.
+	 */
+	public void countRecords(long[] records, long[] bytes) {
+		if (!tallied) {
+			/* datagram was copied in, it is decoded once */
+			clearCounts();
+			rewind();
+			while (nextRecord()) {
+				writtenRecords[recordType]++;
+				writtenBytes[recordType] += getRecordSize();
+				count++;
+			}
+			tallied = true;
+		}
+		for (int type = 0; type < NAMES.length; type++) {
+			records[type] += writtenRecords[type];
+			bytes[type] += writtenBytes[type];
+		}
+	}
+	
+	private void clearCounts() {
+		count = 0;
+		Arrays.fill(writtenRecords, 0);
+		Arrays.fill(writtenBytes, 0);
+		tallied = true;
+	}
+	
+	/* counts a record written from the given offset up to the limit, the first record of a batch
+	 * also counts the header of the datagram */
+	private void written(byte type, int offset) {
+		if (offset == TYPE + 1)
+			offset = TYPE;
+		writtenRecords[type]++;
+		writtenBytes[type] += data.limit() - offset;
+		count++;
+	}
+	
+	private int putEntity(int offset, int entity) {
+		if (entity == 0)
+			return offset;
+		
+		data.putShort(offset, (short) entity);
+		return offset + ENTITY_SIZE;
+	}
+	
+	private static int varintSize(long value) {
+		long zigzag = (value << 1) ^ (value >> 63);
+		int size = 1;
+		while ((zigzag & ~0x7FL) != 0) {
+			zigzag >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	private int putVarint(int offset, long value) {
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			data.put(offset++, (byte) ((zigzag & 0x7F) | 0x80));
+			zigzag >>>= 7;
+		}
+		data.put(offset++, (byte) zigzag);
+		return offset;
+	}
+	
+	/* reads a zigzag varint at the cursor, moves the cursor past the limit if it is truncated */
+	private long getVarint() {
+		long zigzag = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (next >= data.limit()) {
+				next = data.limit() + 1;
+				return 0;
+			}
+			byte b = data.get(next++);
+			zigzag |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+		next = data.limit() + 1;
+		return 0;
+	}
+	
+	public boolean receive(Transport transport) {
+		try {
+			return transport.receive(this);
+		} catch (IOException e) {
+			e.printStackTrace();
+			data.limit(0);
+			return false;
+		}
+	}
+	
+	public void send(Identifier identifier, Transport transport) {
 		try {
-			socket.send(packet);
+			transport.send(this, identifier);
 		} catch (IOException e) { e.printStackTrace(); }
 	}
 }
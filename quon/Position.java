@@ -1,7 +1,6 @@
 package quon;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 /**
  * JavaQuON
@@ -10,7 +9,7 @@ import java.nio.ByteOrder;
  */
 public class Position {
 	public static final int QUADRANTS = 4;
-	public static final int SIZE = 2 * Long.SIZE;
+	public static final int SIZE = 2 * Long.BYTES;
 	
 	public long x;
 	public long y;
@@ -49,22 +48,24 @@ public class Position {
 		this.y = y;
 	}
 	
-	public Position(byte[] data, int offset) {
-		ByteBuffer buffer = ByteBuffer.wrap(data, offset, SIZE).order(ByteOrder.BIG_ENDIAN);
-		x = buffer.getLong();
-		y = buffer.getLong();
+	public Position(ByteBuffer data, int offset) {
+		x = data.getLong(offset);
+		y = data.getLong(offset + Long.BYTES);
 	}
 
-	public void insertData(byte[] data, int offset) {
-		ByteBuffer buffer = ByteBuffer.wrap(data, offset, SIZE).order(ByteOrder.BIG_ENDIAN);
-		buffer.putLong(x);
-		buffer.putLong(y);
+	public void insertData(ByteBuffer data, int offset) {
+		data.putLong(offset, x);
+		data.putLong(offset + Long.BYTES, y);
 	}
 	
 	public void setTo(Position position) {
-		old_x = x;
-		old_y = y;
-		x = position.x;
-		y = position.y;
+		setTo(position.x, position.y);
+	}
+	
+	public void setTo(long x, long y) {
+		old_x = this.x;
+		old_y = this.y;
+		this.x = x;
+		this.y = y;
 	}
 }
@@ -8,6 +8,53 @@ package quon;
 public class RemoteEntity extends Entity {
 	public long lastContact;
 	public boolean requestedUpdates;
+	public long lastNeeded;  /* tick a hosted entity of a MultiNode last needed the entity */
+	
+	public boolean direct;            /* entity is inside the area of interest */
+	public int bindingQuadrant = -1;  /* quadrant the entity is binding neighbor of or -1 */
+	public boolean temporary;         /* entity requested updates without being a binding neighbor */
+	public long directSince;          /* time (ms) the entity last entered or left the area of interest */
+	public boolean insideAoi;         /* entity is inside the area of interest without hysteresis */
+	
+	public int version;                                  /* highest packet version the entity speaks */
+	public int keyframe = -1;                            /* keyframe last received from the entity */
+	public final Position keyframePosition = new Position();
+	public int sentKeyframe = -1;                        /* keyframe last sent to the entity */
+	
+	public final Position velocity = new Position();         /* velocity (units per second) reported by the entity */
+	public final Position reportedPosition = new Position(); /* position the velocity is extrapolated from */
+	public long reportedTime;                                /* time (ms) the reported position was received */
+	public int sentModel = -1;                               /* dead reckoning model last sent to the entity */
+	public int sentKind = -1;                                /* kind of batch last sent to the entity */
+	
+	int updatePeriod = 1;   /* ticks between position updates sent to the entity */
+	double updatePriority;  /* lower values are updated more often when the uplink is limited */
+	int updateCost;         /* average bytes of the position updates sent to the entity */
+	long lastUpdate;        /* time (ms) the last position update was sent to the entity */
+	long nextUpdate;        /* time (ms) the next position update is due */
+	
+	public long stamp;                                    /* stamp of the last material change of the entity */
+	public final Position stampPosition = new Position(); /* position at the last material change */
+	LongMap<Introduction> introductions;                  /* neighbors introduced to the entity by their key, created on demand */
+	
+	/**
+	 * State of a neighbor last introduced to the entity with a NEIGHBOR record.
+	 */
+	static class Introduction {
+		long stamp;
+		boolean inside;  /* neighbor was inside the area of interest of the entity, with hysteresis */
+		long time;
+	}
+	
+	AoiEntity aoiCopy;   /* read-only copy last handed out by an area of interest snapshot or event */
+	
+	long indexKey;       /* cell of the entity, maintained by the spatial index */
+	int indexSlot = -1;  /* slot of the entity in its cell or -1 if it is not indexed */
+	
+	long wheelDeadline;          /* deadline the entity is scheduled for in the timing wheel */
+	int wheelSlot = -1;          /* slot of the entity in the timing wheel or -1 if it is not scheduled */
+	RemoteEntity wheelPrevious;  /* neighbors of the entity in the list of its slot */
+	RemoteEntity wheelNext;
 	
 	public RemoteEntity(Identifier identifier) {
 		super(identifier);
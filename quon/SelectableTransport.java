@@ -0,0 +1,14 @@
+package quon;
+
+import java.nio.channels.SelectableChannel;
+
+/**
+ * JavaQuON
+ * 
+ * Transport receiving from a channel a selector can wait on, as needed by the nodes of a
+ * NodeHost. The channel is available once the transport is open, null if the transport does not
+ * have one after all.
+ */
+public interface SelectableTransport extends Transport {
+	public SelectableChannel getChannel();
+}
@@ -0,0 +1,217 @@
+package quon;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * JavaQuON
+ * 
+ * Partition of the neighbor table of a node processing datagrams on several threads. Datagrams
+ * are queued to the shard of their origin, so the datagrams of a peer are decoded in order by a
+ * single thread. Each record is staged in the shard of the entity it describes until the next
+ * tick of the node merges it into the neighbor table, successive records of an entity collapse
+ * into one staged update.
+ */
+class Shard implements Runnable {
+	static final int QUEUE_CAPACITY = 64;            /* datagrams queued per shard */
+	private static final int MAXIMUM_UPDATES = 4096; /* entities whose decoding state is kept at most */
+	
+	static class Update {
+		final Identifier identifier;
+		
+		int keyframe = -1;                                 /* keyframe delta positions are decoded against */
+		final Position keyframePosition = new Position();
+		
+		boolean staged;
+		boolean contacted;   /* datagram received from the entity */
+		boolean moved;       /* MOVE or MOVE_BNR record received, the fields below are valid */
+		boolean introduced;  /* NEIGHBOR record received, position, radius and neighbor version are valid */
+		boolean requestedUpdates;
+		int missedKeyframe = -1;  /* keyframe of a delta received without it, a new one is requested */
+		final Position position = new Position();
+		final Position velocity = new Position();
+		long aoiRadius;
+		int version;          /* packet version of the last datagram received from the entity */
+		int neighborVersion;  /* version reported by the NEIGHBOR record */
+		long lastContact;
+		
+		Update older;  /* neighbors in the order the entities were last staged in */
+		Update newer;
+		
+		Update(Identifier identifier) {
+			this.identifier = identifier;
+		}
+	}
+	
+	final BlockingQueue<Packet> queue = new ArrayBlockingQueue<Packet>(QUEUE_CAPACITY);
+	private final Node node;
+	
+	private final LongMap<Update> updates = new LongMap<Update>();
+	private final ArrayList<Update> staged = new ArrayList<Update>();
+	private Update oldest;  /* least recently staged entity, whose decoding state is forgotten first */
+	private Update newest;
+	
+	long records;  /* records staged by this shard */
+	
+	/* metrics of the datagrams decoded by this shard like those of the node, the pending counts
+	 * are only touched by the thread of the shard and added to the others once per datagram */
+	private final long[] pendingRecords = new long[Packet.NAMES.length];
+	private final long[] pendingBytes = new long[Packet.NAMES.length];
+	private long datagramsReceived;
+	private final long[] recordsReceived = new long[Packet.NAMES.length];
+	private final long[] bytesReceived = new long[Packet.NAMES.length];
+	private final Histogram handleDuration = new Histogram();
+	
+	Shard(Node node) {
+		this.node = node;
+	}
+	
+	public void run() {
+		try {
+			while (true) {
+				Packet packet = queue.take();
+				node.stagePacket(packet, this);
+				node.releasePacket(packet);
+			}
+		} catch (InterruptedException e) {
+			/* node closed */
+		}
+	}
+	
+	synchronized void stageMove(Packet packet, boolean bindingNeighborRequest, long currentTime) {
+		Update update = getUpdate(packet.getIdentifierKey(), packet, false);
+		
+		if (packet.isDelta() && (update.keyframe != packet.getKeyframe())) {
+			/* keyframe was lost, the node asks for a new one */
+			update.missedKeyframe = packet.getKeyframe();
+			contact(update, packet.getVersion(), currentTime);
+			return;
+		}
+		
+		packet.getPosition(update.position, update.keyframePosition);
+		if ((packet.getKeyframe() >= 0) && !packet.isDelta()) {
+			update.keyframe = packet.getKeyframe();
+			update.keyframePosition.setTo(update.position);
+		}
+		packet.getVelocity(update.velocity);
+		update.aoiRadius = packet.getAoiRadius();
+		update.requestedUpdates = bindingNeighborRequest;
+		update.moved = true;
+		contact(update, packet.getVersion(), currentTime);
+	}
+	
+	synchronized void stageNeighbor(Packet packet, long currentTime) {
+		Update update = getUpdate(packet.getIdentifierKey(), packet, false);
+		
+		/* a MOVE record of the entity itself is more recent */
+		if (update.moved)
+			return;
+		
+		packet.getPosition(update.position);
+		update.aoiRadius = packet.getAoiRadius();
+		update.neighborVersion = packet.getNeighborVersion();
+		update.lastContact = currentTime;
+		update.introduced = true;
+		stage(update);
+	}
+	
+	synchronized void stageContact(Packet packet, long currentTime) {
+		contact(getUpdate(packet.getOrigin().key, packet, true), packet.getVersion(), currentTime);
+	}
+	
+	/* counts the current record of a datagram being decoded by the thread of the shard */
+	void count(Packet packet) {
+		Node.count(packet, pendingRecords, pendingBytes);
+	}
+	
+	/* called by the thread of the shard after decoding a datagram */
+	synchronized void handled(long duration) {
+		datagramsReceived++;
+		for (int type = 0; type < Packet.NAMES.length; type++) {
+			recordsReceived[type] += pendingRecords[type];
+			bytesReceived[type] += pendingBytes[type];
+			pendingRecords[type] = 0;
+			pendingBytes[type] = 0;
+		}
+		handleDuration.record(duration);
+	}
+	
+	/* adds the metrics of the shard to the given ones, returns the datagrams received */
+	synchronized long addMetrics(long[] records, long[] bytes, Histogram durations) {
+		for (int type = 0; type < Packet.NAMES.length; type++) {
+			records[type] += recordsReceived[type];
+			bytes[type] += bytesReceived[type];
+		}
+		durations.merge(handleDuration);
+		return datagramsReceived;
+	}
+	
+	/* called by the node during its tick, while it is locked */
+	synchronized void merge() {
+		for (Update update : staged) {
+			node.merge(update);
+			update.staged = false;
+			update.contacted = false;
+			update.moved = false;
+			update.introduced = false;
+			update.missedKeyframe = -1;
+		}
+		staged.clear();
+	}
+	
+	private void contact(Update update, int version, long currentTime) {
+		update.version = update.contacted ? Math.max(update.version, version) : version;
+		update.lastContact = currentTime;
+		update.contacted = true;
+		stage(update);
+	}
+	
+	private void stage(Update update) {
+		records++;
+		if (!update.staged) {
+			update.staged = true;
+			staged.add(update);
+			unlink(update);
+			link(update);
+		}
+	}
+	
+	private Update getUpdate(long key, Packet packet, boolean origin) {
+		Update update = updates.get(key);
+		if (update == null) {
+			/* the least recently staged entity is forgotten, a staged update is merged regardless */
+			if (updates.size() >= MAXIMUM_UPDATES) {
+				Update evicted = oldest;
+				unlink(evicted);
+				updates.remove(evicted.identifier.key);
+			}
+			update = new Update(origin ? packet.getOrigin() : packet.getIdentifier());
+			updates.put(key, update);
+			link(update);
+		}
+		return update;
+	}
+	
+	private void link(Update update) {
+		update.older = newest;
+		if (newest != null)
+			newest.newer = update;
+		else
+			oldest = update;
+		newest = update;
+	}
+	
+	private void unlink(Update update) {
+		if (update.older != null)
+			update.older.newer = update.newer;
+		else
+			oldest = update.newer;
+		if (update.newer != null)
+			update.newer.older = update.older;
+		else
+			newest = update.older;
+		update.older = null;
+		update.newer = null;
+	}
+}
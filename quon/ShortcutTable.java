@@ -0,0 +1,99 @@
+package quon;
+
+/**
+ * JavaQuON
+ * 
+ * Long-range contacts of a node, which let JOINs travel across the world in few hops instead of
+ * from neighbor to neighbor. The distances beyond the area of interest are divided into classes of
+ * doubling width, and the table keeps the peer seen last in each class and quadrant, so that the
+ * contacts are spread in all directions and grow sparser with the distance. The peers seen last
+ * are also kept in a small cache regardless of their class. Contacts are learned from JOINs
+ * passing through the node and from neighbors dropped once they moved away. They expire after a
+ * while, since their positions are not updated.
+ */
+class ShortcutTable {
+	private static final int CLASSES    = 16;    /* distance classes of doubling width beyond the area of interest */
+	private static final int CACHE_SIZE = 32;    /* far peers seen last kept regardless of their class */
+	private static final int LIFETIME   = 60000; /* after which time (ms) a contact is no longer used */
+	
+	static class Contact {
+		final Identifier identifier;
+		final Position position = new Position();
+		long time;  /* time (ms) the peer was last seen at the position */
+		
+		Contact(Identifier identifier) {
+			this.identifier = identifier;
+		}
+	}
+	
+	private final Contact[] shortcuts = new Contact[Position.QUADRANTS * CLASSES];
+	private final Contact[] cache = new Contact[CACHE_SIZE];
+	private int nextCached;
+	
+	/**
+	 * Remembers a peer seen at the given position, unless it is inside the area of interest
+	 * around the origin, where the neighbors of the node know better.
+	 */
+	void offer(Identifier identifier, Position position, Position origin, long aoiRadius, long currentTime) {
+		long distance = origin.distanceTo(position);
+		if (distance <= aoiRadius)
+			return;
+		
+		remove(identifier.key);
+		Contact contact = new Contact(identifier);
+		contact.position.setTo(position);
+		contact.time = currentTime;
+		
+		int distanceClass = Math.min(63 - Long.numberOfLeadingZeros(distance / Math.max(1, aoiRadius)), CLASSES - 1);
+		shortcuts[origin.classify(position) * CLASSES + distanceClass] = contact;
+		cache[nextCached] = contact;
+		nextCached = (nextCached + 1) % CACHE_SIZE;
+	}
+	
+	void remove(long key) {
+		remove(shortcuts, key, false);
+		remove(cache, key, false);
+	}
+	
+	/* forgets all peers at an endpoint, including the entities hosted there */
+	void removeEndpoint(long endpointKey) {
+		remove(shortcuts, endpointKey, true);
+		remove(cache, endpointKey, true);
+	}
+	
+	private static void remove(Contact[] contacts, long key, boolean endpoint) {
+		for (int i = 0; i < contacts.length; i++) {
+			if ((contacts[i] != null) &&
+				((endpoint ? Identifier.endpointKey(contacts[i].identifier.key) : contacts[i].identifier.key) == key)) {
+				contacts[i] = null;
+			}
+		}
+	}
+	
+	/**
+	 * Finds the live contact nearest to the target other than the excluded peer, or null if
+	 * there is none.
+	 */
+	Contact findNearest(Position target, long excludedKey, long currentTime) {
+		Contact nearest = findNearest(shortcuts, null, target, excludedKey, currentTime);
+		return findNearest(cache, nearest, target, excludedKey, currentTime);
+	}
+	
+	private static Contact findNearest(Contact[] contacts, Contact nearest, Position target, long excludedKey, long currentTime) {
+		for (int i = 0; i < contacts.length; i++) {
+			Contact contact = contacts[i];
+			if (contact == null)
+				continue;
+			if (currentTime - contact.time >= LIFETIME) {
+				contacts[i] = null;
+				continue;
+			}
+			
+			if ((contact.identifier.key != excludedKey) &&
+				((nearest == null) || (target.distanceTo(contact.position) < target.distanceTo(nearest.position)))) {
+				nearest = contact;
+			}
+		}
+		return nearest;
+	}
+}
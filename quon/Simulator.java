@@ -0,0 +1,424 @@
+package quon;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * JavaQuON
+ * 
+ * Headless simulator running many nodes in one thread over a loopback network. Time is virtual:
+ * the simulator jumps from one event to the next (delivering a datagram, ticking a node, moving
+ * the entities, sampling the metrics), so that a run only depends on its parameters and seed. The
+ * nodes join one after another via a random node that joined before, then the entities move for
+ * the warmup and the measured seconds. During the measured seconds the areas of interest the
+ * nodes report are compared with the ground truth, and the datagrams and bytes the nodes send as
+ * well as the CPU time the nodes spend are recorded. Entities that joined less than the settle
+ * time (ms) ago are still being introduced to their neighbors, pairs of nodes involving them are
+ * counted separately from the settled ones. With trace=file all datagrams are captured into a
+ * trace file, which TraceReplay replays.
+ * 
+ * The optional features of the nodes are switched on by deadReckoning=1, delta=1 (delta encoding),
+ * budget=bytes (uplink budget per second), enterMargin=, exitMargin= and dwell= (AOI hysteresis)
+ * and checkpoint=directory (checkpoints every checkpointInterval ms).
+ * 
+ * Usage: Simulator [name=value ...], e.g. Simulator nodes=10000 loss=0.01 model=hotspots deadReckoning=1
+ */
+public class Simulator {
+	private static final long START_TIME = 1000000000000L; /* virtual time (ms) the simulation starts at */
+	
+	static class VirtualClock implements Clock {
+		long time = START_TIME;
+		
+		public long millis() {
+			return time;
+		}
+	}
+	
+	private static class Simulated {
+		final int index;
+		final Entity entity;
+		final Node node;
+		final LoopbackTransport transport;
+		final Transport receiver;  /* transport the node receives from, which captures into the trace if one is written */
+		final RemoteEntity truth;  /* copy of the entity in the ground truth index */
+		
+		boolean joined;
+		long joinTime;
+		long joinedTime;
+		long nextTick;
+		
+		long datagrams;  /* datagrams and bytes sent before the measurement started */
+		long bytes;
+		
+		Simulated(int index, Entity entity, Node node, LoopbackTransport transport, Transport receiver) {
+			this.index = index;
+			this.entity = entity;
+			this.node = node;
+			this.transport = transport;
+			this.receiver = receiver;
+			this.truth = new RemoteEntity(entity.identifier);
+		}
+	}
+	
+	private final Map<String,String> parameters;
+	private final int N;
+	private final long seconds;
+	private final long warmup;
+	private final long worldSize;
+	private final long aoiRadius;
+	private final long joinInterval;
+	private final long sampleInterval;
+	private final long settleTime;
+	
+	private final VirtualClock clock = new VirtualClock();
+	private final Random random;
+	private final LoopbackNetwork network;
+	private final MovementModel model;
+	
+	private final Simulated[] simulated;
+	private final Entity[] entities;
+	private final LongMap<Simulated> byKey = new LongMap<Simulated>();
+	private final List<Simulated> joinedNodes = new ArrayList<Simulated>();
+	private final GridIndex truth;
+	private final TraceWriter trace;  /* captures all datagrams or null */
+	private final PriorityQueue<Simulated> ticks = new PriorityQueue<Simulated>(1024, new Comparator<Simulated>() {
+		public int compare(Simulated a, Simulated b) {
+			return (a.nextTick != b.nextTick) ? Long.compare(a.nextTick, b.nextTick) : Integer.compare(a.index, b.index);
+		}
+	});
+	private final Packet packet = new Packet();
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	
+	/* metrics */
+	private long joins;
+	private long joinLatency;
+	private long maxJoinLatency;
+	private long samples;
+	private long truePositives;
+	private long falseNegatives;
+	private long falsePositives;
+	private long joiningTruePositives;  /* pairs of nodes one of which is still settling */
+	private long joiningFalseNegatives;
+	private long joiningFalsePositives;
+	private long ticked;
+	private long tickCpu;      /* CPU time (ns) of the measured ticks */
+	private long handled;
+	private long handleCpu;    /* CPU time (ns) handling the measured datagrams */
+	private long wallTime;
+	
+	public Simulator(Map<String,String> parameters) {
+		this.parameters = parameters;
+		N = (int) parameter("nodes", 1000);
+		seconds = parameter("seconds", 30);
+		warmup = parameter("warmup", 10);
+		aoiRadius = parameter("aoi", 100);
+		worldSize = parameter("world", (long) Math.sqrt(N * 40.0 * aoiRadius * aoiRadius / 10)); /* about ten entities per area of interest */
+		joinInterval = parameter("join", 5);
+		sampleInterval = parameter("sample", 1000);
+		settleTime = parameter("settle", 1000);
+		random = new Random(parameter("seed", 0));
+		trace = parameters.containsKey("trace") ? openTrace(parameters.get("trace")) : null;
+		
+		network = new LoopbackNetwork(clock, random);
+		network.setLatency(parameter("latency", 20), (int) parameter("jitter", 10));
+		network.setLoss(parameter("loss", 0.0));
+		network.setReordering(parameter("reordering", 0.0), parameter("reorderingDelay", 50));
+		
+		long speed = parameter("speed", aoiRadius / 5);
+		String name = parameters.containsKey("model") ? parameters.get("model") : "walk";
+		if (name.equals("waypoint"))
+			model = new MovementModel.RandomWaypoint(worldSize, speed, parameter("pause", 2000));
+		else if (name.equals("hotspots"))
+			model = new MovementModel.Hotspots(worldSize, speed, (int) parameter("hotspots", 8), parameter("spread", 4 * aoiRadius), random);
+		else
+			model = new MovementModel.RandomWalk(worldSize, speed);
+		
+		simulated = new Simulated[N];
+		entities = new Entity[N];
+		truth = new GridIndex(aoiRadius);
+		for (int i = 0; i < N; i++) {
+			entities[i] = new Entity(new Identifier(0x0A000000 + i, 4000, 0));
+			entities[i].aoiRadius = aoiRadius;
+		}
+		model.place(entities, random);
+		
+		for (int i = 0; i < N; i++) {
+			LoopbackTransport transport = new LoopbackTransport(network);
+			Transport receiver = (trace != null) ? new TraceTransport(transport, trace) : transport;
+			Node node = new Node(entities[i], receiver);
+			node.setClock(clock);
+			configure(node, i);
+			simulated[i] = new Simulated(i, entities[i], node, transport, receiver);
+			simulated[i].truth.aoiRadius = aoiRadius;
+			simulated[i].truth.position.setTo(entities[i].position);
+			byKey.put(entities[i].identifier.key, simulated[i]);
+		}
+	}
+	
+	private void configure(Node node, int index) {
+		node.setDeadReckoning(parameter("deadReckoning", 0) != 0);
+		node.setDeltaEncoding(parameter("delta", 0) != 0);
+		node.setUplinkBudget((int) parameter("budget", 0));
+		node.setAoiHysteresis(parameter("enterMargin", 0), parameter("exitMargin", 0), (int) parameter("dwell", 0));
+		if (parameters.containsKey("checkpoint"))
+			node.setCheckpoint(Paths.get(parameters.get("checkpoint"), "node" + index + ".qckp"), (int) parameter("checkpointInterval", 5000));
+	}
+	
+	private TraceWriter openTrace(String path) {
+		try {
+			return new TraceWriter(Paths.get(path), clock, TraceWriter.DEFAULT_SEGMENT_SIZE);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	private long parameter(String name, long defaultValue) {
+		return parameters.containsKey(name) ? Long.parseLong(parameters.get(name)) : defaultValue;
+	}
+	
+	private double parameter(String name, double defaultValue) {
+		return parameters.containsKey(name) ? Double.parseDouble(parameters.get(name)) : defaultValue;
+	}
+	
+	public void run() {
+		long joinEnd = START_TIME + N * joinInterval;
+		long measureStart = joinEnd + warmup * 1000;
+		long end = measureStart + seconds * 1000;
+		long moveInterval = 100;
+		
+		int nextJoin = 0;
+		long nextJoinTime = START_TIME;
+		long nextMove = START_TIME + moveInterval;
+		long nextSample = measureStart;
+		boolean measuring = false;
+		
+		long startTime = System.nanoTime();
+		while (clock.time < end) {
+			long nextDelivery = network.nextDelivery();
+			long nextTick = ticks.isEmpty() ? Long.MAX_VALUE : ticks.peek().nextTick;
+			long next = Math.min(Math.min(nextDelivery, nextTick), Math.min(nextMove, nextSample));
+			if (nextJoin < N)
+				next = Math.min(next, nextJoinTime);
+			clock.time = Math.max(clock.time, next);
+			
+			if (!measuring && (clock.time >= measureStart)) {
+				measuring = true;
+				startMeasurement();
+			}
+			
+			if (nextDelivery <= clock.time) {
+				long cpu = measuring ? threads.getCurrentThreadCpuTime() : 0;
+				while (network.nextDelivery() <= clock.time)
+					deliver(measuring);
+				if (measuring)
+					handleCpu += threads.getCurrentThreadCpuTime() - cpu;
+			} else if ((nextJoin < N) && (nextJoinTime <= clock.time)) {
+				startJoin(simulated[nextJoin++]);
+				nextJoinTime += joinInterval;
+			} else if (nextMove <= clock.time) {
+				model.move(entities, moveInterval, random);
+				for (Simulated s : joinedNodes) {
+					s.truth.position.setTo(s.entity.position);
+					truth.update(s.truth);
+				}
+				nextMove += moveInterval;
+			} else if (nextTick <= clock.time) {
+				long cpu = measuring ? threads.getCurrentThreadCpuTime() : 0;
+				while (!ticks.isEmpty() && (ticks.peek().nextTick <= clock.time))
+					tick(ticks.poll(), measuring);
+				if (measuring)
+					tickCpu += threads.getCurrentThreadCpuTime() - cpu;
+			} else if (nextSample <= clock.time) {
+				sample();
+				nextSample += sampleInterval;
+			}
+		}
+		wallTime = System.nanoTime() - startTime;
+		
+		for (Simulated s : simulated)
+			s.node.close();
+		if (trace != null)
+			trace.close();
+	}
+	
+	private void startJoin(Simulated s) {
+		if (!s.node.open())
+			return;
+		
+		s.joinTime = clock.time;
+		if (joinedNodes.isEmpty()) {
+			/* the first node creates the network */
+			joined(s);
+		} else {
+			Simulated bootstrap = joinedNodes.get(random.nextInt(joinedNodes.size()));
+			s.node.startJoin(bootstrap.entity.identifier, clock.time);
+		}
+		s.nextTick = clock.time + random.nextInt(s.node.getUpdateInterval());
+		ticks.add(s);
+	}
+	
+	private void joined(Simulated s) {
+		s.joined = true;
+		s.joinedTime = clock.time;
+		joinedNodes.add(s);
+		s.truth.position.setTo(s.entity.position);
+		truth.add(s.truth);
+		
+		if (s.index > 0) {
+			long latency = clock.time - s.joinTime;
+			joins++;
+			joinLatency += latency;
+			maxJoinLatency = Math.max(maxJoinLatency, latency);
+		}
+	}
+	
+	private void deliver(boolean measuring) {
+		LoopbackTransport transport = network.deliver();
+		if (transport == null)
+			return;
+		
+		Simulated s = byKey.get(transport.identifier.key);
+		while (packet.receive(s.receiver)) {
+			s.node.handlePacket(packet);
+			if (measuring)
+				handled++;
+		}
+	}
+	
+	/* nodes still joining only send their JOIN again or request missing fragments */
+	private void tick(Simulated s, boolean measuring) {
+		if (!s.joined && s.node.isJoined())
+			joined(s);
+		
+		if (s.joined) {
+			s.node.tick(s.nextTick);
+			if (measuring)
+				ticked++;
+		} else {
+			s.node.retryJoin(clock.time);
+		}
+		s.nextTick += s.node.getUpdateInterval();
+		ticks.add(s);
+	}
+	
+	private void startMeasurement() {
+		for (Simulated s : simulated) {
+			s.datagrams = s.transport.datagrams;
+			s.bytes = s.transport.bytes;
+		}
+	}
+	
+	/* compares the area of interest of each node with the entities actually inside it, pairs with a node
+	 * still settling are counted separately */
+	private void sample() {
+		ArrayList<RemoteEntity> inRange = new ArrayList<RemoteEntity>();
+		for (Simulated s : joinedNodes) {
+			boolean settled = isSettled(s);
+			inRange.clear();
+			truth.findInRange(s.entity.position, aoiRadius, inRange);
+			int actual = 0;
+			int joiningActual = 0;
+			for (RemoteEntity entity : inRange) {
+				Simulated other = byKey.get(entity.identifier.key);
+				if (other == s)
+					continue;
+				
+				if (settled && isSettled(other))
+					actual++;
+				else
+					joiningActual++;
+			}
+			
+			int found = 0;
+			int joiningFound = 0;
+			for (AoiEntity entity : s.node.entitiesInAoi()) {
+				Simulated other = byKey.get(entity.identifier.key);
+				boolean pairSettled = settled && (other != null) && isSettled(other);
+				if ((other != null) && other.joined && (other.entity.position.distanceTo(s.entity.position) <= aoiRadius)) {
+					if (pairSettled)
+						found++;
+					else
+						joiningFound++;
+				} else if (pairSettled) {
+					falsePositives++;
+				} else {
+					joiningFalsePositives++;
+				}
+			}
+			truePositives += found;
+			falseNegatives += Math.max(0, actual - found);
+			joiningTruePositives += joiningFound;
+			joiningFalseNegatives += Math.max(0, joiningActual - joiningFound);
+		}
+		samples++;
+	}
+	
+	private boolean isSettled(Simulated s) {
+		return s.joined && (clock.time - s.joinedTime >= settleTime);
+	}
+	
+	public void report() {
+		long datagrams = 0;
+		long bytes = 0;
+		double maxDatagrams = 0;
+		double maxBytes = 0;
+		for (Simulated s : simulated) {
+			long sentDatagrams = s.transport.datagrams - s.datagrams;
+			long sentBytes = s.transport.bytes - s.bytes;
+			datagrams += sentDatagrams;
+			bytes += sentBytes;
+			maxDatagrams = Math.max(maxDatagrams, (double) sentDatagrams / seconds);
+			maxBytes = Math.max(maxBytes, (double) sentBytes / seconds);
+		}
+		
+		System.out.println("nodes " + N + ", joined " + joinedNodes.size() + ", world " + worldSize + ", aoi " + aoiRadius + ", " +
+						   "simulated " + (warmup + seconds) + " s after joining in " + (wallTime / 1000000) + " ms");
+		System.out.println("join: mean latency " + ((joins > 0) ? joinLatency / joins : 0) + " ms, max latency " + maxJoinLatency + " ms");
+		System.out.println("aoi: samples " + samples + ", recall " + ratio(truePositives, truePositives + falseNegatives) + ", " +
+						   "precision " + ratio(truePositives, truePositives + falsePositives) + ", " +
+						   "joining recall " + ratio(joiningTruePositives, joiningTruePositives + joiningFalseNegatives) + ", " +
+						   "joining precision " + ratio(joiningTruePositives, joiningTruePositives + joiningFalsePositives));
+		System.out.println("traffic per node: " + format((double) datagrams / N / seconds) + " datagrams/s (max " + format(maxDatagrams) + "), " +
+						   format((double) bytes / N / seconds) + " bytes/s (max " + format(maxBytes) + ")");
+		System.out.println("network: sent " + network.sent + ", lost " + network.lost + ", undeliverable " + network.undeliverable);
+		if (trace != null)
+			System.out.println("trace: " + trace.records + " datagrams captured to " + parameters.get("trace"));
+		System.out.println("cpu: " + format((ticked > 0) ? tickCpu / 1000.0 / ticked : 0) + " us per tick, " +
+						   format((handled > 0) ? handleCpu / 1000.0 / handled : 0) + " us per datagram, " +
+						   format((ticked > 0) ? (tickCpu + handleCpu) / 1000.0 / ticked : 0) + " us per tick including receiving");
+	}
+	
+	private static String ratio(long a, long b) {
+		return (b > 0) ? String.format("%.4f", (double) a / b) : "-";
+	}
+	
+	private static String format(double value) {
+		return String.format("%.1f", value);
+	}
+	
+	public static void main(String[] args) {
+		Map<String,String> parameters = new HashMap<String,String>();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator < 0) {
+				System.out.println("usage: Simulator [name=value ...]");
+				return;
+			}
+			parameters.put(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+		
+		Simulator simulator = new Simulator(parameters);
+		simulator.run();
+		simulator.report();
+	}
+}
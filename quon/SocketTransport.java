@@ -0,0 +1,65 @@
+package quon;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+
+/**
+ * JavaQuON
+ * 
+ * Fallback transport based on a blocking java.net DatagramSocket. The datagram packets used for
+ * receiving and sending are reused, buffers are taken from a pool of heap buffers.
+ */
+public class SocketTransport implements Transport {
+	private static final int POOL_CAPACITY = 64;
+	
+	private final BufferPool bufferPool = new BufferPool(Packet.MAXIMUM_SIZE, POOL_CAPACITY, false);
+	
+	private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+	private final DatagramPacket sendPacket    = new DatagramPacket(new byte[0], 0);
+	private final byte[] sendData = new byte[Packet.MAXIMUM_SIZE];
+	
+	private DatagramSocket socket;
+	
+	public void open(Identifier identifier) throws IOException {
+		socket = new DatagramSocket(identifier.port, identifier.getAddress());
+	}
+	
+	public void close() {
+		if (socket != null)
+			socket.close();
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	public boolean receive(Packet packet) throws IOException {
+		ByteBuffer buffer = packet.data;
+		receivePacket.setData(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+		socket.receive(receivePacket);
+		buffer.clear();
+		buffer.limit(receivePacket.getLength());
+		
+		packet.origin = new Identifier(receivePacket.getAddress(), receivePacket.getPort());
+		return true;
+	}
+	
+	public void send(Packet packet, Identifier destination) throws IOException {
+		ByteBuffer buffer = packet.data;
+		
+		synchronized (sendPacket) {
+			if (buffer.hasArray()) {
+				sendPacket.setData(buffer.array(), buffer.arrayOffset(), buffer.limit());
+			} else {
+				buffer.rewind();
+				buffer.get(sendData, 0, buffer.limit());
+				sendPacket.setData(sendData, 0, buffer.limit());
+			}
+			sendPacket.setAddress(destination.getAddress());
+			sendPacket.setPort(destination.port);
+			socket.send(sendPacket);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package quon;
+
+import java.util.Collection;
+
+/**
+ * JavaQuON
+ * 
+ * Spatial index over the remote entities known to a node. Entities are added once they become
+ * known, updated whenever their position changes and removed once they are dropped. Distances
+ * are measured the same way as Position.distanceTo.
+ */
+public interface SpatialIndex {
+	public void add(RemoteEntity entity);
+	
+	public void update(RemoteEntity entity);
+	
+	public void remove(RemoteEntity entity);
+	
+	public void clear();
+	
+	/**
+	 * Adds all entities within the given distance of the center to the result.
+	 */
+	public void findInRange(Position center, long radius, Collection<? super RemoteEntity> result);
+	
+	/**
+	 * Finds the entity nearest to the given position or null if the index is empty.
+	 */
+	public RemoteEntity findNearest(Position position);
+	
+	/**
+	 * Stores the entity nearest to the origin in each quadrant (as of Position.classify) in the
+	 * result array, or null for empty quadrants.
+	 */
+	public void findNearestPerQuadrant(Position origin, RemoteEntity[] result);
+}
@@ -86,8 +86,8 @@ public class TestApp {
 			}
 			
 			g.setColor(Color.red);
-			for (Entity visibleEntity : node[0].entitiesInAoi()) {
-				g.fillOval((int)visibleEntity.position.x - 8, (int)visibleEntity.position.y - 8, 16, 16);
+			for (AoiEntity visibleEntity : node[0].entitiesInAoi()) {
+				g.fillOval((int)visibleEntity.x - 8, (int)visibleEntity.y - 8, 16, 16);
 			}
 			
 			for (int i = 0; i < N; i++) {
@@ -0,0 +1,68 @@
+package quon;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JavaQuON
+ * 
+ * Drives the update ticks of a node not driven by a NodeHost, by a timer thread of its own or in
+ * virtual thread mode by the scheduler shared by all nodes, which staggers the ticks of the nodes
+ * across the update interval and runs each on a virtual thread. Each tick is passed the time it
+ * was scheduled for, from which the node measures how late it runs.
+ */
+abstract class Ticker {
+	private Timer timer;
+	private ScheduledFuture<?> future;
+	
+	abstract void tick(long scheduledTime);
+	
+	void start(int updateInterval, boolean virtualThreads) {
+		if (virtualThreads) {
+			startVirtual(updateInterval);
+		} else {
+			timer = new Timer();
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					tick(scheduledExecutionTime());
+				}
+			}, 0, updateInterval);
+		}
+	}
+	
+	/* ticks of co-hosted nodes are staggered across the update interval to avoid firing in lockstep */
+	private void startVirtual(final int updateInterval) {
+		final long delay = ThreadLocalRandom.current().nextLong(updateInterval);
+		final long start = System.currentTimeMillis() + delay;
+		
+		future = VirtualThreads.SCHEDULER.scheduleAtFixedRate(new Runnable() {
+			private long count;
+			private volatile long scheduledTime;
+			private Future<?> pending;
+			
+			private final Runnable task = new Runnable() {
+				public void run() {
+					tick(scheduledTime);
+				}
+			};
+			
+			public void run() {
+				scheduledTime = start + count++ * updateInterval;
+				if ((pending == null) || pending.isDone())
+					pending = VirtualThreads.EXECUTOR.submit(task);
+			}
+		}, delay, updateInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	void cancel() {
+		if (timer != null)
+			timer.cancel();
+		if (future != null)
+			future.cancel(false);
+	}
+}
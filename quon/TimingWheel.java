@@ -0,0 +1,102 @@
+package quon;
+
+import java.util.Collection;
+
+/**
+ * JavaQuON
+ * 
+ * Hashed timing wheel for the failure detection of remote entities. Entities are kept in doubly
+ * linked lists threaded through the entities themselves, one list per slot, so that scheduling and
+ * cancelling take constant time. Advancing the wheel visits only the slots passed since the last
+ * advance, and the current slot again while deadlines within its tick are still to come, and
+ * collects the entities whose deadline has passed.
+ * 
+ * Deadlines are not moved when an entity is heard from. Instead the node reschedules an entity
+ * collected from the wheel if it was heard from in the meantime, which makes updating the last
+ * contact free.
+ */
+public class TimingWheel {
+	private final RemoteEntity[] slots;
+	private final int mask;
+	private final long resolution;
+	private long cursor = -1; /* last tick of the wheel advanced to */
+	private int size;
+	
+	/**
+	 * Creates a wheel with slots of the given resolution (ms), large enough for deadlines up to
+	 * the given span (ms) to expire in their first round.
+	 */
+	public TimingWheel(long resolution, long span) {
+		this.resolution = Math.max(1, resolution);
+		
+		int capacity = 1;
+		while (capacity * this.resolution <= span)
+			capacity <<= 1;
+		slots = new RemoteEntity[capacity];
+		mask = capacity - 1;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public void schedule(RemoteEntity entity, long deadline) {
+		cancel(entity);
+		
+		long tick = Math.max(deadline / resolution, cursor + 1);
+		int slot = (int) (tick & mask);
+		entity.wheelDeadline = deadline;
+		entity.wheelSlot = slot;
+		entity.wheelPrevious = null;
+		entity.wheelNext = slots[slot];
+		if (slots[slot] != null)
+			slots[slot].wheelPrevious = entity;
+		slots[slot] = entity;
+		size++;
+	}
+	
+	public void cancel(RemoteEntity entity) {
+		if (entity.wheelSlot < 0)
+			return;
+		
+		if (entity.wheelPrevious != null)
+			entity.wheelPrevious.wheelNext = entity.wheelNext;
+		else
+			slots[entity.wheelSlot] = entity.wheelNext;
+		if (entity.wheelNext != null)
+			entity.wheelNext.wheelPrevious = entity.wheelPrevious;
+		
+		entity.wheelNext = entity.wheelPrevious = null;
+		entity.wheelSlot = -1;
+		size--;
+	}
+	
+	/**
+	 * Advances the wheel to the given time, removing the entities whose deadline has passed and
+	 * adding them to the expired collection. Entities scheduled more than a round ahead stay.
+	 */
+	public void advance(long currentTime, Collection<? super RemoteEntity> expired) {
+		long tick = currentTime / resolution;
+		if (cursor < 0)
+			cursor = tick - 1;
+		
+		/* a gap of more than a round visits each slot once */
+		long first = Math.max(cursor + 1, tick - mask);
+		boolean pending = false;  /* current slot holds deadlines of this tick still to come */
+		for (long t = first; t <= tick; t++) {
+			RemoteEntity entity = slots[(int) (t & mask)];
+			while (entity != null) {
+				RemoteEntity next = entity.wheelNext;
+				if (entity.wheelDeadline <= currentTime) {
+					cancel(entity);
+					expired.add(entity);
+				} else if ((t == tick) && (entity.wheelDeadline / resolution <= tick)) {
+					pending = true;
+				}
+				entity = next;
+			}
+		}
+		/* the current slot is visited again by the next advance unless all its deadlines of this tick passed */
+		cursor = Math.max(cursor, pending ? tick - 1 : tick);
+	}
+}
@@ -0,0 +1,134 @@
+package quon;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * JavaQuON
+ * 
+ * Reads the datagrams of a trace file written by a TraceWriter in the order they were written,
+ * mapping one segment of the file at a time. The identifiers of nodes and peers are created once
+ * per key, so reading a trace does not allocate per datagram.
+ */
+public class TraceReader {
+	private final FileChannel channel;
+	private final long size;
+	private final int segmentSize;
+	private MappedByteBuffer segment;
+	private long segmentOffset;
+	private int position;  /* offset of the next record in the current segment */
+	
+	private final LongMap<Identifier> identifiers = new LongMap<Identifier>();
+	
+	/* current record */
+	private int offset;
+	private int length;
+	private boolean sent;
+	private long time;
+	private Identifier node;
+	private Identifier peer;
+	
+	public TraceReader(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		size = channel.size();
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, TraceWriter.HEADER_SIZE));
+		if ((header.limit() < TraceWriter.HEADER_SIZE) || (header.getInt(0) != TraceWriter.MAGIC) ||
+			(header.get(Integer.BYTES) != TraceWriter.VERSION) || (header.getInt(Integer.BYTES + 1) < TraceWriter.HEADER_SIZE)) {
+			channel.close();
+			throw new IOException(path + " is not a trace file");
+		}
+		segmentSize = header.getInt(Integer.BYTES + 1);
+		segment = map(0);
+		position = TraceWriter.HEADER_SIZE;
+	}
+	
+	private MappedByteBuffer map(long offset) throws IOException {
+		long length = Math.min(size - offset, segmentSize);
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+	
+	/**
+	 * Advances to the next datagram, returns false at the end of the trace.
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			int length = (position + TraceWriter.RECORD_HEADER_SIZE <= segment.limit()) ? segment.getShort(position) & 0xFFFF : 0;
+			if (length > 0) {
+				if (position + TraceWriter.RECORD_HEADER_SIZE + length > segment.limit())
+					return false;
+				
+				this.length = length;
+				sent = (segment.get(position + 2) & TraceWriter.FLAG_SENT) != 0;
+				time = segment.getLong(position + 3);
+				node = identifier(segment.getLong(position + 11));
+				peer = identifier(segment.getLong(position + 19));
+				offset = position + TraceWriter.RECORD_HEADER_SIZE;
+				position = offset + length;
+				return true;
+			}
+			
+			if (segmentOffset + segmentSize >= size)
+				return false;
+			segmentOffset += segmentSize;
+			segment = map(segmentOffset);
+			position = 0;
+		}
+	}
+	
+	private Identifier identifier(long key) {
+		if (key == 0)
+			return null;
+		
+		Identifier identifier = identifiers.get(key);
+		if (identifier == null) {
+			identifier = Identifier.ofKey(key);
+			identifiers.put(key, identifier);
+		}
+		return identifier;
+	}
+	
+	public boolean isSent() {
+		return sent;
+	}
+	
+	/**
+	 * Time (ms) the datagram was sent or received, as of the clock of the writer.
+	 */
+	public long getTime() {
+		return time;
+	}
+	
+	public Identifier getNode() {
+		return node;
+	}
+	
+	/**
+	 * Origin of a received datagram or destination of a sent one.
+	 */
+	public Identifier getPeer() {
+		return peer;
+	}
+	
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Copies the datagram into the packet, setting the peer as its origin.
+	 */
+	public void copyTo(Packet packet) {
+		packet.data.clear();
+		packet.data.put(0, segment, offset, length);
+		packet.data.limit(length);
+		packet.origin = peer;
+	}
+	
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) { e.printStackTrace(); }
+	}
+}
@@ -0,0 +1,194 @@
+package quon;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * JavaQuON
+ * 
+ * Replays a trace captured by TraceTransport into fresh nodes, one per node of the trace. The
+ * datagrams a node received are handed to its handlePacket method, the MOVE and JOIN records of
+ * the datagrams it sent move its local entity the way the captured node moved. The nodes run on a
+ * virtual clock following the times of the trace and tick every update interval of trace time,
+ * whatever they send is dropped. Replays at full speed by default or in real time, and reports
+ * the datagrams handled per second and the time handling them.
+ * 
+ * Usage: TraceReplay file [realtime] [repeat=N]
+ */
+public class TraceReplay {
+	private static class Replayed {
+		final Entity entity;
+		final Node node;
+		final Position keyframePosition = new Position();
+		long nextTick;
+		
+		Replayed(Entity entity, Node node) {
+			this.entity = entity;
+			this.node = node;
+		}
+	}
+	
+	private static class NullTransport implements Transport {
+		private final BufferPool bufferPool = new BufferPool(Packet.MAXIMUM_SIZE, 4, false);
+		
+		public void open(Identifier identifier) throws IOException {
+		}
+		
+		public void close() {
+		}
+		
+		public BufferPool getBufferPool() {
+			return bufferPool;
+		}
+		
+		public boolean receive(Packet packet) throws IOException {
+			return false;
+		}
+		
+		public void send(Packet packet, Identifier destination) throws IOException {
+		}
+	}
+	
+	private final String path;
+	private final boolean realtime;
+	private final Simulator.VirtualClock clock = new Simulator.VirtualClock();
+	private final Packet packet = new Packet();
+	private final LongMap<Replayed> nodes = new LongMap<Replayed>();
+	
+	private long received;
+	private long sent;
+	
+	public TraceReplay(String path, boolean realtime) {
+		this.path = path;
+		this.realtime = realtime;
+	}
+	
+	/**
+	 * Replays the trace once into fresh nodes and prints the results.
+	 */
+	public void run() throws IOException {
+		nodes.clear();
+		received = 0;
+		sent = 0;
+		
+		TraceReader reader = new TraceReader(Paths.get(path));
+		long startTime = System.nanoTime();
+		long traceStart = -1;
+		try {
+			while (reader.next()) {
+				long time = reader.getTime();
+				if (traceStart < 0)
+					traceStart = time;
+				if (realtime)
+					pace(startTime, time - traceStart);
+				clock.time = Math.max(clock.time, time);
+				
+				Replayed replayed = nodes.get(reader.getNode().key);
+				if (replayed == null)
+					replayed = open(reader.getNode(), time);
+				
+				reader.copyTo(packet);
+				if (reader.isSent()) {
+					place(replayed, reader.getNode());
+					sent++;
+				}
+				
+				while (replayed.nextTick <= time) {
+					replayed.node.tick(replayed.nextTick);
+					replayed.nextTick += replayed.node.getUpdateInterval();
+				}
+				
+				if (!reader.isSent()) {
+					replayed.node.handlePacket(packet);
+					received++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		long wallTime = System.nanoTime() - startTime;
+		
+		Histogram handleDuration = new Histogram();
+		long ticks = 0;
+		for (int i = 0; i < nodes.capacity(); i++) {
+			Replayed replayed = nodes.valueAt(i);
+			if (replayed == null)
+				continue;
+			
+			NodeMetrics metrics = replayed.node.getMetrics();
+			handleDuration.merge(metrics.handleDuration);
+			ticks += metrics.ticks;
+			replayed.node.close();
+		}
+		
+		System.out.println("nodes " + nodes.size() + ", datagrams received " + received + ", sent " + sent + ", ticks " + ticks + ", " +
+						   "replayed in " + (wallTime / 1000000) + " ms, " + String.format("%.0f", received * 1e9 / Math.max(1, wallTime)) + " datagrams/s, " +
+						   "handling mean " + String.format("%.0f", handleDuration.getMean()) + " ns, " +
+						   "99th percentile " + handleDuration.getPercentile(99) + " ns, max " + handleDuration.getMax() + " ns");
+	}
+	
+	private Replayed open(Identifier identifier, long time) {
+		Entity entity = new Entity(identifier);
+		Node node = new Node(entity, new NullTransport());
+		node.setClock(clock);
+		node.open();
+		
+		Replayed replayed = new Replayed(entity, node);
+		replayed.nextTick = time + node.getUpdateInterval();
+		nodes.put(identifier.key, replayed);
+		return replayed;
+	}
+	
+	/* moves the local entity to the position the captured node sent in its own MOVE or JOIN record */
+	private void place(Replayed replayed, Identifier identifier) {
+		packet.rewind();
+		while (packet.nextRecord()) {
+			byte type = packet.getRecordType();
+			boolean own = (type == Packet.JOIN) ? (packet.getIdentifierKey() == identifier.key) :
+						  (((type == Packet.MOVE) || (type == Packet.MOVE_BNR)) && (packet.getEntity() == 0));
+			if (!own)
+				continue;
+			
+			packet.getPosition(replayed.entity.position, replayed.keyframePosition);
+			if ((packet.getKeyframe() >= 0) && !packet.isDelta())
+				replayed.keyframePosition.setTo(replayed.entity.position);
+			replayed.entity.aoiRadius = packet.getAoiRadius();
+			return;
+		}
+	}
+	
+	/* waits until the given time (ms) after the start of the trace has passed since the replay started */
+	private static void pace(long startTime, long elapsed) {
+		long delay = elapsed - (System.nanoTime() - startTime) / 1000000;
+		if (delay <= 0)
+			return;
+		
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) { e.printStackTrace(); }
+	}
+	
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("usage: TraceReplay file [realtime] [repeat=N]");
+			return;
+		}
+		
+		boolean realtime = false;
+		int repeat = 1;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("realtime"))
+				realtime = true;
+			else if (args[i].startsWith("repeat="))
+				repeat = Integer.parseInt(args[i].substring("repeat=".length()));
+		}
+		
+		TraceReplay replay = new TraceReplay(args[0], realtime);
+		try {
+			for (int i = 0; i < repeat; i++)
+				replay.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package quon;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * JavaQuON
+ * 
+ * Transport capturing all datagrams another transport sends and receives into a trace, see
+ * TraceWriter. The datagrams are captured from the buffers of the packets, so capturing does not
+ * allocate. Closing the transport leaves the writer open, as it may be shared by several nodes.
+ * Wrapping a selectable transport, the nodes of a NodeHost can be traced as well.
+ */
+public class TraceTransport implements SelectableTransport {
+	private final Transport transport;
+	private final TraceWriter writer;
+	private Identifier identifier;
+	
+	public TraceTransport(Transport transport, TraceWriter writer) {
+		this.transport = transport;
+		this.writer = writer;
+	}
+	
+	public void open(Identifier identifier) throws IOException {
+		this.identifier = identifier;
+		transport.open(identifier);
+	}
+	
+	public void close() {
+		transport.close();
+	}
+	
+	public BufferPool getBufferPool() {
+		return transport.getBufferPool();
+	}
+	
+	public SelectableChannel getChannel() {
+		return (transport instanceof SelectableTransport) ? ((SelectableTransport) transport).getChannel() : null;
+	}
+	
+	public boolean receive(Packet packet) throws IOException {
+		if (!transport.receive(packet))
+			return false;
+		
+		writer.append(false, identifier, packet.origin, packet);
+		return true;
+	}
+	
+	public void send(Packet packet, Identifier destination) throws IOException {
+		writer.append(true, identifier, destination, packet);
+		transport.send(packet, destination);
+	}
+}
@@ -0,0 +1,115 @@
+package quon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * JavaQuON
+ * 
+ * Appends datagrams to a trace file, which is written through memory mapped segments of fixed
+ * size, so that appending is a copy into memory. A record never spans two segments, a record of
+ * length 0 or the end of the segment marks where the next segment starts. The file is truncated
+ * to its contents when the writer is closed. Several nodes may share one writer.
+ * 
+ * File:    | MAGIC | VERSION | SEGMENT_SIZE | SEGMENT ...
+ * Record:  | LENGTH(2) | FLAGS(1) | TIME(8) | NODE(8) | PEER(8) | DATAGRAM |
+ * The time is in milliseconds of the clock of the writer, node and peer are identifier keys. The
+ * peer is the origin of a received datagram or the destination of a sent one.
+ */
+public class TraceWriter {
+	public static final int MAGIC   = 0x51545243; /* "QTRC" */
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 2 * Integer.BYTES + 1;
+	public static final int RECORD_HEADER_SIZE = Short.BYTES + 1 + 3 * Long.BYTES;
+	public static final int FLAG_SENT = 1;
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+	
+	private final FileChannel channel;
+	private final Clock clock;
+	private final int segmentSize;
+	private MappedByteBuffer segment;
+	private long segmentOffset;  /* offset of the current segment in the file */
+	private int position;        /* offset of the next record in the current segment */
+	private boolean closed;
+	
+	long records;  /* datagrams written */
+	
+	public TraceWriter(Path path) throws IOException {
+		this(path, Clock.SYSTEM, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	public TraceWriter(Path path, Clock clock, int segmentSize) throws IOException {
+		if (segmentSize < HEADER_SIZE + RECORD_HEADER_SIZE + Packet.MAXIMUM_SIZE)
+			throw new IllegalArgumentException("segment size " + segmentSize + " cannot hold a datagram");
+		
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+										StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.clock = clock;
+		this.segmentSize = segmentSize;
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		segment.putInt(0, MAGIC);
+		segment.put(Integer.BYTES, (byte) VERSION);
+		segment.putInt(Integer.BYTES + 1, segmentSize);
+		position = HEADER_SIZE;
+	}
+	
+	/**
+	 * Appends the datagram in the buffer of the packet, from 0 to its limit.
+	 */
+	public void append(boolean sent, Identifier node, Identifier peer, Packet packet) {
+		append(sent, node, peer, packet.data, packet.data.limit());
+	}
+	
+	synchronized void append(boolean sent, Identifier node, Identifier peer, ByteBuffer data, int length) {
+		/* an empty record would mark the end of the segment */
+		if (closed || (length == 0))
+			return;
+		
+		try {
+			if (position + RECORD_HEADER_SIZE + length > segmentSize)
+				nextSegment();
+		} catch (IOException e) {
+			e.printStackTrace();
+			closed = true;
+			return;
+		}
+		
+		segment.putShort(position, (short) length);
+		segment.put(position + 2, (byte) (sent ? FLAG_SENT : 0));
+		segment.putLong(position + 3, clock.millis());
+		segment.putLong(position + 11, node.key);
+		segment.putLong(position + 19, (peer != null) ? peer.key : 0);
+		segment.put(position + RECORD_HEADER_SIZE, data, 0, length);
+		position += RECORD_HEADER_SIZE + length;
+		records++;
+	}
+	
+	private void nextSegment() throws IOException {
+		if (position + Short.BYTES <= segmentSize)
+			segment.putShort(position, (short) 0);
+		segmentOffset += segmentSize;
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentOffset, segmentSize);
+		position = 0;
+	}
+	
+	public synchronized void close() {
+		if (closed && !channel.isOpen())
+			return;
+		closed = true;
+		
+		try {
+			if (position + Short.BYTES <= segmentSize)
+				segment.putShort(position, (short) 0);
+			segment.force();
+			/* platforms not truncating mapped files keep the unused rest of the last segment */
+			try {
+				channel.truncate(segmentOffset + position);
+			} catch (IOException e) { }
+			channel.close();
+		} catch (IOException e) { e.printStackTrace(); }
+	}
+}
@@ -0,0 +1,23 @@
+package quon;
+
+import java.io.IOException;
+
+/**
+ * JavaQuON
+ * 
+ * Transport abstraction used by the node class to exchange JavaQuON datagrams. Implementations
+ * receive into and send from the buffer of a packet, so a node that reuses its packets does not
+ * allocate on the receive and send paths. Receiving returns false if a non-blocking transport
+ * has no datagram available.
+ */
+public interface Transport {
+	public void open(Identifier identifier) throws IOException;
+	
+	public void close();
+	
+	public BufferPool getBufferPool();
+	
+	public boolean receive(Packet packet) throws IOException;
+	
+	public void send(Packet packet, Identifier destination) throws IOException;
+}
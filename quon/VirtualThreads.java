@@ -0,0 +1,66 @@
+package quon;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * JavaQuON
+ * 
+ * Shared scheduler and virtual threads for nodes running in virtual thread mode. A single
+ * scheduler thread only dispatches the update ticks of all nodes, the ticks and the receive loops
+ * themselves run on virtual threads. Virtual threads are looked up reflectively, on releases
+ * without them daemon platform threads are used instead.
+ */
+final class VirtualThreads {
+	static final boolean AVAILABLE;
+	static final ThreadFactory FACTORY;
+	static final ExecutorService EXECUTOR;
+	static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "JavaQuON Scheduler");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	static {
+		ThreadFactory factory = null;
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "JavaQuON Virtual ", 0L);
+			factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			factory = null;
+		}
+		
+		if (factory != null) {
+			AVAILABLE = true;
+			FACTORY = factory;
+		} else {
+			AVAILABLE = false;
+			FACTORY = new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable);
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+		}
+		EXECUTOR = AVAILABLE ? newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool(FACTORY);
+	}
+	
+	private VirtualThreads() { }
+	
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(FACTORY);
+		}
+	}
+}